@@ -2,6 +2,7 @@ package it.carmelogug.puntoinformatica.configurations;
 
 
 import it.carmelogug.puntoinformatica.support.authentication.*;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
@@ -18,13 +19,18 @@ import org.springframework.web.filter.CorsFilter;
 @EnableGlobalMethodSecurity(prePostEnabled = true)
 public class SecurityConfiguration extends WebSecurityConfigurerAdapter { //estendiamo la classe WebSecurityConfigureAdapter e quindi Spring eseguirà questa configurazione invece di quella di fefault.
 
+    //verifica i token con JwtAuthenticationConverter e li tiene in cache fino alla scadenza
+    @Autowired
+    private CachingJwtAuthenticationManager authenticationManager;
+
+
 
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http.csrf().disable().sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS).and().authorizeRequests()
                 .antMatchers(HttpMethod.OPTIONS, "/**").permitAll()
                 .antMatchers("/check/**").permitAll()
-                .anyRequest().authenticated().and().oauth2ResourceServer().jwt().jwtAuthenticationConverter(new JwtAuthenticationConverter());
+                .anyRequest().authenticated().and().oauth2ResourceServer().jwt().authenticationManager(authenticationManager);
     }
 
 
@@ -40,6 +46,7 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter { //este
         configuration.addAllowedMethod("POST");
         configuration.addAllowedMethod("PUT");
         configuration.addAllowedMethod("DELETE");
+        configuration.addExposedHeader("ETag"); //letto dal front end per le richieste condizionali sul carrello
         source.registerCorsConfiguration("/**", configuration);
         return new CorsFilter(source);
     }
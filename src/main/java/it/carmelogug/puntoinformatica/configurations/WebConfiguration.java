@@ -0,0 +1,50 @@
+package it.carmelogug.puntoinformatica.configurations;
+
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.format.FormatterRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+
+/*
+    I @PathVariable di tipo Product e Store vengono risolti tramite EntityCache
+    invece che con una query per ogni richiesta (DomainClassConverter di Spring Data).
+    Sono copie non gestite da JPA, con stato (banned, version) eventualmente non aggiornato: vanno usate
+    solo in lettura o come id. I servizi che scrivono o controllano lo stato rileggono l'entità
+    nella propria transazione (entityManager.find, findStoreById).
+ */
+@Configuration
+public class WebConfiguration implements WebMvcConfigurer {
+
+    @Autowired
+    private EntityCache entityCache;
+
+
+    @Override
+    public void addFormatters(FormatterRegistry registry) {
+        registry.addConverter(String.class, Product.class, new ProductConverter());
+        registry.addConverter(String.class, Store.class, new StoreConverter());
+    }
+
+
+    private class ProductConverter implements Converter<String,Product> {
+        @Override
+        public Product convert(String source) {
+            return entityCache.findProductById(Integer.parseInt(source.trim()));
+        }
+    }
+
+    private class StoreConverter implements Converter<String,Store> {
+        @Override
+        public Store convert(String source) {
+            return entityCache.findStoreById(Integer.parseInt(source.trim()));
+        }
+    }
+
+
+}
@@ -6,6 +6,7 @@ package it.carmelogug.puntoinformatica.controllers.rest;
 import it.carmelogug.puntoinformatica.entities.User;
 import it.carmelogug.puntoinformatica.services.AccountingService;
 import it.carmelogug.puntoinformatica.support.ResponseMessage;
+import it.carmelogug.puntoinformatica.support.authentication.AuthenticatedUser;
 import it.carmelogug.puntoinformatica.support.authentication.Utils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -35,11 +36,8 @@ public class AccountingController {
     public ResponseEntity checkLogged() {
 
 
-        String email=Utils.getEmail();
-        String[] name=Utils.getName();
-        String first_name=name[0];
-        String last_name=name[1];
-        User currUser=accountingService.addAndgetUser(email,first_name,last_name);
+        AuthenticatedUser user=Utils.getUser();
+        User currUser=accountingService.addAndgetUser(user.getEmail(),user.getFirstName(),user.getLastName());
         return new ResponseEntity(new ResponseMessage("You are logged",currUser),HttpStatus.OK);
     }
 
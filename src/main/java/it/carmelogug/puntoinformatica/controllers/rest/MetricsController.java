@@ -0,0 +1,99 @@
+package it.carmelogug.puntoinformatica.controllers.rest;
+
+
+import it.carmelogug.puntoinformatica.services.CheckoutQueueService;
+import it.carmelogug.puntoinformatica.support.ResponseMessage;
+import it.carmelogug.puntoinformatica.support.authentication.CachingJwtAuthenticationManager;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import it.carmelogug.puntoinformatica.support.cache.IdentityCache;
+import it.carmelogug.puntoinformatica.support.cart.StockReservations;
+import it.carmelogug.puntoinformatica.support.idempotency.IdempotencyStore;
+import it.carmelogug.puntoinformatica.support.retry.OptimisticRetryAspect;
+import it.carmelogug.puntoinformatica.support.stock.FlashSaleStock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/*
+    Contatori delle strutture in memoria, utili per dimensionarle in produzione.
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @Autowired
+    private EntityCache entityCache;
+
+    @Autowired
+    private IdentityCache identityCache;
+
+    @Autowired
+    private CachingJwtAuthenticationManager authenticationManager;
+
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    @Autowired
+    private CheckoutQueueService checkoutQueueService;
+
+    @Autowired
+    private OptimisticRetryAspect optimisticRetryAspect;
+
+    @Autowired
+    private StockReservations stockReservations;
+
+    @Autowired
+    private FlashSaleStock flashSaleStock;
+
+
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @GetMapping("/caches")
+    public ResponseEntity getCacheStats() {
+        Map<String,Map<String,Object>> stats=entityCache.stats();
+        stats.put("identities",identityCache.stats());
+        stats.put("tokens",authenticationManager.stats());
+        stats.put("idempotencyKeys",idempotencyStore.stats());
+        return new ResponseEntity<>(new ResponseMessage("Cache statistics",stats),HttpStatus.OK);
+    }//getCacheStats
+
+    /*
+        Conflitti di versione e nuovi tentativi per metodo: i metodi con più conflitti toccano le entità più contese.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @GetMapping("/conflicts")
+    public ResponseEntity getConflictStats() {
+        return new ResponseEntity<>(new ResponseMessage("Conflict statistics",optimisticRetryAspect.stats()),HttpStatus.OK);
+    }//getConflictStats
+
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @GetMapping("/reservations")
+    public ResponseEntity getReservationStats() {
+        return new ResponseEntity<>(new ResponseMessage("Reservation statistics",stockReservations.stats()),HttpStatus.OK);
+    }//getReservationStats
+
+    /*
+        Per ogni prodotto in flash sale: quantità disponibile in memoria, vendite in corso e vendite non ancora scritte.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @GetMapping("/flash_sales")
+    public ResponseEntity getFlashSaleStats() {
+        return new ResponseEntity<>(new ResponseMessage("Flash sale statistics",flashSaleStock.stats()),HttpStatus.OK);
+    }//getFlashSaleStats
+
+    /*
+        Checkout asincrono: ordini in coda, gruppi scritti, esiti e gruppi ritentati uno per uno.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @GetMapping("/checkout_queue")
+    public ResponseEntity getCheckoutQueueStats() {
+        return new ResponseEntity<>(new ResponseMessage("Checkout queue statistics",checkoutQueueService.stats()),HttpStatus.OK);
+    }//getCheckoutQueueStats
+
+
+}
@@ -1,17 +1,24 @@
 package it.carmelogug.puntoinformatica.controllers.rest;
 
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.exc.InvalidFormatException;
 import it.carmelogug.puntoinformatica.entities.store.Product;
 import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.services.ProductImportService;
 import it.carmelogug.puntoinformatica.services.ProductService;
+import it.carmelogug.puntoinformatica.support.ImportReport;
+import it.carmelogug.puntoinformatica.support.KeysetPage;
+import it.carmelogug.puntoinformatica.support.PurgeJob;
 import it.carmelogug.puntoinformatica.support.ResponseMessage;
 import it.carmelogug.puntoinformatica.support.Utilities;
 import it.carmelogug.puntoinformatica.support.exceptions.Product.ProductAlreadyExistException;
 import it.carmelogug.puntoinformatica.support.exceptions.Product.ProductNotExistException;
+import it.carmelogug.puntoinformatica.support.search.ProductSearchResult;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.convert.ConversionFailedException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 
 import org.springframework.security.access.prepost.PreAuthorize;
@@ -19,8 +26,12 @@ import org.springframework.validation.FieldError;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,9 +40,19 @@ import java.util.Map;
 @RequestMapping("/products")
 public class ProductsController {
 
+    private static final int MAX_PAGE_SIZE=1000;
+    private static final int MAX_SUGGESTIONS=50;
+    private static final MediaType APPLICATION_NDJSON=MediaType.parseMediaType("application/x-ndjson");
+
     @Autowired
     private ProductService productService;
 
+    @Autowired
+    private ProductImportService productImportService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
     @PreAuthorize("hasAuthority('puntoinformatica-admin')")
     @PostMapping
     public ResponseEntity create(@RequestBody @Valid Product product){
@@ -45,6 +66,21 @@ public class ProductsController {
 
     }//create
 
+    /*
+        Import massivo: il body (text/csv con intestazione oppure application/x-ndjson) viene letto in streaming.
+        Restituisce il numero di prodotti inseriti, scartati perché già esistenti o non validi, e gli errori per riga.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @PostMapping(value = "/import", consumes = {ProductImportService.CSV, ProductImportService.NDJSON})
+    public ResponseEntity importProducts(InputStream body, @RequestHeader("Content-Type") String contentType){
+        try{
+            ImportReport report=productImportService.importProducts(body,contentType);
+            return new ResponseEntity<>(new ResponseMessage("Import completed!",report),HttpStatus.OK);
+        }catch (IOException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Unable to read the request body!",e);
+        }
+    }//importProducts
+
     @PreAuthorize("hasAuthority('puntoinformatica-admin')")
     @DeleteMapping("/{product}")
     public ResponseEntity banProduct(@PathVariable(value = "product") Product product){
@@ -58,6 +94,20 @@ public class ProductsController {
         }
     }//banProduct
 
+    /*
+        Avanzamento della rimozione dagli store di un prodotto bannato, quando il ban l'ha eseguita in background.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @GetMapping("/{product}/ban_status")
+    public ResponseEntity getBanStatus(@PathVariable(value = "product") Product product){
+        if(product==null) throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Product not exist!");
+        PurgeJob job=productService.getBanJob(product);
+        if(job==null){
+            return new ResponseEntity<>(new ResponseMessage("No background removal for this product!"),HttpStatus.OK);
+        }
+        return new ResponseEntity<>(new ResponseMessage("Request processed!",job),HttpStatus.OK);
+    }//getBanStatus
+
     @PreAuthorize("hasAuthority('puntoinformatica-admin')")
     @PutMapping("/{product}")
     public ResponseEntity unBanProduct(@PathVariable(value = "product") Product product){
@@ -79,9 +129,29 @@ public class ProductsController {
 
 
 
+    /*
+        Senza cursor e size restituisce l'intero catalogo come prima.
+        Con cursor e/o size restituisce una pagina ordinata per id insieme al cursore della pagina successiva:
+        la prima richiesta si fa senza cursor, le successive con il nextCursor ricevuto.
+     */
     @PreAuthorize("hasAuthority('puntoinformatica-user')")
     @GetMapping("/getAll")
-    public ResponseEntity getAll(){
+    public ResponseEntity getAll(@RequestParam(required = false) String cursor,
+                                 @RequestParam(required = false) Integer size){
+        if(cursor!=null || size!=null){
+            if(size==null) size=MAX_PAGE_SIZE;
+            if(size<=0 || size>MAX_PAGE_SIZE)
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Size must be between 1 and "+MAX_PAGE_SIZE+"!");
+            try{
+                KeysetPage<Product> page=productService.showProductsPage(cursor,size);
+                if(page.getItems().size()==0){
+                    return new ResponseEntity<>(new ResponseMessage("No result!",page),HttpStatus.OK);
+                }
+                return new ResponseEntity<>(new ResponseMessage("Results found",page),HttpStatus.OK);
+            }catch (IllegalArgumentException e){
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Invalid cursor!",e);
+            }
+        }
         List<Product> result= productService.showAllProducts();
         if(result.size()==0){
             return new ResponseEntity<>(new ResponseMessage("No result!"),HttpStatus.OK);
@@ -89,18 +159,50 @@ public class ProductsController {
         return new ResponseEntity<>(result,HttpStatus.OK);
     }//getAll
 
+    /*
+        Intero catalogo in formato NDJSON (un prodotto per riga), scritto man mano che viene letto dal db.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-user')")
+    @GetMapping("/getAll/stream")
+    public ResponseEntity<StreamingResponseBody> streamAll(){
+        StreamingResponseBody body= out -> {
+            try{
+                productService.streamAllProducts(p -> {
+                    try{
+                        out.write(objectMapper.writeValueAsBytes(p));
+                        out.write('\n');
+                    }catch (IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }catch (UncheckedIOException e){
+                throw e.getCause();
+            }
+        };
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(body);
+    }//streamAll
+
     /*
         name: può essere null, se vuoto viene contato come null, se ha solo spazi non restituirà i nomi dei prodotti contenenti spazi
         type: può essere null, viene gestita l'eccezzione nel caso in cui venga passato un type non esistente
         category: può essere null, viene gestita l'eccezzione nel caso in cui venga passato un category non esistente.
+        facets: se true, object contiene i prodotti (products) e i conteggi per type e category (typeCounts, categoryCounts).
      */
     @PreAuthorize("hasAuthority('puntoinformatica-user')")
     @GetMapping("/search/by_name_type_category")
     public ResponseEntity getByNameAndTypeAndCategory(@RequestParam(required = false) String name,
                                     @RequestParam(required = false) Product.Type type,
-                                    @RequestParam(required = false) Product.Category category){
+                                    @RequestParam(required = false) Product.Category category,
+                                    @RequestParam(required = false, defaultValue = "false") boolean facets){
 
         name= Utilities.upperCase(name,true);
+        if(facets){
+            ProductSearchResult result=productService.showProductsByNameAndTypeAndCategoryWithFacets(name,type,category);
+            if(result.getProducts().size()<=0){
+                return new ResponseEntity<>(new ResponseMessage("No result!", result),HttpStatus.OK);
+            }
+            return new ResponseEntity<>(new ResponseMessage("Results found",result),HttpStatus.OK);
+        }
         List<Product> result= productService.showProductsByNameAndTypeAndCategory(name,type,category);
         if(result.size()<=0){
             return new ResponseEntity<>(new ResponseMessage("No result!", result),HttpStatus.OK);
@@ -108,6 +210,22 @@ public class ProductsController {
         return new ResponseEntity<>(new ResponseMessage("Results found",result),HttpStatus.OK);
     }//getByNameAndTypeAndCategory
 
+    /*
+        Autocompletamento per la ricerca: nomi dei prodotti con una parola che inizia con prefix.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-user')")
+    @GetMapping("/suggest")
+    public ResponseEntity suggest(@RequestParam(required = true) String prefix,
+                                  @RequestParam(required = false, defaultValue = "10") int limit){
+        if(limit<=0 || limit>MAX_SUGGESTIONS)
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Limit must be between 1 and "+MAX_SUGGESTIONS+"!");
+        List<String> result=productService.suggestProductNames(prefix,limit);
+        if(result.size()<=0){
+            return new ResponseEntity<>(new ResponseMessage("No result!", result),HttpStatus.OK);
+        }
+        return new ResponseEntity<>(new ResponseMessage("Results found",result),HttpStatus.OK);
+    }//suggest
+
     @PreAuthorize("hasAuthority('puntoinformatica-user')")
     @GetMapping("/search/by_id")
     public ResponseEntity getById(@RequestParam(required = true) String id){
@@ -5,14 +5,24 @@ import it.carmelogug.puntoinformatica.entities.purchasing.Purchase;
 import it.carmelogug.puntoinformatica.entities.User;
 import it.carmelogug.puntoinformatica.entities.purchasing.StoredProductInCart;
 import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.services.CheckoutQueueService;
 import it.carmelogug.puntoinformatica.services.PurchasingService;
+import it.carmelogug.puntoinformatica.support.CheckoutOrder;
+import it.carmelogug.puntoinformatica.support.CheckoutReport;
 import it.carmelogug.puntoinformatica.support.ResponseMessage;
 import it.carmelogug.puntoinformatica.support.authentication.Utils;
+import it.carmelogug.puntoinformatica.support.cart.CartOperation;
 import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.*;
 import it.carmelogug.puntoinformatica.support.exceptions.StoredProduct.StoredProductNotExistException;
 import it.carmelogug.puntoinformatica.support.exceptions.User.UserNotFoundException;
+import it.carmelogug.puntoinformatica.support.idempotency.IdempotencyStore;
+import it.carmelogug.puntoinformatica.support.retry.ConflictResponse;
+import it.carmelogug.puntoinformatica.support.views.CartView;
+import it.carmelogug.puntoinformatica.support.views.PurchaseView;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
@@ -20,6 +30,7 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.persistence.OptimisticLockException;
 import javax.validation.Valid;
 import java.util.Date;
 import java.util.List;
@@ -28,9 +39,20 @@ import java.util.List;
 @RequestMapping("/purchasing")
 public class PurchasingController {
 
+    private static final int MAX_CART_OPERATIONS=500;
+
+    private static final String IDEMPOTENCY_KEY="Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH=255;
+
     @Autowired
     private PurchasingService purchasingService;
 
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    @Autowired
+    private CheckoutQueueService checkoutQueueService;
+
 
 
     @PreAuthorize("hasAuthority('puntoinformatica-admin')")
@@ -50,10 +72,12 @@ public class PurchasingController {
     public ResponseEntity addStoredProductToCart(@RequestBody StoredProduct storedProduct,
                                                   @RequestParam (value = "quantity") int quantity){
         try{
-            if(quantity==0) throw new QuantityWrongException();
-            Cart cart = purchasingService.addStoredProductToCart(Utils.getEmail(),storedProduct,quantity);
+            if(quantity<1) throw new QuantityWrongException();
+            CartView cart = purchasingService.addStoredProductToCart(Utils.getEmail(),storedProduct,quantity);
             return new ResponseEntity(new ResponseMessage("Product added successfully!",cart),HttpStatus.OK);
-        }catch (UserNotFoundException | CartNotExistException | StoredProductNotExistException | QuantityWrongException e){
+        }catch (CartInCheckoutException e){
+            return ConflictResponse.of();
+        }catch (CartNotExistException | StoredProductNotExistException | QuantityWrongException | QuantityProductUnvailableException e){
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
         }
     }//addStoredProductToCart
@@ -64,22 +88,46 @@ public class PurchasingController {
                                                  @RequestParam (value = "quantity") int quantity) {
         try{
             if(quantity<0) throw new QuantityWrongException();
-            System.out.println(quantity);
-            Cart cart = purchasingService.updateQuantityStoredProductInCart(storedProductInCart,quantity);
+            CartView cart = purchasingService.updateQuantityStoredProductInCart(Utils.getEmail(),storedProductInCart,quantity);
             return new ResponseEntity(new ResponseMessage("Product updated successfully!",cart),HttpStatus.OK);
-        }catch ( StoredProductNotInCart| QuantityWrongException e){
+        }catch (CartInCheckoutException e){
+            return ConflictResponse.of();
+        }catch (CartNotExistException | StoredProductNotInCart| QuantityWrongException | QuantityProductUnvailableException e){
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
         }
     }//modifyQuantityStoredProduct
 
 
+    /*
+        Modifica multipla del carrello: lista di operazioni ADD (storedProduct, quantity), SET (storedProductInCart, quantity)
+        e REMOVE (storedProductInCart) applicate nell'ordine dato, tutte o nessuna. Restituisce il carrello finale.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-user')")
+    @PutMapping("/cart/my_cart/batch")
+    public ResponseEntity applyCartOperations(@RequestBody List<CartOperation> operations){
+        if(operations==null || operations.size()>MAX_CART_OPERATIONS)
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"From 0 to "+MAX_CART_OPERATIONS+" operations are allowed!");
+        try{
+            CartView cart=purchasingService.applyCartOperations(Utils.getEmail(),operations);
+            return new ResponseEntity(new ResponseMessage("Cart updated successfully!",cart),HttpStatus.OK);
+        }catch (CartInCheckoutException e){
+            return ConflictResponse.of();
+        }catch (CartNotExistException | StoredProductNotExistException | StoredProductNotInCart | QuantityWrongException |
+                QuantityProductUnvailableException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
+        }
+    }//applyCartOperations
+
+
     @PreAuthorize("hasAuthority('puntoinformatica-user')")
     @DeleteMapping("/cart/my_cart/removeStoredProductInCart")
     public ResponseEntity removeStoredProductFromCart(@RequestBody @Valid StoredProductInCart storedProductInCart){
 
         try{
-            Cart cart= purchasingService.removeStoredProductFromCart(Utils.getEmail(),storedProductInCart);
+            CartView cart= purchasingService.removeStoredProductFromCart(Utils.getEmail(),storedProductInCart);
             return new ResponseEntity(new ResponseMessage("Product has been deleted from the cart!",cart),HttpStatus.OK);
+        } catch (CartInCheckoutException e){
+            return ConflictResponse.of();
         } catch (StoredProductNotInCart| CartNotExistException e) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
         }
@@ -87,20 +135,49 @@ public class PurchasingController {
     }//removeStoredProductFromCart
 
 
+    /*
+        La risposta ha come ETag (debole) la versione del carrello, che cambia con ogni modifica della sua vista
+        (righe, acquisto, prezzi e quantità disponibili dei prodotti, vedi CartEngine): se If-None-Match la contiene
+        viene restituito 304 dopo la sola lettura della versione, senza caricare né serializzare il carrello.
+     */
     @PreAuthorize("hasAuthority('puntoinformatica-user')")
     @GetMapping("/cart/my_cart")
-    public ResponseEntity getCartByUser() {
+    public ResponseEntity getCartByUser(@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
         try{
-            Cart cart= purchasingService.getCart(Utils.getEmail());
-            if(cart.getStoredProductsInCart().size()<=0){
-                return new ResponseEntity(new ResponseMessage("The cart is empty!",cart),HttpStatus.OK);
+            String email=Utils.getEmail();
+            if(ifNoneMatch!=null){
+                String etag=cartETag(purchasingService.getCartVersion(email));
+                if(etagMatches(ifNoneMatch,etag)) return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
             }
-            return new ResponseEntity(new ResponseMessage("The request has been processed",cart),HttpStatus.OK);
+            CartView cart= purchasingService.getCart(email);
+            String message= cart.getStoredProductsInCart().size()<=0 ? "The cart is empty!" : "The request has been processed";
+            return ResponseEntity.ok().eTag(cartETag(cart.getVersion())).body(new ResponseMessage(message,cart));
         }catch (CartNotExistException e){
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
         }
     }//getCartByUser
 
+    private static String cartETag(long version) {
+        return "W/\""+version+"\"";
+    }
+
+    /*
+        If-None-Match può contenere più ETag separati da virgola o *. Confronto debole (RFC 7232): gli ETag
+        corrispondono se sono uguali togliendo il prefisso W/.
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        String opaque=weakOpaqueTag(etag);
+        for(String candidate:ifNoneMatch.split(",")){
+            candidate=candidate.trim();
+            if(candidate.equals("*") || weakOpaqueTag(candidate).equals(opaque)) return true;
+        }
+        return false;
+    }
+
+    private static String weakOpaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
 
     /*
         startDate e endDate possono essere null, in tal caso vengono restituiti tutti gli acquisti dell'utente loggato.
@@ -112,7 +189,7 @@ public class PurchasingController {
             @RequestParam (value = "endDate",required = false) @DateTimeFormat(pattern = "MM-dd-yyyy") Date endDate) {
 
         try {
-            List<Purchase>result = purchasingService.getPurchasesByUserInPeriod(Utils.getEmail(), startDate, endDate);
+            List<PurchaseView>result = purchasingService.getPurchasesByUserInPeriod(Utils.getEmail(), startDate, endDate);
             if (result.size() <= 0) {
                 return new ResponseEntity(new ResponseMessage("No result!",result), HttpStatus.OK);
             }
@@ -123,18 +200,100 @@ public class PurchasingController {
         }
     }//getPurchaseInPeriod
 
+    /*
+        Con l'header Idempotency-Key (per utente e carrello) un acquisto ripetuto, ad esempio dopo un timeout,
+        restituisce l'acquisto già creato senza eseguirlo di nuovo, con l'header Idempotency-Replayed.
+        Le richieste con la stessa chiave che arrivano durante l'esecuzione ne attendono l'esito.
+        Con il checkout asincrono (CheckoutQueueService) l'acquisto viene messo in coda: la risposta (202) contiene
+        l'ordine, il cui stato è restituito da /purchase/orders/{order}.
+        Con partial=true le righe non disponibili vengono saltate e restano nel carrello: la risposta è il
+        CheckoutReport con l'acquisto e le righe saltate. L'acquisto parziale è sempre sincrono.
+        Un conflitto di versione rimasto dopo i tentativi di @RetryOnConflict restituisce 409 con Retry-After,
+        come una richiesta ripetuta che attende troppo a lungo l'acquisto in corso con la stessa chiave.
+     */
     @PreAuthorize("hasAuthority('puntoinformatica-user')")
     @PostMapping("/purchase/{cart}")
-    public ResponseEntity createPurchase(@PathVariable(value = "cart") Cart cart) {
+    public ResponseEntity createPurchase(@PathVariable(value = "cart") Cart cart,
+                                         @RequestParam(value = "partial", required = false, defaultValue = "false") boolean partial,
+                                         @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        try{
+            if(idempotencyKey!=null && (idempotencyKey.isEmpty() || idempotencyKey.length()>MAX_IDEMPOTENCY_KEY_LENGTH))
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Invalid "+IDEMPOTENCY_KEY+" header!");
+            if(checkoutQueueService.isEnabled() && !partial) return enqueuePurchase(cart,idempotencyKey);
+            if(idempotencyKey==null) return purchase(cart,partial,null);
+            IdempotencyStore.Claim claim=idempotencyStore.claim(Utils.getEmail()+"/"+cart.getId()+"/"+idempotencyKey);
+            if(claim.isReplayed()){
+                HttpHeaders headers=new HttpHeaders();
+                headers.add("Idempotency-Replayed","true");
+                return new ResponseEntity(new ResponseMessage(
+                        "Purchase order has been processed!",purchasingService.getPurchase(claim.getId()))
+                        ,headers,HttpStatus.OK);
+            }
+            try{
+                return purchase(cart,partial,claim);
+            }finally {
+                claim.release();
+            }
+        }catch (QuantityProductUnvailableException | CartIsEmptyException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
+        }catch (OptimisticLockingFailureException | OptimisticLockException | PurchaseInProgressException e){
+            return ConflictResponse.of();
+        }
+    }//createPurchase
+
+    /*
+        claim (se non null) viene completato con l'acquisto creato. Un acquisto parziale senza righe disponibili
+        non crea nulla e non completa la chiave.
+     */
+    private ResponseEntity purchase(Cart cart, boolean partial, IdempotencyStore.Claim claim) throws QuantityProductUnvailableException, CartIsEmptyException {
+        //le modifiche in memoria del carrello vengono scritte prima che inizi la transazione dell'acquisto
+        //e il carrello resta bloccato fino alla sua fine
         try{
+            purchasingService.holdCart(cart.getId());
+        }catch (RuntimeException e){
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,"Unable to save the cart, retry later!",e);
+        }
+        try{
+            return purchaseHeld(cart,partial,claim);
+        }finally {
+            purchasingService.releaseCart(cart.getId());
+        }
+    }//purchase
+
+    private ResponseEntity purchaseHeld(Cart cart, boolean partial, IdempotencyStore.Claim claim) throws QuantityProductUnvailableException, CartIsEmptyException {
+        if(!partial){
             Purchase result=purchasingService.addPurchase(cart);
+            if(claim!=null) claim.complete(result.getId());
             return new ResponseEntity(new ResponseMessage(
                     "Purchase order has been processed!",result)
                     ,HttpStatus.OK);
-        }catch (QuantityProductUnvailableException | CartIsEmptyException e){
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
         }
-    }//createPurchase
+        CheckoutReport report=purchasingService.addPartialPurchase(cart);
+        if(report.getPurchase()==null)
+            return new ResponseEntity(new ResponseMessage("No product in the cart is available!",report),HttpStatus.OK);
+        if(claim!=null) claim.complete(report.getPurchase().getId());
+        String message= report.getSkipped().isEmpty() ? "Purchase order has been processed!" : "Purchase order has been partially processed!";
+        return new ResponseEntity(new ResponseMessage(message,report),HttpStatus.OK);
+    }//purchaseHeld
+
+    private ResponseEntity enqueuePurchase(Cart cart, String idempotencyKey) {
+        String email=Utils.getEmail();
+        CheckoutOrder order=checkoutQueueService.submit(email,cart.getId(),
+                idempotencyKey==null ? null : email+"/"+cart.getId()+"/"+idempotencyKey);
+        if(order==null) throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,"Too many purchase orders, retry later!");
+        return new ResponseEntity(new ResponseMessage("Purchase order has been queued!",order),HttpStatus.ACCEPTED);
+    }//enqueuePurchase
+
+
+    @PreAuthorize("hasAuthority('puntoinformatica-user')")
+    @GetMapping("/purchase/orders/{order}")
+    public ResponseEntity getPurchaseOrder(@PathVariable(value = "order") String orderId) {
+        CheckoutOrder order=checkoutQueueService.getOrder(orderId);
+        if(order==null || !order.getBuyer().equals(Utils.getEmail()))
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND,"Purchase order not found!");
+        String message= order.getState()==CheckoutOrder.State.PENDING ? "Purchase order is pending" : "Purchase order has been processed!";
+        return new ResponseEntity(new ResponseMessage(message,order),HttpStatus.OK);
+    }//getPurchaseOrder
 
 
 }
@@ -4,7 +4,10 @@ package it.carmelogug.puntoinformatica.controllers.rest;
 import it.carmelogug.puntoinformatica.entities.store.Product;
 import it.carmelogug.puntoinformatica.entities.store.Store;
 import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.services.StoreInventoryService;
 import it.carmelogug.puntoinformatica.services.StoreService;
+import it.carmelogug.puntoinformatica.support.InventoryReport;
+import it.carmelogug.puntoinformatica.support.PurgeJob;
 import it.carmelogug.puntoinformatica.support.ResponseMessage;
 
 import it.carmelogug.puntoinformatica.support.exceptions.Product.ProductIsBannedException;
@@ -14,7 +17,10 @@ import it.carmelogug.puntoinformatica.support.exceptions.Store.StoreIsBannedExce
 import it.carmelogug.puntoinformatica.support.exceptions.Store.StoreNotExistException;
 import it.carmelogug.puntoinformatica.support.exceptions.StoredProduct.StoredProductAlreadyExistException;
 import it.carmelogug.puntoinformatica.support.exceptions.StoredProduct.StoredProductNotExistException;
+import it.carmelogug.puntoinformatica.support.retry.ConflictResponse;
+import it.carmelogug.puntoinformatica.support.views.OfferView;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 
@@ -23,10 +29,13 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.persistence.OptimisticLockException;
 import javax.validation.Valid;
 import javax.validation.constraints.Positive;
 import javax.validation.constraints.PositiveOrZero;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 
@@ -37,6 +46,9 @@ public class StoreController {
     @Autowired
     private StoreService storeService;
 
+    @Autowired
+    private StoreInventoryService storeInventoryService;
+
     @PreAuthorize("hasAuthority('puntoinformatica-admin')")
     @PostMapping
     public ResponseEntity createStore(@RequestBody @Valid Store store){
@@ -61,9 +73,25 @@ public class StoreController {
             return new ResponseEntity<>(new ResponseMessage("Store has been banned",removedStore),HttpStatus.OK);
         }catch (StoreNotExistException e){
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Store not exist!",e);
+        }catch (OptimisticLockingFailureException | OptimisticLockException e){
+            return ConflictResponse.of();
         }
     }//banStore
 
+    /*
+        Avanzamento della rimozione dei prodotti di uno store bannato, quando il ban l'ha eseguita in background.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @GetMapping("/{store}/ban_status")
+    public ResponseEntity getBanStatus(@PathVariable(value = "store") Store store){
+        if(store==null) throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Store not exist!");
+        PurgeJob job=storeService.getBanJob(store);
+        if(job==null){
+            return new ResponseEntity<>(new ResponseMessage("No background removal for this store!"),HttpStatus.OK);
+        }
+        return new ResponseEntity<>(new ResponseMessage("Request processed!",job),HttpStatus.OK);
+    }//getBanStatus
+
     @PreAuthorize("hasAuthority('puntoinformatica-admin')")
     @PutMapping("/{store}")
     public ResponseEntity unbanStore(@PathVariable(value = "store") Store store){
@@ -72,6 +100,8 @@ public class StoreController {
             return new ResponseEntity<>(new ResponseMessage("Store has been unbanned",updatedStore),HttpStatus.OK);
         }catch (StoreNotExistException e){
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Store not exist!",e);
+        }catch (OptimisticLockingFailureException | OptimisticLockException e){
+            return ConflictResponse.of();
         }
     }//unBanStore
 
@@ -117,9 +147,31 @@ public class StoreController {
         }catch (StoredProductAlreadyExistException | ProductIsBannedException | StoreIsBannedException | StoreNotExistException |
                 ProductNotExistException e){
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
+        }catch (OptimisticLockingFailureException | OptimisticLockException e){
+            return ConflictResponse.of();
         }
     }//addStoredProduct
 
+    /*
+        Riconciliazione dell'inventario: il body è lo stato completo (productId, quantity, price) dello store in CSV o NDJSON.
+        Vengono applicate solo le differenze, i prodotti non presenti nel body vengono rimossi dallo store
+        (solo se nessuna riga è stata scartata). Un body senza righe viene rifiutato.
+        Restituisce il numero di prodotti inseriti, aggiornati, rimossi, invariati, in conflitto e le righe scartate.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @PutMapping(value = "/{store}/inventory", consumes = {StoreInventoryService.CSV, StoreInventoryService.NDJSON})
+    public ResponseEntity reconcileInventory(@PathVariable(value = "store") Store store, InputStream body,
+                                             @RequestHeader("Content-Type") String contentType){
+        try{
+            InventoryReport report=storeInventoryService.reconcile(store,body,contentType);
+            return new ResponseEntity<>(new ResponseMessage("Inventory reconciled!",report),HttpStatus.OK);
+        }catch (StoreNotExistException | StoreIsBannedException | IllegalArgumentException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
+        }catch (IOException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"Unable to read the request body!",e);
+        }
+    }//reconcileInventory
+
     @PreAuthorize("hasAuthority('puntoinformatica-admin')")
     @PutMapping("/{store}/{product}")
     public ResponseEntity updateStoredProduct(@PathVariable(value = "store") Store store, @PathVariable(value = "product") Product product,
@@ -127,11 +179,29 @@ public class StoreController {
         try{
             StoredProduct updatedProduct=storeService.updateStoredProduct(store,product,quantity,price);
             return new ResponseEntity<>(new ResponseMessage("StoredProduct updated successful to the Store!", updatedProduct),HttpStatus.OK);
+        }catch (OptimisticLockingFailureException | OptimisticLockException e){
+            return ConflictResponse.of();
         }catch ( StoredProductNotExistException | RuntimeException e){
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
         }
     }//updateStoredProduct
 
+    /*
+        active=true: la quantità del prodotto passa in memoria e gli acquisti non bloccano la riga sul db.
+        active=false: le vendite vengono scritte sul db e il prodotto torna al funzionamento normale.
+     */
+    @PreAuthorize("hasAuthority('puntoinformatica-admin')")
+    @PutMapping("/{store}/{product}/flash_sale")
+    public ResponseEntity setFlashSale(@PathVariable(value = "store") Store store, @PathVariable(value = "product") Product product,
+                                       @RequestParam boolean active){
+        try{
+            StoredProduct result= active ? storeService.enableFlashSale(store,product) : storeService.disableFlashSale(store,product);
+            return new ResponseEntity<>(new ResponseMessage(active ? "Flash sale started!" : "Flash sale stopped!", result),HttpStatus.OK);
+        }catch (StoredProductNotExistException e){
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
+        }
+    }//setFlashSale
+
     @PreAuthorize("hasAuthority('puntoinformatica-admin')")
     @DeleteMapping("/{store}/{product}")
     public ResponseEntity deleteStoreProduct(@PathVariable(value = "store") Store store, @PathVariable(value = "product") Product product){
@@ -143,18 +213,25 @@ public class StoreController {
 
         }catch ( StoredProductNotExistException e){
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,e.getMessage(),e);
+        }catch (OptimisticLockingFailureException | OptimisticLockException e){
+            return ConflictResponse.of();
         }
     }//deleteStoreProduct
 
 
+    /*
+        cheapest: se true restituisce solo l'offerta con il prezzo più basso tra quelle che soddisfano i filtri.
+     */
     @PreAuthorize("hasAuthority('puntoinformatica-user')")
     @GetMapping("/storedProducts/search/getByvarParams")
     public ResponseEntity getByStoreAndProductAndPriceAndAvailable(
             @RequestBody(required = false) Store store,
             @RequestParam(required = true) int product_id,
-            @RequestParam(required = false) Double price, @RequestParam(required = false, defaultValue = "false") Boolean onlyAvailable){
+            @RequestParam(required = false) Double price, @RequestParam(required = false, defaultValue = "false") Boolean onlyAvailable,
+            @RequestParam(required = false, defaultValue = "false") Boolean cheapest){
 
-        List<StoredProduct> result=storeService.showStoredProductsByStoreAndProductAndPriceAndQuantity(store,product_id,price,(onlyAvailable) ? 0 :  null);
+        List<OfferView> result=storeService.showStoredProductsByStoreAndProductAndPriceAndQuantity(
+                store,product_id,price,(onlyAvailable) ? 0 :  null,(cheapest) ? 1 : Integer.MAX_VALUE);
         if(result.size()==0){
             return new ResponseEntity<>(new ResponseMessage("No result!",result),HttpStatus.OK);
         }
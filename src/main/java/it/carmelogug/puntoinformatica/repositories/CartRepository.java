@@ -2,10 +2,42 @@ package it.carmelogug.puntoinformatica.repositories;
 
 import it.carmelogug.puntoinformatica.entities.User;
 import it.carmelogug.puntoinformatica.entities.purchasing.Cart;
+import it.carmelogug.puntoinformatica.support.views.CartView;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.Collection;
+import java.util.List;
 
 public interface CartRepository extends JpaRepository<Cart,Integer> {
 
     Cart findCartByBuyer(User buyer);
     boolean existsByBuyer(User buyer);
+
+    /*
+        Versione del carrello, per rispondere alle richieste condizionali senza caricarlo.
+     */
+    @Query("SELECT c.version FROM Cart AS c WHERE c.id = :id")
+    Long findVersionById(int id);
+
+    /*
+        Righe per CartView: carrello, acquirente e prodotti nel carrello con store e prodotto, in una sola query.
+     */
+    @Query("SELECT "+CartView.SELECT_COLUMNS+" " +
+            "FROM Cart AS c JOIN c.buyer AS u " +
+            "       LEFT JOIN c.storedProductsInCart AS spic LEFT JOIN spic.storedProduct AS sp " +
+            "       LEFT JOIN sp.store AS s LEFT JOIN sp.product AS p " +
+            "WHERE c.id = :id " +
+            "ORDER BY spic.id")
+    List<Object[]> findCartViewById(int id);
+
+    /*
+        Incrementa la versione dei carrelli che contengono almeno uno dei prodotti indicati,
+        così gli acquisti concorrenti su quei carrelli falliscono con un conflitto di versione.
+     */
+    @Modifying
+    @Query("UPDATE Cart AS c SET c.version = c.version + 1 " +
+            "WHERE c.id IN (SELECT spic.cart.id FROM StoredProductInCart AS spic WHERE spic.storedProduct.id IN :storedProducts)")
+    int incrementVersionByStoredProducts(Collection<Integer> storedProducts);
 }
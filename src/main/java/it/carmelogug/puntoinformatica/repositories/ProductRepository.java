@@ -1,11 +1,18 @@
 package it.carmelogug.puntoinformatica.repositories;
 
 import it.carmelogug.puntoinformatica.entities.store.Product;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
 @Repository
 public interface ProductRepository extends JpaRepository<Product,Integer> {
@@ -35,4 +42,38 @@ public interface ProductRepository extends JpaRepository<Product,Integer> {
 
     boolean existsByBarCodeAndTypeAndCategory(long barCode, Product.Type type, Product.Category category);
 
+    /*
+        Chiavi (barCode,type,category) di tutti i prodotti, per l'import massivo.
+     */
+    @Query("SELECT p.barCode, p.type, p.category FROM Product AS p")
+    List<Object[]> findAllKeys();
+
+
+    /*
+        Numero, id massimo e somma degli id dei prodotti non bannati, per verificare che uno snapshot
+        in memoria sia ancora valido senza leggere i nomi.
+     */
+    @Query("SELECT COUNT(p), COALESCE(MAX(p.id), 0), COALESCE(SUM(p.id), 0) FROM Product AS p WHERE p.banned = false")
+    List<Object[]> watermarkOfNotBanned();
+
+
+    /*
+        Id non bannati tra quelli passati, per validare in blocco i prodotti di un inventario.
+     */
+    @Query("SELECT p.id FROM Product AS p WHERE p.id IN :ids AND p.banned = false")
+    List<Integer> findNotBannedIds(Collection<Integer> ids);
+
+
+    /*
+        Paginazione keyset su product_id: la pagina successiva parte dall'ultimo id restituito.
+     */
+    List<Product> findByIdGreaterThanOrderByIdAsc(int id, Pageable pageable);
+
+    /*
+        Lettura dell'intero catalogo a blocchi di fetch-size righe, da consumare all'interno di una transazione.
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+    @Query("SELECT p FROM Product AS p ORDER BY p.id ASC")
+    Stream<Product> streamAllOrderById();
+
 }
@@ -2,6 +2,7 @@ package it.carmelogug.puntoinformatica.repositories;
 
 import it.carmelogug.puntoinformatica.entities.purchasing.Purchase;
 import it.carmelogug.puntoinformatica.entities.User;
+import it.carmelogug.puntoinformatica.support.views.PurchaseView;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 
@@ -18,4 +19,17 @@ public interface PurchaseRepository extends JpaRepository<Purchase,Integer> {
             "order by p.purchaseTime DESC ")
     List<Purchase> getPurchasesByBuyerAndPurchaseTimeBetweenStartDateAndEndDate(User user, Date startDate,Date endDate);
 
+    /*
+        Righe per PurchaseView: acquisti del periodo con acquirente e prodotti acquistati, in una sola query.
+     */
+    @Query("SELECT "+PurchaseView.SELECT_COLUMNS+" " +
+            "FROM Purchase AS pu JOIN pu.buyer AS u " +
+            "       LEFT JOIN pu.productsInPurchase AS pip " +
+            "       LEFT JOIN pip.store AS s LEFT JOIN pip.product AS p " +
+            "WHERE (u.id = :userId) AND " +
+            "       (pu.purchaseTime >= :startDate ) AND " +
+            "       (pu.purchaseTime <= :endDate) " +
+            "ORDER BY pu.purchaseTime DESC, pu.id, pip.id")
+    List<Object[]> findPurchaseViewsByBuyerInPeriod(int userId, Date startDate, Date endDate);
+
 }
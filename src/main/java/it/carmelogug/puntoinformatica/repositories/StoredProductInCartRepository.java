@@ -4,6 +4,10 @@ import it.carmelogug.puntoinformatica.entities.purchasing.Cart;
 import it.carmelogug.puntoinformatica.entities.purchasing.StoredProductInCart;
 import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.Collection;
 
 public interface StoredProductInCartRepository extends JpaRepository<StoredProductInCart,Integer> {
 
@@ -11,4 +15,22 @@ public interface StoredProductInCartRepository extends JpaRepository<StoredProdu
     StoredProductInCart findStoredProductInCartByCartAndStoredProduct(Cart cart, StoredProduct storedProduct);
     StoredProductInCart findStoredProductInCartById(int id);
 
+    @Modifying
+    @Query("DELETE FROM StoredProductInCart AS spic WHERE spic.storedProduct.id IN :storedProducts")
+    int deleteByStoredProducts(Collection<Integer> storedProducts);
+
+    /*
+        Svuota il carrello dopo l'acquisto con un solo DELETE.
+     */
+    @Modifying
+    @Query("DELETE FROM StoredProductInCart AS spic WHERE spic.cart.id = :cart")
+    int deleteByCart(int cart);
+
+    /*
+        Rimuove le righe comprate dopo un acquisto parziale.
+     */
+    @Modifying
+    @Query("DELETE FROM StoredProductInCart AS spic WHERE spic.id IN :ids")
+    int deleteByIds(Collection<Integer> ids);
+
 }
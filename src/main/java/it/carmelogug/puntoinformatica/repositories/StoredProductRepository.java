@@ -7,10 +7,13 @@ import it.carmelogug.puntoinformatica.entities.store.Product;
 import it.carmelogug.puntoinformatica.entities.store.Store;
 
 import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.support.views.OfferView;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -30,4 +33,64 @@ public interface StoredProductRepository extends JpaRepository<StoredProduct,Int
             "       (sp.quantity > :quantity OR :quantity IS NULL )" +
             "ORDER BY sp.price ASC ")
     List<StoredProduct> advSearchByStoreAndProductAndPriceAndQuantity(Store store, Product p, Double price, Integer quantity);
+
+
+    /*
+        Righe per OfferView: la ricerca sopra con store e prodotto in una sola query.
+     */
+    @Query("SELECT "+OfferView.SELECT_COLUMNS+" " +
+            "FROM StoredProduct AS sp JOIN sp.store AS s JOIN sp.product AS p " +
+            "WHERE  (s.id = :store OR :store IS NULL) AND " +
+            "       (p.id = :product) AND " +
+            "       (sp.price <= :price OR :price IS NULL ) AND " +
+            "       (sp.quantity > :quantity OR :quantity IS NULL ) " +
+            "ORDER BY sp.price ASC ")
+    List<Object[]> advSearchOfferViews(Integer store, int product, Double price, Integer quantity);
+
+
+    /*
+        (id, prodotto, store, prezzo, quantità) di tutte le offerte, per costruire il listino in memoria.
+     */
+    @Query("SELECT sp.id, sp.product.id, sp.store.id, sp.price, sp.quantity, sp.version " +
+            "FROM StoredProduct AS sp " +
+            "WHERE sp.product IS NOT NULL AND sp.store IS NOT NULL " +
+            "ORDER BY sp.product.id, sp.price, sp.id")
+    List<Object[]> findAllOffers();
+
+    /*
+        Id dei prodotti di uno store o di un prodotto in tutti gli store, usati dal ban.
+     */
+    @Query("SELECT sp.id FROM StoredProduct AS sp WHERE sp.store = :store ORDER BY sp.id")
+    List<Integer> findIdsByStore(Store store);
+
+    @Query("SELECT sp.id FROM StoredProduct AS sp WHERE sp.product = :product ORDER BY sp.id")
+    List<Integer> findIdsByProduct(Product product);
+
+    /*
+        (id, store, prodotto, store bannato) dei prodotti rimasti di store o prodotti bannati,
+        per riprendere all'avvio le rimozioni interrotte da un arresto.
+     */
+    @Query("SELECT sp.id, sp.store.id, sp.product.id, sp.store.banned " +
+            "FROM StoredProduct AS sp " +
+            "WHERE sp.store.banned = true OR sp.product.banned = true " +
+            "ORDER BY sp.id")
+    List<Object[]> findLeftoversOfBanned();
+
+    /*
+        (id, prodotto, quantità, prezzo, versione) dei prodotti di uno store, per la riconciliazione dell'inventario.
+     */
+    @Query("SELECT sp.id, sp.product.id, sp.quantity, sp.price, sp.version " +
+            "FROM StoredProduct AS sp " +
+            "WHERE sp.store = :store AND sp.product IS NOT NULL")
+    List<Object[]> findInventoryByStore(Store store);
+
+    /*
+        (id, store, prodotto) delle righe indicate, per gli eventi di rimozione.
+     */
+    @Query("SELECT sp.id, sp.store.id, sp.product.id FROM StoredProduct AS sp WHERE sp.id IN :ids")
+    List<Object[]> findStoreAndProductIdsByIds(Collection<Integer> ids);
+
+    @Modifying
+    @Query("DELETE FROM StoredProduct AS sp WHERE sp.id IN :ids")
+    int deleteByIds(Collection<Integer> ids);
 }
@@ -2,13 +2,22 @@ package it.carmelogug.puntoinformatica.repositories;
 
 import it.carmelogug.puntoinformatica.entities.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 @Repository
 public interface UserRepository extends JpaRepository<User, Integer> {
 
     User findUserByEmail(String email);
 
+    /*
+        (id utente, id carrello) dell'utente con questa email, id carrello null se non ne ha uno.
+     */
+    @Query("SELECT u.id, c.id FROM User AS u LEFT JOIN u.cart AS c WHERE u.email = :email")
+    List<Object[]> findIdentityByEmail(String email);
+
 
 
 }
\ No newline at end of file
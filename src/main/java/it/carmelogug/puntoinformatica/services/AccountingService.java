@@ -4,6 +4,7 @@ import it.carmelogug.puntoinformatica.entities.User;
 import it.carmelogug.puntoinformatica.entities.purchasing.Cart;
 import it.carmelogug.puntoinformatica.repositories.CartRepository;
 import it.carmelogug.puntoinformatica.repositories.UserRepository;
+import it.carmelogug.puntoinformatica.support.cache.IdentityCache;
 import it.carmelogug.puntoinformatica.support.authentication.Utils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -18,23 +19,31 @@ public class AccountingService {
 
 
     private CartRepository cartRepository;
+
+
+    private IdentityCache identityCache;
     @Autowired
-    public AccountingService(UserRepository userRepository, CartRepository cartRepository){
+    public AccountingService(UserRepository userRepository, CartRepository cartRepository, IdentityCache identityCache){
         this.userRepository = userRepository;
         this.cartRepository = cartRepository;
+        this.identityCache = identityCache;
     }
 
     @Transactional(readOnly = false, isolation= Isolation.READ_COMMITTED)
     public User addAndgetUser(String email,String first_name,String last_name){
         User user=userRepository.findUserByEmail(email);
+        Cart cart;
         if(user==null){
             user=new User(email,first_name,last_name);
             user=userRepository.save(user);
             //Ogni volta che viene creato un utente, creo il carrello associato
-            Cart cart=new Cart();
+            cart=new Cart();
             cart.setBuyer(user);
-            cartRepository.save(cart);
+            cart=cartRepository.save(cart);
         }
+        else cart=user.getCart();
+        //le richieste successive dell'utente risolvono email -> (utente, carrello) senza query
+        identityCache.put(email,user.getId(),cart==null ? null : cart.getId());
         return user;
     }
 
@@ -0,0 +1,216 @@
+package it.carmelogug.puntoinformatica.services;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import it.carmelogug.puntoinformatica.support.CheckoutOrder;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Checkout asincrono a gruppi, attivo con puntoinformatica.checkout.async.enabled.
+
+    L'acquisto viene messo in coda (al più queue-capacity ordini) e la richiesta riceve subito l'id dell'ordine,
+    il cui stato è consultabile con getOrder per retention-seconds. workers thread svuotano la coda: ognuno prende
+    gli ordini presenti (al più batch-size) e li scrive con PurchasingService.addPurchases in una sola transazione,
+    così sotto carico molti acquisti condividono un commit. Se il commit del gruppo fallisce gli ordini vengono
+    ritentati uno per uno.
+
+    La coda è in memoria: gli ordini non ancora scritti si perdono con un arresto improvviso
+    (lo stato resta PENDING fino alla scadenza). All'arresto ordinato la coda viene svuotata.
+ */
+@Service
+@Log4j2
+public class CheckoutQueueService {
+
+    private PurchasingService purchasingService;
+
+    private boolean enabled;
+
+    private int batchSize;
+
+    private final BlockingQueue<CheckoutOrder> queue;
+
+    private final Cache<String,CheckoutOrder> orders;
+
+    private volatile boolean running=true;
+
+    private final ExecutorService workers;
+
+    private final LongAdder batches=new LongAdder();
+    private final LongAdder completed=new LongAdder();
+    private final LongAdder failed=new LongAdder();
+    private final LongAdder rejected=new LongAdder();
+    private final LongAdder batchFailures=new LongAdder();
+
+
+    @Autowired
+    public CheckoutQueueService(PurchasingService purchasingService,
+                                @Value("${puntoinformatica.checkout.async.enabled:false}") boolean enabled,
+                                @Value("${puntoinformatica.checkout.async.workers:2}") int workerCount,
+                                @Value("${puntoinformatica.checkout.async.batch-size:50}") int batchSize,
+                                @Value("${puntoinformatica.checkout.async.queue-capacity:10000}") int queueCapacity,
+                                @Value("${puntoinformatica.checkout.async.retention-seconds:3600}") long retentionSeconds) {
+        this.purchasingService = purchasingService;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1,batchSize);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1,queueCapacity));
+        this.orders = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(retentionSeconds))
+                .build();
+        AtomicInteger threadCount=new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1,workerCount),r -> {
+            Thread t=new Thread(r,"checkout-worker-"+threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        if(enabled) for(int i=0; i<Math.max(1,workerCount); i++) workers.execute(this::work);
+    }
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /*
+        Mette in coda l'acquisto del carrello. Con una chiave di idempotenza (già legata a utente e carrello)
+        l'id dell'ordine è derivato dalla chiave e un invio ripetuto restituisce l'ordine esistente.
+        null se la coda è piena.
+     */
+    public CheckoutOrder submit(String buyer, int cartId, String idempotencyKey) {
+        String id= idempotencyKey==null ? UUID.randomUUID().toString()
+                : UUID.nameUUIDFromBytes(idempotencyKey.getBytes(StandardCharsets.UTF_8)).toString();
+        CheckoutOrder order=new CheckoutOrder(id,cartId,buyer);
+        CheckoutOrder existing=orders.asMap().putIfAbsent(id,order);
+        if(existing!=null) return existing;
+        if(!running || !queue.offer(order)){
+            orders.invalidate(id);
+            rejected.increment();
+            return null;
+        }
+        return order;
+    }
+
+    public CheckoutOrder getOrder(String id) {
+        return orders.getIfPresent(id);
+    }
+
+    public Map<String,Object> stats() {
+        Map<String,Object> result=new LinkedHashMap<>();
+        result.put("enabled",enabled);
+        result.put("queued",queue.size());
+        result.put("batches",batches.sum());
+        result.put("completed",completed.sum());
+        result.put("failed",failed.sum());
+        result.put("rejected",rejected.sum());
+        result.put("batchFailures",batchFailures.sum());
+        return result;
+    }
+
+    @PreDestroy
+    public void close() {
+        running=false;
+        workers.shutdown();
+        try{
+            workers.awaitTermination(30,TimeUnit.SECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+
+    /*
+        Ciclo dei worker: il primo ordine viene atteso, gli altri presi senza attesa. Il gruppo cresce da solo
+        quando gli ordini arrivano più velocemente dei commit.
+     */
+    private void work() {
+        List<CheckoutOrder> batch=new ArrayList<>(batchSize);
+        while(running || !queue.isEmpty()){
+            try{
+                CheckoutOrder first=queue.poll(200,TimeUnit.MILLISECONDS);
+                if(first==null) continue;
+                batch.add(first);
+                queue.drainTo(batch,batchSize-1);
+                process(batch);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                return;
+            }catch (RuntimeException e){
+                log.error("Checkout batch failed: {}",e.getMessage());
+                for(CheckoutOrder order:batch) if(order.getState()==CheckoutOrder.State.PENDING) order.failed(e.getMessage());
+            }finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<CheckoutOrder> batch) {
+        batches.increment();
+        //i carrelli vengono scritti e bloccati prima della transazione del gruppo: un carrello non scritto fa fallire solo il suo ordine
+        for(Iterator<CheckoutOrder> it=batch.iterator(); it.hasNext(); ){
+            CheckoutOrder order=it.next();
+            try{
+                purchasingService.holdCart(order.getCartId());
+            }catch (RuntimeException e){
+                it.remove();
+                failed.increment();
+                order.failed("Unable to save the cart, retry later!");
+            }
+        }
+        if(batch.isEmpty()) return;
+        try{
+            purchase(batch);
+        }finally {
+            for(CheckoutOrder order:batch) purchasingService.releaseCart(order.getCartId());
+        }
+    }
+
+    private void purchase(List<CheckoutOrder> batch) {
+        try{
+            purchasingService.addPurchases(batch);
+            batch.forEach(this::publish);
+            return;
+        }catch (RuntimeException e){
+            batchFailures.increment();
+            log.warn("Checkout batch of {} orders rolled back, retrying one by one: {}",batch.size(),e.getMessage());
+        }
+        for(CheckoutOrder order:batch){
+            try{
+                purchasingService.addPurchases(Collections.singletonList(order));
+                publish(order);
+            }catch (RuntimeException e){
+                failed.increment();
+                order.failed(e.getMessage());
+            }
+        }
+    }
+
+    private void publish(CheckoutOrder order) {
+        order.publish();
+        if(order.getState()==CheckoutOrder.State.COMPLETED) completed.increment();
+        else failed.increment();
+    }
+
+}
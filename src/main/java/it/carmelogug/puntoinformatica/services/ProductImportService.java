@@ -0,0 +1,251 @@
+package it.carmelogug.puntoinformatica.services;
+
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.repositories.ProductRepository;
+import it.carmelogug.puntoinformatica.support.ImportReport;
+import it.carmelogug.puntoinformatica.support.Utilities;
+import it.carmelogug.puntoinformatica.support.events.ProductChangedEvent;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+
+
+/*
+    Import massivo di prodotti da CSV o NDJSON.
+
+    Il file viene letto riga per riga: ogni riga è validata con i vincoli di Product e scartata se
+    (barCode,type,category) è già presente nel db o in una riga precedente.
+    Le righe valide vengono inserite a blocchi di batch-size righe, ogni blocco con un batch JDBC
+    nella propria transazione, quindi in memoria resta al più un blocco oltre alle chiavi già viste.
+ */
+@Service
+@Log4j2
+public class ProductImportService {
+
+    public static final String CSV="text/csv";
+    public static final String NDJSON="application/x-ndjson";
+
+    private static final String[] CSV_COLUMNS={"name","type","category","barCode","description","url","urlImage"};
+
+    private static final String INSERT_PRODUCT=
+            "INSERT INTO punto_informatica.products " +
+            "(product_name, type, category, bar_code, is_banned, description, url_product, url_image) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+
+    private ProductRepository productRepository;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private TransactionTemplate transactionTemplate;
+
+    private Validator validator;
+
+    private ObjectMapper objectMapper;
+
+    private ApplicationEventPublisher eventPublisher;
+
+    private int batchSize;
+
+    @Autowired
+    public ProductImportService(ProductRepository productRepository, JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                Validator validator, ObjectMapper objectMapper, ApplicationEventPublisher eventPublisher,
+                                @Value("${puntoinformatica.import.batch-size:1000}") int batchSize) {
+        this.productRepository = productRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.validator = validator;
+        this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+        this.batchSize = batchSize;
+    }
+
+
+    /*
+        contentType è CSV (prima riga di intestazione con le colonne di CSV_COLUMNS, in qualsiasi ordine) o NDJSON.
+     */
+    public ImportReport importProducts(InputStream body, String contentType) throws IOException {
+        long start=System.currentTimeMillis();
+        boolean csv=contentType!=null && contentType.startsWith(CSV);
+        ImportReport report=new ImportReport();
+        Set<String> seenKeys=existingKeys();
+        List<Product> chunk=new ArrayList<>(batchSize);
+        List<Long> chunkRows=new ArrayList<>(batchSize);
+
+        try(BufferedReader reader=new BufferedReader(new InputStreamReader(body,StandardCharsets.UTF_8))){
+            Map<String,Integer> header=null;
+            String line;
+            long row=0;
+            while((line=reader.readLine())!=null){
+                row++;
+                if(line.isBlank()) continue;
+                if(csv && header==null){
+                    header=parseHeader(line);
+                    continue;
+                }
+                report.rowRead();
+                Product product;
+                try{
+                    product= csv ? fromCsv(line,header) : fromJson(line);
+                }catch (IllegalArgumentException e){
+                    report.invalid(row,e.getMessage());
+                    continue;
+                }
+                Set<ConstraintViolation<Product>> violations=validator.validate(product);
+                if(!violations.isEmpty()){
+                    report.invalid(row,violations.iterator().next().getMessage());
+                    continue;
+                }
+                if(!seenKeys.add(key(product.getBarCode(),product.getType(),product.getCategory()))){
+                    report.duplicate(row);
+                    continue;
+                }
+                chunk.add(product);
+                chunkRows.add(row);
+                if(chunk.size()>=batchSize) flush(chunk,chunkRows,seenKeys,report);
+            }
+        }
+        if(!chunk.isEmpty()) flush(chunk,chunkRows,seenKeys,report);
+        report.finish(start);
+        log.info("Product import: {} rows, {} inserted, {} duplicates, {} invalid in {} ms",
+                report.getRows(),report.getInserted(),report.getDuplicates(),report.getInvalid(),report.getElapsedMillis());
+        return report;
+    }
+
+
+
+    /*
+        Inserimento di un blocco
+     */
+    private void flush(List<Product> chunk, List<Long> chunkRows, Set<String> seenKeys, ImportReport report) {
+        try{
+            transactionTemplate.execute(status -> jdbcTemplate.execute((ConnectionCallback<Void>) con -> {
+                try(PreparedStatement ps=con.prepareStatement(INSERT_PRODUCT,new String[]{"product_id"})){
+                    for(Product p:chunk){
+                        ps.setString(1,p.getName());
+                        ps.setString(2,p.getType().name());
+                        ps.setString(3,p.getCategory().name());
+                        ps.setLong(4,p.getBarCode());
+                        ps.setBoolean(5,p.isBanned());
+                        setNullableString(ps,6,p.getDescription());
+                        setNullableString(ps,7,p.getUrl());
+                        setNullableString(ps,8,p.getUrlImage());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    try(ResultSet keys=ps.getGeneratedKeys()){
+                        int i=0;
+                        while(keys.next()) chunk.get(i++).setId(keys.getInt(1));
+                    }
+                }
+                return null;
+            }));
+            report.inserted(chunk.size());
+            for(Product p:chunk) eventPublisher.publishEvent(new ProductChangedEvent(p));
+        }catch (DataAccessException e){
+            log.warn("Product import chunk failed: {}",e.getMostSpecificCause().getMessage());
+            for(int i=0; i<chunk.size(); i++){
+                Product p=chunk.get(i);
+                seenKeys.remove(key(p.getBarCode(),p.getType(),p.getCategory()));
+                report.invalid(chunkRows.get(i),"Insert failed: "+e.getMostSpecificCause().getMessage());
+            }
+        }
+        chunk.clear();
+        chunkRows.clear();
+    }
+
+    private Set<String> existingKeys() {
+        Set<String> result=new HashSet<>();
+        for(Object[] k:productRepository.findAllKeys()){
+            result.add(key((Long) k[0],(Product.Type) k[1],(Product.Category) k[2]));
+        }
+        return result;
+    }
+
+    private static String key(Long barCode, Product.Type type, Product.Category category) {
+        return barCode+":"+type+":"+category;
+    }
+
+    private static void setNullableString(PreparedStatement ps, int index, String value) throws SQLException {
+        if(value==null) ps.setNull(index,Types.VARCHAR);
+        else ps.setString(index,value);
+    }
+
+
+
+    /*
+        Parsing delle righe
+     */
+    private Product fromJson(String line) throws IllegalArgumentException {
+        try{
+            Product p=objectMapper.readValue(line,Product.class);
+            p.setId(null);
+            return p;
+        }catch (JsonProcessingException e){
+            throw new IllegalArgumentException("Malformed JSON: "+e.getOriginalMessage());
+        }
+    }
+
+    private static Map<String,Integer> parseHeader(String line) {
+        Map<String,Integer> result=new HashMap<>();
+        List<String> columns=Utilities.parseCsvLine(line);
+        for(int i=0; i<columns.size(); i++) result.put(columns.get(i).trim(),i);
+        return result;
+    }
+
+    private static Product fromCsv(String line, Map<String,Integer> header) throws IllegalArgumentException {
+        List<String> fields=Utilities.parseCsvLine(line);
+        Map<String,String> values=new HashMap<>();
+        for(String column:CSV_COLUMNS){
+            Integer index=header.get(column);
+            if(index!=null && index<fields.size() && !fields.get(index).isEmpty()) values.put(column,fields.get(index));
+        }
+        Product p=new Product();
+        p.setName(values.get("name"));
+        p.setDescription(values.get("description"));
+        p.setUrl(values.get("url"));
+        p.setUrlImage(values.get("urlImage"));
+        try{
+            if(values.containsKey("type")) p.setType(Product.Type.valueOf(values.get("type").trim().toUpperCase()));
+        }catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("Unknown type: "+values.get("type"));
+        }
+        try{
+            if(values.containsKey("category")) p.setCategory(Product.Category.valueOf(values.get("category").trim()));
+        }catch (IllegalArgumentException e){
+            throw new IllegalArgumentException("Unknown category: "+values.get("category"));
+        }
+        try{
+            if(values.containsKey("barCode")) p.setBarCode(Long.parseLong(values.get("barCode").trim()));
+        }catch (NumberFormatException e){
+            throw new IllegalArgumentException("Invalid barCode: "+values.get("barCode"));
+        }
+        return p;
+    }
+
+}
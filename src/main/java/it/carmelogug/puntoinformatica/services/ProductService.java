@@ -2,22 +2,33 @@ package it.carmelogug.puntoinformatica.services;
 
 
 import it.carmelogug.puntoinformatica.entities.store.Product;
-import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
 import it.carmelogug.puntoinformatica.repositories.ProductRepository;
 import it.carmelogug.puntoinformatica.repositories.StoredProductRepository;
+import it.carmelogug.puntoinformatica.support.KeysetPage;
+import it.carmelogug.puntoinformatica.support.PurgeJob;
+import it.carmelogug.puntoinformatica.support.Utilities;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import it.carmelogug.puntoinformatica.support.events.ProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.search.ProductNameSuggester;
+import it.carmelogug.puntoinformatica.support.search.ProductSearchIndex;
+import it.carmelogug.puntoinformatica.support.search.ProductSearchResult;
 import it.carmelogug.puntoinformatica.support.exceptions.Product.ProductAlreadyExistException;
 import it.carmelogug.puntoinformatica.support.exceptions.Product.ProductNotExistException;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.persistence.EntityManager;
-import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Service
 public class ProductService {
@@ -27,10 +38,32 @@ public class ProductService {
 
     private StoredProductRepository storedProductRepository;
 
+
+    private StoredProductPurgeService storedProductPurgeService;
+
+
+    private ProductSearchIndex productSearchIndex;
+
+
+    private ProductNameSuggester productNameSuggester;
+
+
+    private EntityCache entityCache;
+
+
+    private ApplicationEventPublisher eventPublisher;
+
     @Autowired
-    public ProductService(ProductRepository productRepository, StoredProductRepository storedProductRepository) {
+    public ProductService(ProductRepository productRepository, StoredProductRepository storedProductRepository,
+                          StoredProductPurgeService storedProductPurgeService, ProductSearchIndex productSearchIndex, ProductNameSuggester productNameSuggester,
+                          EntityCache entityCache, ApplicationEventPublisher eventPublisher) {
         this.productRepository = productRepository;
         this.storedProductRepository = storedProductRepository;
+        this.storedProductPurgeService = storedProductPurgeService;
+        this.productSearchIndex = productSearchIndex;
+        this.productNameSuggester = productNameSuggester;
+        this.entityCache = entityCache;
+        this.eventPublisher = eventPublisher;
     }
 
     @PersistenceContext
@@ -49,6 +82,7 @@ public class ProductService {
             throw new ProductAlreadyExistException();
         }
         Product result=productRepository.save(product);
+        eventPublisher.publishEvent(new ProductChangedEvent(result));
         return result;
     }
 
@@ -57,26 +91,35 @@ public class ProductService {
         Product currProduct = entityManager.find(Product.class,product.getId());
         if(currProduct==null) throw new ProductNotExistException();
 
-
-        for(StoredProduct sp:currProduct.getStoredProducts()){
-            entityManager.lock(sp,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-            storedProductRepository.delete(sp);
-        }
+        //rimozione set-based dagli store (in background se il prodotto è presente in molti store)
+        storedProductPurgeService.purge(banJobKey(currProduct),storedProductRepository.findIdsByProduct(currProduct));
         currProduct.setBanned(true);
+        eventPublisher.publishEvent(new ProductChangedEvent(currProduct));
         return currProduct; //ritorno l'oggetto rimosso
     }
 
+    /*
+        Stato della rimozione in background dagli store dopo il ban, null se il ban non ne ha avviata una.
+     */
+    public PurgeJob getBanJob(Product product) {
+        return storedProductPurgeService.getJob(banJobKey(product));
+    }
+
+    private static String banJobKey(Product product) {
+        return "product-"+product.getId();
+    }
+
     @Transactional(readOnly = false,isolation = Isolation.READ_COMMITTED)
     public Product unBanProduct(Product product) throws ProductNotExistException {
         Product currProduct = entityManager.find(Product.class,product.getId());
         if(currProduct==null) throw new ProductNotExistException();
         currProduct.setBanned(false);
+        eventPublisher.publishEvent(new ProductChangedEvent(currProduct));
         return currProduct; //ritorno l'oggetto rimosso
     }
 
-    @Transactional(readOnly = true)
     public Product searchProductById(int id) throws ProductNotExistException {
-        Product result=productRepository.findProductById(id);
+        Product result=entityCache.findProductById(id);
         if(result==null){
             throw new ProductNotExistException();
         }
@@ -96,16 +139,70 @@ public class ProductService {
         return  productRepository.findAll();
     }
 
+    /*
+        Pagina di al più size prodotti successivi al cursore (null per la prima pagina).
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<Product> showProductsPage(String cursor, int size) throws IllegalArgumentException {
+        int afterId=Utilities.decodeCursor(cursor);
+        List<Product> result=productRepository.findByIdGreaterThanOrderByIdAsc(afterId,PageRequest.of(0,size+1));
+        if(result.size()<=size) return new KeysetPage<>(result,null);
+        result=result.subList(0,size);
+        return new KeysetPage<>(result,Utilities.encodeCursor(result.get(size-1).getId()));
+    }
+
+    /*
+        Passa tutti i prodotti al consumer leggendoli a blocchi: ogni prodotto viene staccato dal contesto
+        di persistenza subito dopo l'uso, così la memoria resta costante qualunque sia la dimensione del catalogo.
+     */
+    @Transactional(readOnly = true)
+    public void streamAllProducts(Consumer<Product> consumer) {
+        try(Stream<Product> products=productRepository.streamAllOrderById()){
+            products.forEach(p -> {
+                consumer.accept(p);
+                entityManager.detach(p);
+            });
+        }
+    }
+
+    /*
+        Nomi di prodotti non bannati con una parola che inizia con prefix, vuota finché il trie non è pronto.
+     */
+    public List<String> suggestProductNames(String prefix, int limit) {
+        if(!productNameSuggester.isReady()) return Collections.emptyList();
+        return productNameSuggester.suggest(prefix,limit);
+    }
+
     @Transactional(readOnly = true)
     public List<Product> showProductsByName(String name) {
         return productRepository.findProductsByNameContaining(name);
     }
 
-    @Transactional(readOnly = true)
+    /*
+        Risposta servita dall'indice a trigrammi se abilitato (puntoinformatica.search.index.enabled) e già costruito,
+        altrimenti dalla query JPA. Non è transazionale per non occupare una connessione quando risponde l'indice.
+     */
     public List<Product> showProductsByNameAndTypeAndCategory(String name,Product.Type type,Product.Category category){
+        if(productSearchIndex.isReady()){
+            List<Product> result=productSearchIndex.search(name,type,category);
+            if(result!=null) return result;
+        }
         return productRepository.advSearchByNameAndTypeAndCategory(name,type,category);
     }
 
+    /*
+        Come showProductsByNameAndTypeAndCategory, con in più i conteggi per Type e Category.
+        Senza indice i conteggi vengono calcolati scorrendo una sola volta i prodotti che soddisfano il filtro sul nome.
+     */
+    public ProductSearchResult showProductsByNameAndTypeAndCategoryWithFacets(String name,Product.Type type,Product.Category category){
+        if(productSearchIndex.isReady()){
+            ProductSearchResult result=productSearchIndex.searchWithFacets(name,type,category);
+            if(result!=null) return result;
+        }
+        List<Product> nameMatches=productRepository.advSearchByNameAndTypeAndCategory(name,null,null);
+        return ProductSearchResult.fromNameMatches(nameMatches,type,category);
+    }
+
 
 
 }
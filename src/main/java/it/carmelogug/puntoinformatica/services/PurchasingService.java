@@ -7,10 +7,28 @@ import it.carmelogug.puntoinformatica.entities.purchasing.Purchase;
 import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
 import it.carmelogug.puntoinformatica.entities.User;
 import it.carmelogug.puntoinformatica.repositories.*;
+import it.carmelogug.puntoinformatica.support.CheckoutOrder;
+import it.carmelogug.puntoinformatica.support.CheckoutReport;
+import it.carmelogug.puntoinformatica.support.Utilities;
+import it.carmelogug.puntoinformatica.support.cache.IdentityCache;
+import it.carmelogug.puntoinformatica.support.cart.CartEngine;
+import it.carmelogug.puntoinformatica.support.cart.CartOperation;
+import it.carmelogug.puntoinformatica.support.cart.StockReservations;
+import it.carmelogug.puntoinformatica.support.events.CartChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.retry.RetryOnConflict;
+import it.carmelogug.puntoinformatica.support.stock.FlashSaleStock;
+import it.carmelogug.puntoinformatica.support.views.CartView;
+import it.carmelogug.puntoinformatica.support.views.PurchaseView;
 import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.*;
 import it.carmelogug.puntoinformatica.support.exceptions.StoredProduct.StoredProductNotExistException;
 import it.carmelogug.puntoinformatica.support.exceptions.User.UserNotFoundException;
+import org.hibernate.Session;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
@@ -19,14 +37,35 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.persistence.EntityManager;
 import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Savepoint;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Map;
 
 import java.util.List;
 
 @Service
 public class PurchasingService {
 
+    private static final String INSERT_PRODUCT_IN_PURCHASE=
+            "INSERT INTO punto_informatica.products_in_purchase " +
+            "(quantity, price, related_purchase, store, product) " +
+            "VALUES (?, ?, ?, ?, ?)";
+
+    //decremento condizionato: nessuna riga se la quantità disponibile non basta. La versione viene incrementata
+    //come in un aggiornamento tramite entità
+    private static final String DECREMENT_QUANTITY=
+            "UPDATE punto_informatica.stored_products SET quantity = quantity - ?, version = version + 1 " +
+            "WHERE id = ? AND quantity >= ? RETURNING quantity, version";
 
 
 
@@ -42,68 +81,337 @@ public class PurchasingService {
 
     private StoredProductInCartRepository storedProductInCartRepository;
 
+
+    private StoredProductRepository storedProductRepository;
+
+
+    private CartEngine cartEngine;
+
+
+    private IdentityCache identityCache;
+
+
+    private StockReservations stockReservations;
+
+
+    private FlashSaleStock flashSaleStock;
+
+
+    private ApplicationEventPublisher eventPublisher;
+
+
+    private JdbcTemplate jdbcTemplate;
+
+
+    private boolean atomicStockDecrement;
+
     @Autowired
     public PurchasingService(PurchaseRepository purchaseRepository, ProductInPurchaseRepository productInPurchaseRepository,
-                             CartRepository cartRepository, UserRepository userRepository, StoredProductInCartRepository storedProductInCartRepository){
+                             CartRepository cartRepository, UserRepository userRepository, StoredProductInCartRepository storedProductInCartRepository,
+                             StoredProductRepository storedProductRepository, CartEngine cartEngine, IdentityCache identityCache,
+                             StockReservations stockReservations, FlashSaleStock flashSaleStock, ApplicationEventPublisher eventPublisher, JdbcTemplate jdbcTemplate,
+                             @Value("${puntoinformatica.checkout.atomic-stock-decrement:true}") boolean atomicStockDecrement){
         this.purchaseRepository = purchaseRepository;
         this.productInPurchaseRepository = productInPurchaseRepository;
         this.cartRepository = cartRepository;
         this.userRepository = userRepository;
         this.storedProductInCartRepository = storedProductInCartRepository;
+        this.storedProductRepository = storedProductRepository;
+        this.cartEngine = cartEngine;
+        this.identityCache = identityCache;
+        this.stockReservations = stockReservations;
+        this.flashSaleStock = flashSaleStock;
+        this.eventPublisher = eventPublisher;
+        this.jdbcTemplate = jdbcTemplate;
+        this.atomicStockDecrement = atomicStockDecrement;
     }
 
     @PersistenceContext
     private EntityManager entityManager;
 
+    /*
+        Scrive sul db le modifiche in memoria del carrello (CartEngine). Da chiamare prima dell'acquisto e fuori
+        dalla sua transazione: la scrittura usa una propria transazione, che dentro quella dell'acquisto terrebbe
+        occupate due connessioni. Se la scrittura fallisce l'acquisto non deve proseguire, perché leggerebbe
+        un carrello diverso da quello visto dal cliente.
+     */
+    public void flushCart(int cartId) {
+        cartEngine.flush(cartId);
+    }
+
+    /*
+        Come flushCart, ma il carrello resta bloccato fino a releaseCart: le modifiche durante l'acquisto vengono
+        rifiutate (CartInCheckoutException). releaseCart va chiamato dopo la fine della transazione dell'acquisto,
+        anche se fallisce.
+     */
+    public void holdCart(int cartId) {
+        cartEngine.hold(cartId);
+    }
+
+    public void releaseCart(int cartId) {
+        cartEngine.release(cartId);
+    }
+
     /*
         Gestione acquisti
+
+        Le righe vengono elaborate in ordine di id del prodotto nello store, così checkout concorrenti
+        bloccano le stesse righe di stored_products sempre nello stesso ordine.
+        Con atomic-stock-decrement la quantità viene scalata con un solo UPDATE condizionato per riga
+        (DECREMENT_QUANTITY): checkout concorrenti sullo stesso prodotto si serializzano sul lock di riga
+        invece di fallire al commit con OptimisticLockException. Altrimenti le righe vengono bloccate con
+        OPTIMISTIC_FORCE_INCREMENT e la quantità viene controllata e scritta tramite l'entità.
+
+        Scritture: l'acquisto viene inserito una volta sola con prezzo totale e acquirente, i prodotti acquistati
+        con un batch JDBC (gli id IDENTITY impediscono il batch a Hibernate) e il carrello viene svuotato con un
+        solo DELETE. Le modifiche concorrenti alle righe del carrello sono rilevate dalla versione del carrello.
+
+        Le quantità sono già prenotate dal carrello (StockReservations): prima di scrivere vengono confermate,
+        e solo le righe con prenotazione scaduta vengono verificate di nuovo (in memoria). Un prodotto
+        prenotato da altri carrelli fa fallire l'acquisto prima di qualsiasi scrittura. Le prenotazioni
+        vengono rilasciate dopo il commit, con CartChangedEvent.
+
+        I prodotti in flash sale (FlashSaleStock) vengono scalati dal contatore in memoria invece che sul db:
+        la quantità sul db viene aggiornata in differita, listino e cache dopo ogni scrittura (FlashSaleStock).
      */
+    @RetryOnConflict
     @Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = QuantityProductUnvailableException.class)
     public Purchase addPurchase(Cart cart) throws QuantityProductUnvailableException, CartIsEmptyException {
+        List<Object> events=new ArrayList<>();
+        Purchase result=checkout(cart.getId(),false,null,events);
+        events.forEach(eventPublisher::publishEvent);
+        return result;
+    }
+
+    /*
+        Acquisto parziale: invece di annullare tutto l'acquisto per una riga non disponibile, la riga viene saltata.
+        Una riga non disponibile non ha scritto nulla (UPDATE condizionato che non aggiorna righe, contatore
+        della flash sale esaurito), quindi non serve annullare niente. Le righe disponibili vengono comprate e rimosse dal carrello,
+        quelle non disponibili (quantità, prenotazioni di altri carrelli, flash sale esaurita) restano nel carrello
+        e sono riportate nel CheckoutReport. Se nessuna riga è disponibile non viene creato alcun acquisto.
+     */
+    @RetryOnConflict
+    @Transactional(isolation = Isolation.READ_COMMITTED, rollbackFor = QuantityProductUnvailableException.class)
+    public CheckoutReport addPartialPurchase(Cart cart) throws QuantityProductUnvailableException, CartIsEmptyException {
+        CheckoutReport report=new CheckoutReport();
+        List<Object> events=new ArrayList<>();
+        report.purchased(checkout(cart.getId(),false,report,events));
+        events.forEach(eventPublisher::publishEvent);
+        return report;
+    }
+
+    /*
+        Checkout a gruppi (CheckoutQueueService): gli acquisti in coda vengono scritti in una sola transazione,
+        con un solo commit. Ogni acquisto è isolato da un savepoint JDBC, creato direttamente sulla connessione
+        della transazione (JpaTransactionManager non gestisce i savepoint): se fallisce (quantità non disponibile,
+        carrello vuoto) il db torna al savepoint, le vendite in flash sale vengono restituite e i suoi eventi
+        scartati, mentre gli altri acquisti del gruppo proseguono. Il carrello viene bloccato con
+        PESSIMISTIC_FORCE_INCREMENT e la quantità scalata sempre con l'UPDATE condizionato, così ogni scrittura
+        avviene dentro il savepoint e nessun incremento di versione resta in sospeso fino al commit.
+        Dopo ogni acquisto il persistence context viene svuotato.
+        Un errore del db rende la transazione inutilizzabile: il gruppo fallisce al commit e il chiamante
+        deve ritentare gli acquisti uno per uno. L'esito di ogni ordine va pubblicato solo dopo il commit.
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    public void addPurchases(List<CheckoutOrder> orders) {
+        Session session=entityManager.unwrap(Session.class);
+        Set<Integer> carts=new HashSet<>();
+        for(CheckoutOrder order:orders){
+            //lo stesso carrello due volte nel gruppo: il secondo acquisto troverebbe il carrello già svuotato
+            if(!carts.add(order.getCartId())){
+                order.outcome(null,new CartIsEmptyException());
+                continue;
+            }
+            int flashSaleMark=flashSaleStock.mark();
+            List<Object> events=new ArrayList<>();
+            Savepoint savepoint=null;
+            try{
+                savepoint=session.doReturningWork(Connection::setSavepoint);
+                Purchase purchase=checkout(order.getCartId(),true,null,events);
+                entityManager.flush();
+                Savepoint completed=savepoint;
+                session.doWork(con -> con.releaseSavepoint(completed));
+                events.forEach(eventPublisher::publishEvent);
+                order.outcome(purchase,null);
+            }catch (QuantityProductUnvailableException | CartIsEmptyException | RuntimeException e){
+                if(savepoint!=null){
+                    Savepoint failed=savepoint;
+                    session.doWork(con -> con.rollback(failed));
+                }
+                flashSaleStock.rollbackTo(flashSaleMark);
+                order.outcome(null,e);
+            }finally {
+                entityManager.clear();
+            }
+        }
+    }
+
+    /*
+        Corpo dell'acquisto, nella transazione del chiamante. Gli eventi vengono raccolti in events
+        e pubblicati dal chiamante, che può scartarli se l'acquisto viene annullato.
+        grouped: acquisto di un gruppo isolato da un savepoint (addPurchases).
+        report: se non null acquisto parziale (addPartialPurchase), null se nessuna riga è stata comprata.
+     */
+    private Purchase checkout(int cartId, boolean grouped, CheckoutReport report, List<Object> events) throws QuantityProductUnvailableException, CartIsEmptyException {
+        //riletto dal db: dopo un tentativo fallito il carrello passato come argomento è staccato
+        Cart cart=entityManager.find(Cart.class,cartId);
+        if(cart==null) throw new CartIsEmptyException();
         entityManager.refresh(cart);
 
         if(cart.getStoredProductsInCart().size()==0) throw new CartIsEmptyException();
 
-        entityManager.lock(cart,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
+        entityManager.lock(cart,grouped ? LockModeType.PESSIMISTIC_FORCE_INCREMENT : LockModeType.OPTIMISTIC_FORCE_INCREMENT);
+
+        List<StoredProductInCart> lines=new ArrayList<>(cart.getStoredProductsInCart());
+        lines.sort(Comparator.comparing(line -> line.getStoredProduct().getId()));
+        Map<Integer,Integer> quantities=new HashMap<>();
+        for(StoredProductInCart line:lines) quantities.merge(line.getStoredProduct().getId(),line.getQuantity(),Integer::sum);
+        //nell'acquisto parziale le prenotazioni sono confermate per prodotto: un prodotto non disponibile salta le sue righe
+        Map<Integer,String> unavailable=new HashMap<>();
+        if(report==null) stockReservations.reserve(cart.getId(),quantities);
+        else{
+            for(Map.Entry<Integer,Integer> e:quantities.entrySet()){
+                try{
+                    stockReservations.reserve(cart.getId(),Collections.singletonMap(e.getKey(),e.getValue()));
+                }catch (QuantityProductUnvailableException ex){
+                    unavailable.put(e.getKey(),ex.getMessage());
+                }
+            }
+        }
 
-        Purchase result=purchaseRepository.save(new Purchase());
+        List<ProductInPurchase> products=new ArrayList<>(lines.size());
+        List<Integer> purchasedLines=new ArrayList<>(lines.size());
         double totalPrice=0;
-        for(StoredProductInCart currp: cart.getStoredProductsInCart()){
-
-            entityManager.lock(currp,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-            entityManager.lock(currp.getStoredProduct(),LockModeType.OPTIMISTIC_FORCE_INCREMENT);
+        for(StoredProductInCart currp: lines){
 
-            StoredProduct storedProduct=currp.getStoredProduct();
-            int newQuantity=storedProduct.getQuantity()-currp.getQuantity();
-
-            if ( newQuantity<0){
-                throw new QuantityProductUnvailableException(
-                        "Quantity Product Unvailable!"+","+
-                                "Product: " + storedProduct.getId()+","+
-                                "Available: " + storedProduct.getQuantity()
-                );
+            StoredProduct storedProduct;
+            if(report==null) storedProduct=take(currp,atomicStockDecrement || grouped,events);
+            else if(unavailable.containsKey(currp.getStoredProduct().getId())){
+                report.skipped(currp,unavailable.get(currp.getStoredProduct().getId()));
+                continue;
+            }
+            else{
+                storedProduct=takeAvailable(currp,report,events);
+                if(storedProduct==null) continue;
             }
-            storedProduct.setQuantity(newQuantity);
+            purchasedLines.add(currp.getId());
 
             ProductInPurchase pip=new ProductInPurchase();
             pip.setQuantity(currp.getQuantity());
             pip.setPrice(currp.getQuantity()*storedProduct.getPrice());
             pip.setStore(storedProduct.getStore());
             pip.setProduct(storedProduct.getProduct());
-            pip.setPurchase(result);
-            productInPurchaseRepository.save(pip);//insert record in database
-            storedProductInCartRepository.delete(currp); //element has been sold
+            products.add(pip);
             totalPrice+= pip.getPrice();
         }
-        entityManager.refresh(result);
+        if(products.isEmpty()) return null;
+        Purchase result=new Purchase();
         result.setBuyer(cart.getBuyer());
         result.setPrice(totalPrice);
-        result=entityManager.merge(result);//update record in database
+        result=purchaseRepository.save(result);//insert record in database
+        insertProductsInPurchase(result,products);
+        result.setProductsInPurchase(products);
+        //elements have been sold
+        if(report==null) storedProductInCartRepository.deleteByCart(cart.getId());
+        else storedProductInCartRepository.deleteByIds(purchasedLines);
+        //dopo il commit il carrello in memoria viene ricaricato dal db
+        events.add(new CartChangedEvent(cart.getId()));
         return result;
     }
 
+    private StoredProduct take(StoredProductInCart line, boolean atomic, List<Object> events) throws QuantityProductUnvailableException {
+        if(flashSaleStock.take(line.getStoredProduct().getId(),line.getQuantity())) return line.getStoredProduct();
+        StoredProduct changed= atomic ? decrementStock(line) : decrementStockOptimistic(line);
+        events.add(new StoredProductChangedEvent(changed,false));
+        return line.getStoredProduct();
+    }
+
+    /*
+        Riga dell'acquisto parziale, sempre con l'UPDATE condizionato. null se la riga è stata saltata:
+        in quel caso né il db né il contatore della flash sale sono stati modificati.
+     */
+    private StoredProduct takeAvailable(StoredProductInCart line, CheckoutReport report, List<Object> events) {
+        try{
+            return take(line,true,events);
+        }catch (QuantityProductUnvailableException e){
+            report.skipped(line,e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+        Un solo statement per riga: l'entità della riga non viene riletta (prezzo, store e prodotto non cambiano
+        con l'UPDATE), quantità e versione restituite dall'UPDATE vanno nella copia pubblicata con l'evento.
+        Se la quantità non basta l'entità viene riletta per riportare la quantità disponibile.
+     */
+    private StoredProduct decrementStock(StoredProductInCart line) throws QuantityProductUnvailableException {
+        StoredProduct storedProduct=line.getStoredProduct();
+        List<StoredProduct> updated=jdbcTemplate.query(DECREMENT_QUANTITY,(rs,row) -> {
+            StoredProduct copy=Utilities.snapshot(storedProduct);
+            copy.setQuantity(rs.getInt(1));
+            copy.setVersion(rs.getLong(2));
+            return copy;
+        },line.getQuantity(),storedProduct.getId(),line.getQuantity());
+        if(updated.isEmpty()){
+            entityManager.refresh(storedProduct);
+            throw unavailable(storedProduct);
+        }
+        return updated.get(0);
+    }
+
+    private StoredProduct decrementStockOptimistic(StoredProductInCart line) throws QuantityProductUnvailableException {
+        entityManager.lock(line.getStoredProduct(),LockModeType.OPTIMISTIC_FORCE_INCREMENT);
+
+        StoredProduct storedProduct=line.getStoredProduct();
+        int newQuantity=storedProduct.getQuantity()-line.getQuantity();
+        if(newQuantity<0) throw unavailable(storedProduct);
+        storedProduct.setQuantity(newQuantity);
+        return storedProduct;
+    }
+
+    private void insertProductsInPurchase(Purchase purchase, List<ProductInPurchase> products) {
+        jdbcTemplate.execute((ConnectionCallback<Void>) con -> {
+            try(PreparedStatement ps=con.prepareStatement(INSERT_PRODUCT_IN_PURCHASE,new String[]{"id"})){
+                for(ProductInPurchase pip:products){
+                    pip.setPurchase(purchase);
+                    ps.setInt(1,pip.getQuantity());
+                    ps.setDouble(2,pip.getPrice());
+                    ps.setInt(3,purchase.getId());
+                    ps.setInt(4,pip.getStore().getId());
+                    ps.setInt(5,pip.getProduct().getId());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                try(ResultSet keys=ps.getGeneratedKeys()){
+                    int i=0;
+                    while(keys.next()) products.get(i++).setId(keys.getInt(1));
+                }
+            }
+            return null;
+        });
+    }
+
+    private static QuantityProductUnvailableException unavailable(StoredProduct storedProduct) {
+        return new QuantityProductUnvailableException(
+                "Quantity Product Unvailable!"+","+
+                        "Product: " + storedProduct.getId()+","+
+                        "Available: " + storedProduct.getQuantity()
+        );
+    }
+
+    /*
+        Acquisto già concluso, restituito alle richieste ripetute con la stessa Idempotency-Key.
+     */
+    @Transactional(readOnly = true)
+    public Purchase getPurchase(int id) {
+        return purchaseRepository.findById(id).orElse(null);
+    }
+
+    /*
+        Read model: l'utente viene risolto da IdentityCache, gli acquisti con i prodotti acquistati con una sola query.
+     */
     @Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
-    public List<Purchase> getPurchasesByUserInPeriod(String email, Date startDate, Date endDate) throws UserNotFoundException, DateWrongRangeException {
+    public List<PurchaseView> getPurchasesByUserInPeriod(String email, Date startDate, Date endDate) throws UserNotFoundException, DateWrongRangeException {
 
         if(endDate!=null) {
             Calendar c=Calendar.getInstance();
@@ -120,11 +428,9 @@ public class PurchasingService {
         if(startDate.after(endDate)) throw new DateWrongRangeException();
 
 
-        User currUser=userRepository.findUserByEmail(email);
-        if(currUser==null) throw new UserNotFoundException();
-        List<Purchase> result= purchaseRepository.getPurchasesByBuyerAndPurchaseTimeBetweenStartDateAndEndDate(currUser,startDate,endDate);
-
-        return result;
+        IdentityCache.Identity identity=identityCache.resolve(email);
+        if(identity==null) throw new UserNotFoundException();
+        return PurchaseView.of(purchaseRepository.findPurchaseViewsByBuyerInPeriod(identity.getUserId(),startDate,endDate));
     }
 
 
@@ -141,71 +447,52 @@ public class PurchasingService {
         Cart cart=new Cart();
         cart.setBuyer(currUser);
         cart=cartRepository.save(cart);
+        identityCache.put(currUser.getEmail(),currUser.getId(),cart.getId());
         return cart;
     }
-    @Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
-    public Cart getCart(String email) throws CartNotExistException {
-        User currUser=userRepository.findUserByEmail(email);
-        Cart currCart=cartRepository.findCartByBuyer(currUser);
-        if(currCart==null) throw new CartNotExistException();
-        return currCart;
-
+    /*
+        Servito dai carrelli in memoria (CartEngine), caricati con una sola query al primo accesso.
+     */
+    public CartView getCart(String email) throws CartNotExistException {
+        return cartEngine.getCart(email);
     }
 
+    /*
+        Versione del carrello, usata come ETag. Non carica le righe del carrello.
+     */
+    public long getCartVersion(String email) throws CartNotExistException {
+        return cartEngine.getVersion(email);
+    }
 
-    @Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
-    public Cart addStoredProductToCart(String email,StoredProduct storedProduct,int quantity) throws UserNotFoundException, StoredProductNotExistException, CartNotExistException {
-
-        User currUser=userRepository.findUserByEmail(email);
-        if(currUser==null) throw new UserNotFoundException();
 
-        storedProduct=entityManager.find(StoredProduct.class,storedProduct.getId());
-        if(storedProduct==null) throw new StoredProductNotExistException();
 
-        Cart currCart=cartRepository.findCartByBuyer(currUser);
-        if(currCart==null) throw new CartNotExistException();
+    /*
+        Le modifiche al carrello vengono applicate ai carrelli in memoria (CartEngine) e scritte sul db in differita.
+     */
+    public CartView addStoredProductToCart(String email,StoredProduct storedProduct,int quantity) throws StoredProductNotExistException, CartNotExistException,
+            QuantityProductUnvailableException, CartInCheckoutException {
+        if(storedProduct==null || storedProduct.getId()==null) throw new StoredProductNotExistException();
+        return cartEngine.addStoredProduct(email,storedProduct.getId(),quantity);
+    }
 
-        entityManager.lock(currCart,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-        StoredProductInCart addedElement=storedProductInCartRepository.findStoredProductInCartByCartAndStoredProduct(currCart,storedProduct);
-        if(addedElement!=null) {
-            entityManager.lock(addedElement,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-            int newQuantity= addedElement.getQuantity()+quantity;
-            addedElement.setQuantity(newQuantity);
-        }
-        else {
-            addedElement=new StoredProductInCart();
-            addedElement.setCart(currCart);
-            addedElement.setStoredProduct(storedProduct);
-            addedElement.setQuantity(quantity);
-        }
-        storedProductInCartRepository.save(addedElement);
-        entityManager.refresh(currCart);
-        return currCart;
+    /*
+        Più modifiche al carrello in una sola richiesta: applicate tutte o nessuna, con un solo incremento di versione.
+     */
+    public CartView applyCartOperations(String email, List<CartOperation> operations) throws CartNotExistException, StoredProductNotExistException,
+            StoredProductNotInCart, QuantityWrongException, QuantityProductUnvailableException, CartInCheckoutException {
+        return cartEngine.apply(email,operations);
     }
 
-    @Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
-    public Cart removeStoredProductFromCart(String email,StoredProductInCart storedProductInCart) throws CartNotExistException, StoredProductNotInCart {
-        StoredProductInCart spic=storedProductInCartRepository.findStoredProductInCartById(storedProductInCart.getId());
+    public CartView removeStoredProductFromCart(String email,StoredProductInCart storedProductInCart) throws CartNotExistException, StoredProductNotInCart,
+            CartInCheckoutException {
         if(storedProductInCart==null) throw new StoredProductNotInCart();
-        entityManager.lock(spic.getCart(),LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-        entityManager.lock(spic,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-        storedProductInCartRepository.delete(spic);
-        //restituisco il carrello aggiornato
-        User currUser=userRepository.findUserByEmail(email);
-        Cart currCart=cartRepository.findCartByBuyer(currUser);
-        return currCart;
+        return cartEngine.removeLine(email,storedProductInCart.getId());
     }
 
 
-    @Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
-    public Cart updateQuantityStoredProductInCart(StoredProductInCart storedProductInCart, int quantity) throws StoredProductNotInCart {
-        StoredProductInCart spic=storedProductInCartRepository.findStoredProductInCartById(storedProductInCart.getId());
+    public CartView updateQuantityStoredProductInCart(String email, StoredProductInCart storedProductInCart, int quantity) throws CartNotExistException, StoredProductNotInCart,
+            QuantityProductUnvailableException, CartInCheckoutException {
         if(storedProductInCart==null) throw new StoredProductNotInCart();
-        entityManager.lock(spic.getCart(),LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-        entityManager.lock(spic,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-        spic.setQuantity(quantity);
-        spic=storedProductInCartRepository.save(spic);
-        return spic.getCart();
-
+        return cartEngine.updateQuantity(email,storedProductInCart.getId(),quantity);
     }
 }
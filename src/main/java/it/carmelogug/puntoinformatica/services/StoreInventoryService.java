@@ -0,0 +1,369 @@
+package it.carmelogug.puntoinformatica.services;
+
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.repositories.ProductRepository;
+import it.carmelogug.puntoinformatica.repositories.StoreRepository;
+import it.carmelogug.puntoinformatica.repositories.StoredProductRepository;
+import it.carmelogug.puntoinformatica.support.InventoryReport;
+import it.carmelogug.puntoinformatica.support.Utilities;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.exceptions.Store.StoreIsBannedException;
+import it.carmelogug.puntoinformatica.support.exceptions.Store.StoreNotExistException;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+
+
+/*
+    Riconciliazione dell'inventario di uno store.
+
+    Il client invia lo stato completo (productId, quantity, price) dello store, in CSV o NDJSON.
+    Lo stato attuale viene letto con una sola query e confrontato con quello ricevuto:
+    vengono applicati solo gli inserimenti, gli aggiornamenti (prezzo o quantità diversi) e le rimozioni
+    (prodotti non più presenti nello stato ricevuto), a blocchi di batch-size righe, ogni blocco con un batch JDBC
+    nella propria transazione.
+    Aggiornamenti e rimozioni controllano la versione letta: una riga modificata nel frattempo da un'altra richiesta
+    viene riportata come conflitto e non sovrascritta né rimossa.
+    Se una riga del body è scartata lo stato ricevuto non è completo: le rimozioni non vengono applicate,
+    altrimenti il prodotto della riga scartata verrebbe tolto dallo store. Un body senza righe viene rifiutato.
+ */
+@Service
+@Log4j2
+public class StoreInventoryService {
+
+    public static final String CSV="text/csv";
+    public static final String NDJSON="application/x-ndjson";
+
+    private static final String INSERT_STORED_PRODUCT=
+            "INSERT INTO punto_informatica.stored_products (quantity, price, related_store, product_id, version) " +
+            "VALUES (?, ?, ?, ?, 0)";
+
+    private static final String UPDATE_STORED_PRODUCT=
+            "UPDATE punto_informatica.stored_products SET quantity = ?, price = ?, version = version + 1 " +
+            "WHERE id = ? AND version = ?";
+
+    //blocca le righe da rimuovere ancora alla versione letta, prima della rimozione
+    private static final String LOCK_STORED_PRODUCT=
+            "UPDATE punto_informatica.stored_products SET version = version + 1 WHERE id = ? AND version = ?";
+
+
+    private StoreRepository storeRepository;
+
+    private StoredProductRepository storedProductRepository;
+
+    private ProductRepository productRepository;
+
+    private StoredProductPurgeService storedProductPurgeService;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private TransactionTemplate transactionTemplate;
+
+    private ObjectMapper objectMapper;
+
+    private ApplicationEventPublisher eventPublisher;
+
+    private int batchSize;
+
+    @Autowired
+    public StoreInventoryService(StoreRepository storeRepository, StoredProductRepository storedProductRepository,
+                                 ProductRepository productRepository, StoredProductPurgeService storedProductPurgeService,
+                                 JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                 ObjectMapper objectMapper, ApplicationEventPublisher eventPublisher,
+                                 @Value("${puntoinformatica.inventory.batch-size:1000}") int batchSize) {
+        this.storeRepository = storeRepository;
+        this.storedProductRepository = storedProductRepository;
+        this.productRepository = productRepository;
+        this.storedProductPurgeService = storedProductPurgeService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+        this.batchSize = batchSize;
+    }
+
+
+    /*
+        contentType è CSV (prima riga di intestazione con le colonne productId, quantity, price in qualsiasi ordine) o NDJSON.
+     */
+    public InventoryReport reconcile(Store store, InputStream body, String contentType) throws IOException, StoreNotExistException, StoreIsBannedException {
+        long start=System.currentTimeMillis();
+        if(store==null) throw new StoreNotExistException();
+        Store currStore=storeRepository.findStoreById(store.getId());
+        if(currStore==null) throw new StoreNotExistException();
+        if(currStore.isBanned()) throw new StoreIsBannedException();
+
+        InventoryReport report=new InventoryReport();
+        Map<Integer,Line> desired=read(body,contentType!=null && contentType.startsWith(CSV),report);
+        if(report.getRows()==0) throw new IllegalArgumentException("The inventory is empty!");
+        boolean complete=report.getInvalid()==0;
+
+        //diff con lo stato attuale, letto con una sola query
+        List<Line> inserts=new ArrayList<>();
+        List<Line> updates=new ArrayList<>();
+        List<Line> deletes=new ArrayList<>();
+        for(Object[] row:storedProductRepository.findInventoryByStore(currStore)){
+            int id=(Integer) row[0], product=(Integer) row[1], quantity=(Integer) row[2];
+            double price=(Double) row[3];
+            Line line=desired.remove(product);
+            if(line==null) deletes.add(Line.existing(id,(Long) row[4],product,quantity,price));
+            else if(line.quantity==quantity && line.price==price) report.unchanged(1);
+            else{
+                line.id=id;
+                line.version=(Long) row[4];
+                updates.add(line);
+            }
+        }
+        inserts.addAll(desired.values());
+        inserts=existingProducts(inserts,report);
+
+        for(int from=0; from<inserts.size(); from+=batchSize)
+            insert(currStore,inserts.subList(from,Math.min(from+batchSize,inserts.size())),report);
+        for(int from=0; from<updates.size(); from+=batchSize)
+            update(currStore,updates.subList(from,Math.min(from+batchSize,updates.size())),report);
+        if(!complete && !deletes.isEmpty()){
+            report.deletionSkipped(deletes.size());
+            deletes.clear();
+        }
+        for(int from=0; from<deletes.size(); from+=batchSize)
+            delete(currStore,deletes.subList(from,Math.min(from+batchSize,deletes.size())),report);
+
+        report.finish(start);
+        log.info("Inventory of store {}: {} rows, {} inserted, {} updated, {} deleted, {} not deleted, {} unchanged, {} conflicts, {} invalid in {} ms",
+                currStore.getId(),report.getRows(),report.getInserted(),report.getUpdated(),report.getDeleted(),report.getNotDeleted(),
+                report.getUnchanged(),report.getConflicts(),report.getInvalid(),report.getElapsedMillis());
+        return report;
+    }
+
+
+
+    /*
+        Applicazione a blocchi, gli eventi vengono pubblicati dopo il commit di ogni blocco
+     */
+    private void insert(Store store, List<Line> chunk, InventoryReport report) {
+        int[] ids=transactionTemplate.execute(status -> jdbcTemplate.execute((ConnectionCallback<int[]>) con -> {
+            int[] result=new int[chunk.size()];
+            try(PreparedStatement ps=con.prepareStatement(INSERT_STORED_PRODUCT,new String[]{"id"})){
+                for(Line line:chunk){
+                    ps.setInt(1,line.quantity);
+                    ps.setDouble(2,line.price);
+                    ps.setInt(3,store.getId());
+                    ps.setInt(4,line.product);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                try(ResultSet keys=ps.getGeneratedKeys()){
+                    int i=0;
+                    while(keys.next()) result[i++]=keys.getInt(1);
+                }
+            }
+            return result;
+        }));
+        report.inserted(chunk.size());
+        for(int i=0; i<chunk.size(); i++){
+            Line line=chunk.get(i);
+            eventPublisher.publishEvent(new StoredProductChangedEvent(offer(ids[i],store,line.product,line.quantity,line.price,0),false));
+        }
+    }
+
+    private void update(Store store, List<Line> chunk, InventoryReport report) {
+        int[] counts=transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(UPDATE_STORED_PRODUCT,chunk,chunk.size(), (ps,line) -> {
+            ps.setInt(1,line.quantity);
+            ps.setDouble(2,line.price);
+            ps.setInt(3,line.id);
+            ps.setLong(4,line.version);
+        })[0]);
+        int updated=0;
+        for(int i=0; i<chunk.size(); i++){
+            Line line=chunk.get(i);
+            if(counts[i]==0){
+                report.conflict(line.row);
+                continue;
+            }
+            updated++;
+            eventPublisher.publishEvent(new StoredProductChangedEvent(offer(line.id,store,line.product,line.quantity,line.price,line.version+1),false));
+        }
+        report.updated(updated);
+    }
+
+    private void delete(Store store, List<Line> chunk, InventoryReport report) {
+        int[] counts=transactionTemplate.execute(status -> {
+            int[] locked=jdbcTemplate.batchUpdate(LOCK_STORED_PRODUCT,chunk,chunk.size(), (ps,line) -> {
+                ps.setInt(1,line.id);
+                ps.setLong(2,line.version);
+            })[0];
+            List<Integer> ids=new ArrayList<>(chunk.size());
+            for(int i=0; i<chunk.size(); i++) if(locked[i]>0) ids.add(chunk.get(i).id);
+            if(!ids.isEmpty()) storedProductPurgeService.purgeChunk(ids);
+            return locked;
+        });
+        //gli eventi di rimozione sono pubblicati da purgeChunk
+        int deleted=0;
+        for(int i=0; i<chunk.size(); i++){
+            if(counts[i]==0) report.deleteConflict(chunk.get(i).product);
+            else deleted++;
+        }
+        report.deleted(deleted);
+    }
+
+    /*
+        Scarta le righe da inserire il cui prodotto non esiste o è bannato.
+     */
+    private List<Line> existingProducts(List<Line> lines, InventoryReport report) {
+        Set<Integer> valid=new HashSet<>();
+        for(int from=0; from<lines.size(); from+=batchSize){
+            List<Integer> ids=new ArrayList<>();
+            for(Line line:lines.subList(from,Math.min(from+batchSize,lines.size()))) ids.add(line.product);
+            valid.addAll(productRepository.findNotBannedIds(ids));
+        }
+        List<Line> result=new ArrayList<>(lines.size());
+        for(Line line:lines){
+            if(valid.contains(line.product)) result.add(line);
+            else report.invalid(line.row,"Product not exist or is banned!");
+        }
+        return result;
+    }
+
+    /*
+        Le entità degli eventi hanno solo i campi usati dai listener: id, store, id del prodotto, quantità, prezzo
+        e la versione scritta (i listener ignorano gli eventi non più recenti di quelli già applicati).
+     */
+    private static StoredProduct offer(int id, Store store, int productId, int quantity, double price, long version) {
+        Product product=new Product();
+        product.setId(productId);
+        StoredProduct sp=new StoredProduct();
+        sp.setId(id);
+        sp.setStore(store);
+        sp.setProduct(product);
+        sp.setQuantity(quantity);
+        sp.setPrice(price);
+        sp.setVersion(version);
+        return sp;
+    }
+
+
+
+    /*
+        Parsing dello stato ricevuto
+     */
+    private Map<Integer,Line> read(InputStream body, boolean csv, InventoryReport report) throws IOException {
+        Map<Integer,Line> result=new LinkedHashMap<>();
+        try(BufferedReader reader=new BufferedReader(new InputStreamReader(body,StandardCharsets.UTF_8))){
+            int[] header=null;
+            String line;
+            long row=0;
+            while((line=reader.readLine())!=null){
+                row++;
+                if(line.isBlank()) continue;
+                if(csv && header==null){
+                    header=parseHeader(line);
+                    continue;
+                }
+                report.rowRead();
+                Line parsed;
+                try{
+                    parsed= csv ? fromCsv(row,line,header) : fromJson(row,line);
+                }catch (IllegalArgumentException e){
+                    report.invalid(row,e.getMessage());
+                    continue;
+                }
+                if(result.putIfAbsent(parsed.product,parsed)!=null) report.invalid(row,"Product listed more than once!");
+            }
+        }
+        return result;
+    }
+
+    private Line fromJson(long row, String line) throws IllegalArgumentException {
+        JsonNode node;
+        try{
+            node=objectMapper.readTree(line);
+        }catch (JsonProcessingException e){
+            throw new IllegalArgumentException("Malformed JSON: "+e.getOriginalMessage());
+        }
+        if(!node.path("productId").canConvertToInt() || !node.path("quantity").canConvertToInt() || !node.path("price").isNumber())
+            throw new IllegalArgumentException("productId, quantity and price are required!");
+        return Line.of(row,node.get("productId").asInt(),node.get("quantity").asInt(),node.get("price").asDouble());
+    }
+
+    /*
+        Posizione delle colonne productId, quantity e price.
+     */
+    private static int[] parseHeader(String line) {
+        List<String> columns=new ArrayList<>();
+        for(String column:Utilities.parseCsvLine(line)) columns.add(column.trim());
+        int[] result={columns.indexOf("productId"),columns.indexOf("quantity"),columns.indexOf("price")};
+        for(int index:result)
+            if(index<0) throw new IllegalArgumentException("Header must contain productId, quantity and price!");
+        return result;
+    }
+
+    private static Line fromCsv(long row, String line, int[] header) throws IllegalArgumentException {
+        List<String> fields=Utilities.parseCsvLine(line);
+        try{
+            return Line.of(row,Integer.parseInt(fields.get(header[0]).trim()),Integer.parseInt(fields.get(header[1]).trim()),
+                    Double.parseDouble(fields.get(header[2]).trim()));
+        }catch (NumberFormatException | IndexOutOfBoundsException e){
+            throw new IllegalArgumentException("productId, quantity and price are required!");
+        }
+    }
+
+
+
+    private static final class Line {
+
+        private long row;
+        private int product;
+        private int quantity;
+        private double price;
+
+        //riga esistente da aggiornare o rimuovere
+        private int id;
+        private long version;
+
+        static Line existing(int id, long version, int product, int quantity, double price) {
+            Line line=new Line();
+            line.id=id;
+            line.version=version;
+            line.product=product;
+            line.quantity=quantity;
+            line.price=price;
+            return line;
+        }
+
+        static Line of(long row, int product, int quantity, double price) throws IllegalArgumentException {
+            if(quantity<0) throw new IllegalArgumentException("Quantity must be positive or zero!");
+            if(!(price>0) || Double.isInfinite(price)) throw new IllegalArgumentException("Price must be positive!");
+            Line line=new Line();
+            line.row=row;
+            line.product=product;
+            line.quantity=quantity;
+            line.price=price;
+            return line;
+        }
+
+    }
+
+}
@@ -7,7 +7,16 @@ import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
 import it.carmelogug.puntoinformatica.repositories.ProductRepository;
 import it.carmelogug.puntoinformatica.repositories.StoreRepository;
 import it.carmelogug.puntoinformatica.repositories.StoredProductRepository;
+import it.carmelogug.puntoinformatica.support.PurgeJob;
 import it.carmelogug.puntoinformatica.support.Utilities;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import it.carmelogug.puntoinformatica.support.events.StoreChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.retry.RetryOnConflict;
+import it.carmelogug.puntoinformatica.support.search.PriceBookIndex;
+import it.carmelogug.puntoinformatica.support.search.StoreLocationIndex;
+import it.carmelogug.puntoinformatica.support.stock.FlashSaleStock;
+import it.carmelogug.puntoinformatica.support.views.OfferView;
 
 
 import it.carmelogug.puntoinformatica.support.exceptions.Product.ProductIsBannedException;
@@ -19,6 +28,7 @@ import it.carmelogug.puntoinformatica.support.exceptions.StoredProduct.StoredPro
 import it.carmelogug.puntoinformatica.support.exceptions.StoredProduct.StoredProductNotExistException;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
@@ -28,6 +38,7 @@ import javax.persistence.EntityManager;
 import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -43,15 +54,41 @@ public class StoreService {
 
     private ProductRepository productRepository;
 
+
+    private StoredProductPurgeService storedProductPurgeService;
+
+
+    private EntityCache entityCache;
+
+
+    private PriceBookIndex priceBookIndex;
+
+
+    private StoreLocationIndex storeLocationIndex;
+
+
+    private FlashSaleStock flashSaleStock;
+
+
+    private ApplicationEventPublisher eventPublisher;
+
     @PersistenceContext
     private EntityManager entityManager;
 
 
     @Autowired
-    public StoreService(StoreRepository storeRepository, StoredProductRepository storedProductRepository, ProductRepository productRepository) {
+    public StoreService(StoreRepository storeRepository, StoredProductRepository storedProductRepository, ProductRepository productRepository,
+                        StoredProductPurgeService storedProductPurgeService, EntityCache entityCache, PriceBookIndex priceBookIndex,
+                        StoreLocationIndex storeLocationIndex, FlashSaleStock flashSaleStock, ApplicationEventPublisher eventPublisher) {
         this.storeRepository = storeRepository;
         this.storedProductRepository = storedProductRepository;
         this.productRepository = productRepository;
+        this.storedProductPurgeService = storedProductPurgeService;
+        this.entityCache = entityCache;
+        this.priceBookIndex = priceBookIndex;
+        this.storeLocationIndex = storeLocationIndex;
+        this.flashSaleStock = flashSaleStock;
+        this.eventPublisher = eventPublisher;
     }
 
 
@@ -69,39 +106,61 @@ public class StoreService {
             throw new StoreAlreadyExistException();
         }
         store=storeRepository.save(store);
+        eventPublisher.publishEvent(new StoreChangedEvent(store));
         return store;
     }
 
+    @RetryOnConflict
     @Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
     public Store banStore(Store store) throws StoreNotExistException {
         Store currStore=storeRepository.findStoreById(store.getId());
         if(currStore==null) throw new StoreNotExistException();
-        if(currStore.getStoredProducts()!=null && currStore.getStoredProducts().size()>0)
 
-        for(StoredProduct sp:currStore.getStoredProducts()){
-            entityManager.lock(sp,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-            storedProductRepository.delete(sp);
-        }
+        //rimozione set-based dei prodotti dello store (in background se sono molti)
+        storedProductPurgeService.purge(banJobKey(currStore),storedProductRepository.findIdsByStore(currStore));
         currStore.setBanned(true);
+        eventPublisher.publishEvent(new StoreChangedEvent(currStore));
         return currStore;
     }
 
+    /*
+        Stato della rimozione in background dei prodotti dopo il ban, null se il ban non ne ha avviata una.
+     */
+    public PurgeJob getBanJob(Store store) {
+        return storedProductPurgeService.getJob(banJobKey(store));
+    }
+
+    private static String banJobKey(Store store) {
+        return "store-"+store.getId();
+    }
+
+    @RetryOnConflict
     @Transactional(readOnly = false, isolation = Isolation.READ_COMMITTED)
     public Store unbanStore(Store store) throws StoreNotExistException {
         Store currStore=storeRepository.findStoreById(store.getId());
         if(currStore==null) throw new StoreNotExistException();
         currStore.setBanned(false);
+        eventPublisher.publishEvent(new StoreChangedEvent(currStore));
         return currStore;
     }
 
-    @Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+    /*
+        Servita dall'indice in memoria (StoreLocationIndex) se pronto, con ricerca per prefisso sull'indirizzo.
+        Altrimenti, o se i parametri contengono wildcard del LIKE, usa la query JPA, a cui l'indirizzo
+        viene passato con un % finale per avere la stessa ricerca per prefisso.
+     */
     public List<Store> showStoresByCountryAndRegionAndCityAndProvinceAndAddress(String country, String region, String city,String province, String address) {
+        country=Utilities.upperCase(country,false);
+        region=Utilities.upperCase(region,false);
+        city=Utilities.upperCase(city,false);
+        province=Utilities.upperCase(province,false);
+        address=Utilities.upperCase(address,false);
+        if(storeLocationIndex.isReady()){
+            List<Store> result=storeLocationIndex.search(country,region,city,province,address);
+            if(result!=null) return result;
+        }
         return storeRepository.advSearchByCountryAndRegionAndCityAndProvinceAndAddress(
-                Utilities.upperCase(country,false),
-                Utilities.upperCase(region,false),
-                Utilities.upperCase(city,false),
-                Utilities.upperCase(province,false),
-                Utilities.upperCase(address,false));
+                country,region,city,province,address==null ? null : address+"%");
     }//showStoresByCountryAndRegionAndCityAndProvinceAndAddress
 
 
@@ -110,20 +169,34 @@ public class StoreService {
     /*
         +++Methods for managing stored products+++
     */
+    @RetryOnConflict
     @Transactional(readOnly = false,isolation = Isolation.READ_COMMITTED)
     public StoredProduct addStoredProduct(StoredProduct storedProduct) throws StoredProductAlreadyExistException, ProductIsBannedException, StoreIsBannedException, ProductNotExistException, StoreNotExistException {
         if(storedProduct.getStore()==null) throw new StoreNotExistException();
         if(storedProduct.getProduct()==null) throw new ProductNotExistException();
-        if(storedProduct.getStore().isBanned()) throw new StoreIsBannedException();
-        if(storedProduct.getProduct().isBanned()) throw new ProductIsBannedException();
+        //store e prodotto dei @PathVariable sono copie da EntityCache: vengono riletti nella transazione
+        Store store=entityManager.find(Store.class,storedProduct.getStore().getId());
+        Product product=entityManager.find(Product.class,storedProduct.getProduct().getId());
+        if(store==null) throw new StoreNotExistException();
+        if(product==null) throw new ProductNotExistException();
+        if(store.isBanned()) throw new StoreIsBannedException();
+        if(product.isBanned()) throw new ProductIsBannedException();
 
-        if(storedProductRepository.existsByStoreAndProduct(storedProduct.getStore(),storedProduct.getProduct()))
+        if(storedProductRepository.existsByStoreAndProduct(store,product))
             throw new StoredProductAlreadyExistException();
-        storedProduct=storedProductRepository.save(storedProduct);
-        return storedProduct;
+        //nuova entità a ogni tentativo: dopo un rollback l'argomento avrebbe già l'id assegnato dal primo
+        StoredProduct currSP=new StoredProduct();
+        currSP.setStore(store);
+        currSP.setProduct(product);
+        currSP.setQuantity(storedProduct.getQuantity());
+        currSP.setPrice(storedProduct.getPrice());
+        currSP=storedProductRepository.save(currSP);
+        eventPublisher.publishEvent(new StoredProductChangedEvent(currSP,false));
+        return currSP;
     }//addStoredProduct
 
 
+    @RetryOnConflict
     @Transactional(readOnly = false,isolation = Isolation.READ_COMMITTED)
     public StoredProduct updateStoredProduct(Store store, Product product, Integer quantity, Double price) throws StoredProductNotExistException {
         if(quantity==null && price==null){
@@ -136,36 +209,73 @@ public class StoreService {
         entityManager.lock(currSP,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
         if(quantity!=null) currSP.setQuantity(quantity);
         if(price!=null) currSP.setPrice(price);
+        eventPublisher.publishEvent(new StoredProductChangedEvent(currSP,false));
         return currSP;
     }//updateStoredProduct
 
 
 
 
+    /*
+        Flash sale: durante la vendita la quantità del prodotto è in memoria (FlashSaleStock) e viene scritta
+        sul db in differita, e listino e cache vengono aggiornati dopo ogni scrittura. Alla disattivazione
+        le vendite in corso vengono attese e tutte le vendite scritte.
+     */
+    public StoredProduct enableFlashSale(Store store, Product product) throws StoredProductNotExistException {
+        StoredProduct currSP=storedProductRepository.findStoredProductByStoreAndProduct(store,product);
+        if(currSP==null || !flashSaleStock.enable(currSP.getId())) throw new StoredProductNotExistException();
+        return currSP;
+    }//enableFlashSale
+
+    @Transactional(readOnly = false,isolation = Isolation.READ_COMMITTED)
+    public StoredProduct disableFlashSale(Store store, Product product) throws StoredProductNotExistException {
+        StoredProduct currSP=storedProductRepository.findStoredProductByStoreAndProduct(store,product);
+        if(currSP==null) throw new StoredProductNotExistException();
+        flashSaleStock.disable(currSP.getId());
+        //le vendite sono state scritte in un'altra transazione
+        entityManager.refresh(currSP);
+        eventPublisher.publishEvent(new StoredProductChangedEvent(currSP,false));
+        return currSP;
+    }//disableFlashSale
+
+
+    @RetryOnConflict
     @Transactional(readOnly = false,isolation = Isolation.READ_COMMITTED)
     public StoredProduct removeStoredProduct(Store store,Product product) throws StoredProductNotExistException{
         StoredProduct currStoredProduct=storedProductRepository.findStoredProductByStoreAndProduct(store,product);
         if(currStoredProduct==null) throw new StoredProductNotExistException();
         entityManager.lock(currStoredProduct,LockModeType.OPTIMISTIC_FORCE_INCREMENT);
         storedProductRepository.delete(currStoredProduct);
+        eventPublisher.publishEvent(new StoredProductChangedEvent(currStoredProduct,true));
         return currStoredProduct;
     }//removeStoredProduct
 
 
 
 
-    @Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
-    public List<StoredProduct> showStoredProductsByStoreAndProductAndPriceAndQuantity(
+    /*
+        Servita dal listino in memoria (PriceBookIndex) se pronto: store e prodotto delle offerte vengono da EntityCache.
+        Altrimenti usa una sola query di proiezione. Al più limit risultati ordinati per prezzo crescente.
+     */
+    public List<OfferView> showStoredProductsByStoreAndProductAndPriceAndQuantity(
             Store store,
             int product_id,
-            Double price,Integer quantity
+            Double price,Integer quantity,
+            int limit
     ){
-        List<StoredProduct> result;
-        Product product= productRepository.findProductById(product_id);
-
-        System.out.println(product);
-        result=storedProductRepository.advSearchByStoreAndProductAndPriceAndQuantity(store,product,price,quantity);
-
+        List<OfferView> result=new ArrayList<>();
+        Integer storeId= store==null ? null : store.getId();
+        if(priceBookIndex.isReady()){
+            for(PriceBookIndex.Offer offer:priceBookIndex.find(product_id,storeId,price,quantity,limit)){
+                result.add(OfferView.of(offer.getStoredProductId(),offer.getQuantity(),offer.getPrice(),
+                        entityCache.findStoreById(offer.getStoreId()),entityCache.findProductById(offer.getProductId())));
+            }
+            return result;
+        }
+        for(Object[] row:storedProductRepository.advSearchOfferViews(storeId,product_id,price,quantity)){
+            if(result.size()>=limit) break;
+            result.add(OfferView.of(row));
+        }
         return result;
     }//showSearchByStoreAndProductAndPriceAndQuantity
 
@@ -182,9 +292,8 @@ public class StoreService {
         return storeRepository.findAll();
     }
 
-    @Transactional(readOnly = true)
     public Store showStoreByStoreID(Integer storeID) throws StoreNotExistException {
-        Store store=storeRepository.findStoreById(storeID);
+        Store store=entityCache.findStoreById(storeID);
         if(store==null) throw new StoreNotExistException();
         return store;
     }
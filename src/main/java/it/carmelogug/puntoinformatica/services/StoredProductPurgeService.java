@@ -0,0 +1,205 @@
+package it.carmelogug.puntoinformatica.services;
+
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.repositories.CartRepository;
+import it.carmelogug.puntoinformatica.repositories.StoredProductInCartRepository;
+import it.carmelogug.puntoinformatica.repositories.StoredProductRepository;
+import it.carmelogug.puntoinformatica.support.PurgeJob;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/*
+    Rimozione dei prodotti dagli store con istruzioni set-based, usata dal ban di store e prodotti.
+
+    Per ogni blocco di id: incremento della versione dei carrelli che li contengono, delete delle righe
+    nei carrelli, delete dei prodotti. Se i prodotti da rimuovere sono al più chunk-size la rimozione avviene
+    nella transazione del ban, altrimenti dopo il commit del ban parte un job in background
+    che rimuove un blocco per transazione e il cui stato è consultabile con getJob.
+
+    Per ogni prodotto rimosso viene pubblicato StoredProductChangedEvent (removed), consegnato ai listener
+    (cache, listino, carrelli, prenotazioni, flash sale) dopo il commit del blocco.
+
+    I job sono in memoria: quelli terminati restano consultabili per job-retention-seconds e poi vengono rimossi.
+    Un job interrotto da un arresto viene ripreso all'avvio, cercando i prodotti ancora presenti
+    di store e prodotti bannati.
+ */
+@Service
+@Log4j2
+public class StoredProductPurgeService {
+
+    private CartRepository cartRepository;
+
+    private StoredProductInCartRepository storedProductInCartRepository;
+
+    private StoredProductRepository storedProductRepository;
+
+    private TransactionTemplate transactionTemplate;
+
+    private ApplicationEventPublisher eventPublisher;
+
+    private int chunkSize;
+
+    private long retentionMillis;
+
+    private final Map<String,PurgeJob> jobs=new ConcurrentHashMap<>();
+
+    private final ExecutorService executor=Executors.newSingleThreadExecutor(r -> {
+        Thread t=new Thread(r,"stored-product-purge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Autowired
+    public StoredProductPurgeService(CartRepository cartRepository, StoredProductInCartRepository storedProductInCartRepository,
+                                     StoredProductRepository storedProductRepository, PlatformTransactionManager transactionManager,
+                                     ApplicationEventPublisher eventPublisher,
+                                     @Value("${puntoinformatica.ban.chunk-size:1000}") int chunkSize,
+                                     @Value("${puntoinformatica.ban.job-retention-seconds:3600}") long retentionSeconds) {
+        this.cartRepository = cartRepository;
+        this.storedProductInCartRepository = storedProductInCartRepository;
+        this.storedProductRepository = storedProductRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.eventPublisher = eventPublisher;
+        this.chunkSize = chunkSize;
+        this.retentionMillis = retentionSeconds*1000;
+    }
+
+
+    /*
+        Da chiamare all'interno della transazione del ban.
+        Restituisce true se i prodotti sono stati rimossi subito, false se la rimozione è stata affidata a un job.
+     */
+    public boolean purge(String key, List<Integer> storedProductIds) {
+        if(storedProductIds.isEmpty()) return true;
+        if(storedProductIds.size()<=chunkSize){
+            purgeChunk(storedProductIds);
+            return true;
+        }
+        PurgeJob job=new PurgeJob(key,storedProductIds.size());
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                start(job,storedProductIds);
+            }
+        });
+        return false;
+    }
+
+    public PurgeJob getJob(String key) {
+        evictFinished();
+        return jobs.get(key);
+    }
+
+    /*
+        Riprende le rimozioni rimaste a metà: i prodotti ancora presenti di uno store bannato vanno nel job
+        dello store, gli altri in quello del prodotto bannato.
+        Se la ricerca fallisce l'avvio prosegue: le righe restano fino al prossimo avvio.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resume() {
+        List<Object[]> rows;
+        try{
+            rows=storedProductRepository.findLeftoversOfBanned();
+        }catch (RuntimeException e){
+            log.error("Unable to look for interrupted purge jobs: {}",e.getMessage());
+            return;
+        }
+        Map<String,List<Integer>> leftovers=new LinkedHashMap<>();
+        for(Object[] row:rows){
+            String key= (Boolean) row[3] ? "store-"+row[1] : "product-"+row[2];
+            leftovers.computeIfAbsent(key,k -> new ArrayList<>()).add((Integer) row[0]);
+        }
+        leftovers.forEach((key,ids) -> {
+            log.info("Resuming purge job {}: {} stored products left",key,ids.size());
+            start(new PurgeJob(key,ids.size()),ids);
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdown();
+    }
+
+
+
+    private void start(PurgeJob job, List<Integer> storedProductIds) {
+        evictFinished();
+        jobs.put(job.getKey(),job);
+        executor.submit(() -> runJob(job,storedProductIds));
+    }
+
+    private void evictFinished() {
+        long limit=System.currentTimeMillis()-retentionMillis;
+        jobs.values().removeIf(job -> job.getEndTime()!=null && job.getEndTime().getTime()<limit);
+    }
+
+    private void runJob(PurgeJob job, List<Integer> storedProductIds) {
+        try{
+            for(int from=0; from<storedProductIds.size(); from+=chunkSize){
+                List<Integer> chunk=storedProductIds.subList(from,Math.min(from+chunkSize,storedProductIds.size()));
+                transactionTemplate.execute(status -> {
+                    purgeChunk(chunk);
+                    return null;
+                });
+                job.progress(chunk.size());
+            }
+            job.done();
+            log.info("Purge job {} completed: {} stored products removed",job.getKey(),job.getTotal());
+        }catch (RuntimeException e){
+            job.failed(e.getMessage());
+            log.error("Purge job {} failed after {} stored products: {}",job.getKey(),job.getRemoved().get(),e.getMessage());
+        }
+    }
+
+    /*
+        Rimozione immediata di un blocco, da chiamare all'interno di una transazione.
+     */
+    void purgeChunk(List<Integer> storedProductIds) {
+        List<Object[]> purged=storedProductRepository.findStoreAndProductIdsByIds(storedProductIds);
+        cartRepository.incrementVersionByStoredProducts(storedProductIds);
+        storedProductInCartRepository.deleteByStoredProducts(storedProductIds);
+        storedProductRepository.deleteByIds(storedProductIds);
+        for(Object[] row:purged) eventPublisher.publishEvent(new StoredProductChangedEvent(removed((Integer) row[0],(Integer) row[1],(Integer) row[2]),true));
+    }
+
+    /*
+        Le entità degli eventi hanno solo i campi usati dai listener per una rimozione: id, store e prodotto.
+     */
+    private static StoredProduct removed(int id, int storeId, int productId) {
+        Store store=new Store();
+        store.setId(storeId);
+        Product product=new Product();
+        product.setId(productId);
+        StoredProduct sp=new StoredProduct();
+        sp.setId(id);
+        sp.setStore(store);
+        sp.setProduct(product);
+        return sp;
+    }
+
+}
@@ -0,0 +1,69 @@
+package it.carmelogug.puntoinformatica.support;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import it.carmelogug.puntoinformatica.entities.purchasing.Purchase;
+import lombok.Getter;
+
+import java.util.Date;
+
+/*
+    Stato di un acquisto messo in coda (checkout asincrono): PENDING finché il gruppo di acquisti che lo contiene
+    non è stato scritto, poi COMPLETED con l'id dell'acquisto o FAILED con il motivo.
+    L'esito del tentativo in corso (outcome) diventa visibile solo dopo il commit, con publish.
+ */
+@Getter
+public class CheckoutOrder {
+
+    public enum State{
+        PENDING,COMPLETED,FAILED
+    }
+
+    private final String id;
+    private final int cartId;
+    @JsonIgnore
+    private final String buyer;
+    private final Date submitTime=new Date();
+    private volatile Date endTime;
+    private volatile State state=State.PENDING;
+    private volatile Integer purchaseId;
+    private volatile String error;
+
+    @JsonIgnore
+    private Purchase purchase;
+    @JsonIgnore
+    private Exception failure;
+
+    public CheckoutOrder(String id, int cartId, String buyer) {
+        this.id = id;
+        this.cartId = cartId;
+        this.buyer = buyer;
+    }
+
+    /*
+        Esito dell'acquisto nella transazione del gruppo, non ancora visibile.
+     */
+    public void outcome(Purchase purchase, Exception failure) {
+        this.purchase=purchase;
+        this.failure=failure;
+    }
+
+    public void publish() {
+        if(purchase!=null){
+            purchaseId=purchase.getId();
+            state=State.COMPLETED;
+        }
+        else{
+            error=failure==null ? null : failure.getMessage();
+            state=State.FAILED;
+        }
+        endTime=new Date();
+    }
+
+    public void failed(String error) {
+        outcome(null,null);
+        this.error=error;
+        endTime=new Date();
+        state=State.FAILED;
+    }
+
+}
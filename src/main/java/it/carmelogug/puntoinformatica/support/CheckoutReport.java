@@ -0,0 +1,47 @@
+package it.carmelogug.puntoinformatica.support;
+
+import it.carmelogug.puntoinformatica.entities.purchasing.Purchase;
+import it.carmelogug.puntoinformatica.entities.purchasing.StoredProductInCart;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Riepilogo di un acquisto parziale: l'acquisto con le righe comprate (null se nessuna era disponibile)
+    e le righe saltate, rimaste nel carrello, con il motivo.
+ */
+@Getter
+public class CheckoutReport {
+
+    private Purchase purchase;
+    private final List<SkippedLine> skipped=new ArrayList<>();
+
+
+    public void purchased(Purchase purchase) {
+        this.purchase=purchase;
+    }
+
+    public void skipped(StoredProductInCart line, String reason) {
+        skipped.add(new SkippedLine(line.getId(),line.getStoredProduct().getId(),line.getQuantity(),reason));
+    }
+
+
+    @Getter
+    public static class SkippedLine {
+
+        private final int storedProductInCart;
+        private final int storedProduct;
+        private final int quantity;
+        private final String reason;
+
+        public SkippedLine(int storedProductInCart, int storedProduct, int quantity, String reason) {
+            this.storedProductInCart = storedProductInCart;
+            this.storedProduct = storedProduct;
+            this.quantity = quantity;
+            this.reason = reason;
+        }
+
+    }
+
+}
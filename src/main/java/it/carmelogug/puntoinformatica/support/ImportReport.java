@@ -0,0 +1,66 @@
+package it.carmelogug.puntoinformatica.support;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Riepilogo di un import massivo: conteggi, errori per riga (al più MAX_ERRORS) e throughput.
+ */
+@Getter
+public class ImportReport {
+
+    public static final int MAX_ERRORS=1000;
+
+    private long rows;
+    private long inserted;
+    private long duplicates;
+    private long invalid;
+    private long elapsedMillis;
+    private double rowsPerSecond;
+    private final List<RowError> errors=new ArrayList<>();
+
+
+    public void rowRead() {
+        rows++;
+    }
+
+    public void inserted(int count) {
+        inserted+=count;
+    }
+
+    public void duplicate(long row) {
+        duplicates++;
+        error(row,"Product already exist!");
+    }
+
+    public void invalid(long row, String message) {
+        invalid++;
+        error(row,message);
+    }
+
+    public void finish(long startMillis) {
+        elapsedMillis=System.currentTimeMillis()-startMillis;
+        rowsPerSecond= elapsedMillis==0 ? rows : rows*1000.0/elapsedMillis;
+    }
+
+    private void error(long row, String message) {
+        if(errors.size()<MAX_ERRORS) errors.add(new RowError(row,message));
+    }
+
+
+    @Getter
+    public static class RowError {
+
+        private final long row;
+        private final String message;
+
+        public RowError(long row, String message) {
+            this.row = row;
+            this.message = message;
+        }
+
+    }
+
+}
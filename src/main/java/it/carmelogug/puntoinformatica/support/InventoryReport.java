@@ -0,0 +1,83 @@
+package it.carmelogug.puntoinformatica.support;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Riepilogo della riconciliazione dell'inventario di uno store: righe lette, modifiche applicate
+    e righe scartate (al più MAX_ERRORS errori per riga).
+    conflicts sono i prodotti modificati da un'altra richiesta tra la lettura dello stato e l'aggiornamento
+    o la rimozione: non vengono toccati e vanno rinviati.
+    notDeleted sono i prodotti assenti dal body non rimossi perché alcune righe sono state scartate.
+ */
+@Getter
+public class InventoryReport {
+
+    public static final int MAX_ERRORS=1000;
+
+    private long rows;
+    private long inserted;
+    private long updated;
+    private long deleted;
+    private long unchanged;
+    private long conflicts;
+    private long invalid;
+    private long notDeleted;
+    private long elapsedMillis;
+    private final List<ImportReport.RowError> errors=new ArrayList<>();
+
+
+    public void rowRead() {
+        rows++;
+    }
+
+    public void inserted(int count) {
+        inserted+=count;
+    }
+
+    public void updated(int count) {
+        updated+=count;
+    }
+
+    public void deleted(int count) {
+        deleted+=count;
+    }
+
+    public void unchanged(int count) {
+        unchanged+=count;
+    }
+
+    public void conflict(long row) {
+        conflicts++;
+        error(row,"Stored product modified concurrently, retry!");
+    }
+
+    /*
+        Rimozione non applicata: il prodotto non è nello stato ricevuto e quindi non ha una riga.
+     */
+    public void deleteConflict(int product) {
+        conflicts++;
+        error(0,"Product "+product+" modified concurrently, not deleted, retry!");
+    }
+
+    public void deletionSkipped(int count) {
+        notDeleted+=count;
+        error(0,count+" products not listed were not deleted because of the rejected rows, fix them and retry!");
+    }
+
+    public void invalid(long row, String message) {
+        invalid++;
+        error(row,message);
+    }
+
+    public void finish(long startMillis) {
+        elapsedMillis=System.currentTimeMillis()-startMillis;
+    }
+
+    private void error(long row, String message) {
+        if(errors.size()<MAX_ERRORS) errors.add(new ImportReport.RowError(row,message));
+    }
+
+}
@@ -0,0 +1,22 @@
+package it.carmelogug.puntoinformatica.support;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/*
+    Pagina di risultati per la paginazione a cursore (keyset).
+    nextCursor è null quando non ci sono altri elementi, altrimenti va ripassato come cursor alla richiesta successiva.
+ */
+@Getter
+public class KeysetPage<T> {
+
+    private final List<T> items;
+    private final String nextCursor;
+
+    public KeysetPage(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+}
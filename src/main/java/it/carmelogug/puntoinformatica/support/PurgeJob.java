@@ -0,0 +1,46 @@
+package it.carmelogug.puntoinformatica.support;
+
+import lombok.Getter;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Stato della rimozione in background dei prodotti di uno store (o di un prodotto da tutti gli store) dopo un ban.
+ */
+@Getter
+public class PurgeJob {
+
+    public enum State{
+        RUNNING,DONE,FAILED
+    }
+
+    private final String key;
+    private final int total;
+    private final AtomicInteger removed=new AtomicInteger();
+    private final Date startTime=new Date();
+    private volatile Date endTime;
+    private volatile State state=State.RUNNING;
+    private volatile String error;
+
+    public PurgeJob(String key, int total) {
+        this.key = key;
+        this.total = total;
+    }
+
+    public void progress(int count) {
+        removed.addAndGet(count);
+    }
+
+    public void done() {
+        endTime=new Date();
+        state=State.DONE;
+    }
+
+    public void failed(String error) {
+        this.error=error;
+        endTime=new Date();
+        state=State.FAILED;
+    }
+
+}
@@ -3,9 +3,15 @@ package it.carmelogug.puntoinformatica.support;
 import it.carmelogug.puntoinformatica.entities.User;
 import it.carmelogug.puntoinformatica.entities.store.Product;
 import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
 import lombok.experimental.UtilityClass;
 import lombok.extern.log4j.Log4j2;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
 
 public final class Utilities {
 
@@ -41,6 +47,93 @@ public final class Utilities {
     }
 
 
+    /*
+        Copie dei soli campi semplici delle entità, per le strutture in memoria condivise tra le richieste:
+        non sono legate a nessun EntityManager e non hanno collezioni lazy da inizializzare.
+     */
+    public static Product snapshot(Product p) {
+        Product copy=new Product();
+        copy.setId(p.getId());
+        copy.setName(p.getName());
+        copy.setType(p.getType());
+        copy.setCategory(p.getCategory());
+        copy.setBarCode(p.getBarCode());
+        copy.setBanned(p.isBanned());
+        copy.setDescription(p.getDescription());
+        copy.setUrl(p.getUrl());
+        copy.setUrlImage(p.getUrlImage());
+        return copy;
+    }
+
+    public static Store snapshot(Store s) {
+        Store copy=new Store();
+        copy.setId(s.getId());
+        copy.setCountry(s.getCountry());
+        copy.setRegion(s.getRegion());
+        copy.setCity(s.getCity());
+        copy.setProvince(s.getProvince());
+        copy.setAddress(s.getAddress());
+        copy.setPostalCode(s.getPostalCode());
+        copy.setBanned(s.isBanned());
+        return copy;
+    }
+
+    public static StoredProduct snapshot(StoredProduct sp) {
+        StoredProduct copy=new StoredProduct();
+        copy.setId(sp.getId());
+        copy.setVersion(sp.getVersion());
+        copy.setQuantity(sp.getQuantity());
+        copy.setPrice(sp.getPrice());
+        if(sp.getStore()!=null) copy.setStore(snapshot(sp.getStore()));
+        if(sp.getProduct()!=null) copy.setProduct(snapshot(sp.getProduct()));
+        return copy;
+    }
+
+
+    /*
+        Cursori per la paginazione keyset: l'ultimo id restituito, codificato in modo opaco per il client.
+        Un cursore null corrisponde all'inizio della collezione.
+     */
+    public static String encodeCursor(int lastId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(("id:"+lastId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static int decodeCursor(String cursor) throws IllegalArgumentException {
+        if(cursor==null || cursor.isEmpty()) return 0;
+        String decoded=new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        if(!decoded.startsWith("id:")) throw new IllegalArgumentException("Invalid cursor!");
+        return Integer.parseInt(decoded.substring(3));
+    }
 
+    /*
+        Campi separati da virgola, eventualmente tra doppi apici ("" per un apice nel campo).
+        Un campo non può contenere un a capo. Usato dagli import CSV di prodotti e inventario.
+     */
+    public static List<String> parseCsvLine(String line) {
+        List<String> result=new ArrayList<>();
+        StringBuilder field=new StringBuilder();
+        boolean quoted=false;
+        for(int i=0; i<line.length(); i++){
+            char c=line.charAt(i);
+            if(quoted){
+                if(c=='"'){
+                    if(i+1<line.length() && line.charAt(i+1)=='"'){
+                        field.append('"');
+                        i++;
+                    }
+                    else quoted=false;
+                }
+                else field.append(c);
+            }
+            else if(c=='"') quoted=true;
+            else if(c==','){
+                result.add(field.toString());
+                field.setLength(0);
+            }
+            else field.append(c);
+        }
+        result.add(field.toString());
+        return result;
+    }
 
 }
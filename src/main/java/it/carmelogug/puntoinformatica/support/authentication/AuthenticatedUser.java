@@ -0,0 +1,38 @@
+package it.carmelogug.puntoinformatica.support.authentication;
+
+
+import lombok.Getter;
+import org.springframework.security.oauth2.jwt.Jwt;
+
+import java.util.Set;
+
+
+/*
+    Dati dell'utente autenticato letti una sola volta dalle claim del token in JwtAuthenticationConverter.
+    Vive nell'Authentication del SecurityContext, quindi per tutta la durata della richiesta.
+ */
+@Getter
+public class AuthenticatedUser {
+
+    private final String subject;
+    private final String email;
+    private final String firstName;
+    private final String lastName;
+    private final Set<String> roles;
+
+
+    AuthenticatedUser(String subject, String email, String firstName, String lastName, Set<String> roles) {
+        this.subject = subject;
+        this.email = email;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.roles = roles;
+    }
+
+    static AuthenticatedUser of(Jwt jwt, Set<String> roles) {
+        return new AuthenticatedUser(jwt.getSubject(),jwt.getClaimAsString("preferred_username"),
+                jwt.getClaimAsString("given_name"),jwt.getClaimAsString("family_name"),roles);
+    }
+
+
+}
@@ -0,0 +1,133 @@
+package it.carmelogug.puntoinformatica.support.authentication;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.server.resource.BearerTokenAuthenticationToken;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationProvider;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+    AuthenticationManager del resource server con una cache dei token già verificati.
+
+    La chiave è lo SHA-256 del bearer token, il valore il Jwt verificato da JwtAuthenticationProvider (decodifica,
+    verifica della firma e JwtAuthenticationConverter) con le sue authority e l'utente, tutti immutabili.
+    L'Authentication invece è mutabile (setDetails, setAuthenticated): ne viene creata una nuova per ogni richiesta,
+    con i details della richiesta corrente. Ogni voce scade all'exp del token, quindi dopo la scadenza il token
+    viene di nuovo verificato e rifiutato. I token senza exp e quelli non validi non vengono messi in cache.
+ */
+@Component
+public class CachingJwtAuthenticationManager implements AuthenticationManager {
+
+    private final JwtAuthenticationProvider provider;
+
+    private final Cache<String,VerifiedToken> tokens;
+
+
+    @Autowired
+    public CachingJwtAuthenticationManager(JwtDecoder jwtDecoder,
+                                           @Value("${puntoinformatica.cache.tokens.maximum-size:10000}") long maximumSize) {
+        this.provider = new JwtAuthenticationProvider(jwtDecoder);
+        this.provider.setJwtAuthenticationConverter(new JwtAuthenticationConverter());
+        this.tokens = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new UntilExpiration())
+                .recordStats()
+                .build();
+    }
+
+
+    @Override
+    public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+        if(!(authentication instanceof BearerTokenAuthenticationToken)) return null;
+        String key=digest(((BearerTokenAuthenticationToken) authentication).getToken());
+        VerifiedToken cached=tokens.getIfPresent(key);
+        if(cached!=null) return cached.authentication(authentication.getDetails());
+        AbstractAuthenticationToken result=(AbstractAuthenticationToken) provider.authenticate(authentication);
+        Instant expiresAt=((Jwt) result.getPrincipal()).getExpiresAt();
+        if(expiresAt!=null && expiresAt.isAfter(Instant.now())) tokens.put(key,new VerifiedToken(result));
+        return result;
+    }
+
+    public Map<String,Object> stats() {
+        return EntityCache.stats(tokens);
+    }
+
+    private static String digest(String token) {
+        try{
+            MessageDigest sha=MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(sha.digest(token.getBytes(StandardCharsets.US_ASCII)));
+        }catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+
+    /*
+        Parte immutabile di un'autenticazione riuscita: user è null se il converter non ha prodotto un UserAuthenticationToken.
+     */
+    private static final class VerifiedToken {
+
+        private final Jwt jwt;
+        private final Collection<GrantedAuthority> authorities;
+        private final AuthenticatedUser user;
+
+        private VerifiedToken(AbstractAuthenticationToken authentication) {
+            this.jwt = (Jwt) authentication.getPrincipal();
+            this.authorities = authentication.getAuthorities();
+            this.user = authentication instanceof UserAuthenticationToken ? ((UserAuthenticationToken) authentication).getUser() : null;
+        }
+
+        private AbstractAuthenticationToken authentication(Object details) {
+            AbstractAuthenticationToken result= user==null ? new JwtAuthenticationToken(jwt,authorities)
+                    : new UserAuthenticationToken(jwt,authorities,user);
+            result.setDetails(details);
+            return result;
+        }
+
+    }
+
+    private static final class UntilExpiration implements Expiry<String,VerifiedToken> {
+
+        @Override
+        public long expireAfterCreate(String key, VerifiedToken value, long currentTime) {
+            Instant expiresAt=value.jwt.getExpiresAt();
+            return Math.max(0,TimeUnit.MILLISECONDS.toNanos(expiresAt.toEpochMilli()-System.currentTimeMillis()));
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, VerifiedToken value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key,value,currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, VerifiedToken value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+
+    }
+
+}
@@ -1,17 +1,18 @@
 package it.carmelogug.puntoinformatica.support.authentication;
 
 
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.security.authentication.AbstractAuthenticationToken;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.jwt.Jwt;
-import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 
@@ -19,15 +20,42 @@ public class JwtAuthenticationConverter implements Converter<Jwt, AbstractAuthen
 
     private static String CLIENT_NAME="puntoinformatica-springboot";
 
+    /*
+        Gli utenti hanno poche combinazioni di ruoli (user, admin, user+admin): gli insiemi di ruoli e di authority
+        vengono creati una volta per combinazione e condivisi tra i token. Oltre MAX_ROLE_SETS combinazioni
+        gli insiemi vengono creati per ogni token.
+     */
+    private static final int MAX_ROLE_SETS=64;
+    private static final Map<Set<String>,Set<GrantedAuthority>> AUTHORITIES=new ConcurrentHashMap<>();
+    private static final Map<Set<String>,Set<String>> ROLES=new ConcurrentHashMap<>();
+
 
     @Override
-    @SuppressWarnings("unchecked")
     public AbstractAuthenticationToken convert(final Jwt source) {
+        Set<String> roles=roles(source);
+        return new UserAuthenticationToken(source, authorities(roles), AuthenticatedUser.of(source,roles));
+    }
+
+    @SuppressWarnings("unchecked")
+    static Set<String> roles(Jwt source) {
         Map<String, Object> resourceAccess = source.getClaim("resource_access");
+        if(resourceAccess==null) return Collections.emptySet();
         Map<String, Object> resource = (Map<String, Object>) resourceAccess.get(CLIENT_NAME);
-        Collection<String> resourceRoles = (Collection<String>) resource.get("roles");
-        Set<GrantedAuthority> authorities = resourceRoles.stream().map(SimpleGrantedAuthority::new).collect(Collectors.toSet());
-        return new JwtAuthenticationToken(source, authorities);
+        if(resource==null || resource.get("roles")==null) return Collections.emptySet();
+        Set<String> roles=new LinkedHashSet<>((Collection<String>) resource.get("roles"));
+        Set<String> interned=ROLES.get(roles);
+        if(interned!=null) return interned;
+        interned=Collections.unmodifiableSet(roles);
+        if(ROLES.size()<MAX_ROLE_SETS) ROLES.putIfAbsent(interned,interned);
+        return interned;
+    }
+
+    private static Set<GrantedAuthority> authorities(Set<String> roles) {
+        Set<GrantedAuthority> result=AUTHORITIES.get(roles);
+        if(result!=null) return result;
+        result=Collections.unmodifiableSet(roles.stream().map(SimpleGrantedAuthority::new).collect(Collectors.toSet()));
+        if(AUTHORITIES.size()<MAX_ROLE_SETS) AUTHORITIES.putIfAbsent(roles,result);
+        return result;
     }
 
 
@@ -0,0 +1,29 @@
+package it.carmelogug.puntoinformatica.support.authentication;
+
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+
+import java.util.Collection;
+
+
+/*
+    JwtAuthenticationToken con l'utente già estratto dalle claim: il principal resta il Jwt.
+ */
+public class UserAuthenticationToken extends JwtAuthenticationToken {
+
+    private final AuthenticatedUser user;
+
+
+    public UserAuthenticationToken(Jwt jwt, Collection<? extends GrantedAuthority> authorities, AuthenticatedUser user) {
+        super(jwt,authorities);
+        this.user = user;
+    }
+
+    public AuthenticatedUser getUser() {
+        return user;
+    }
+
+
+}
@@ -1,17 +1,13 @@
 package it.carmelogug.puntoinformatica.support.authentication;
 
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.experimental.UtilityClass;
-import lombok.extern.log4j.Log4j2;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.jwt.Jwt;
 
 
 @UtilityClass
-@Log4j2
 public class Utils {
 
 
@@ -19,34 +15,28 @@ public class Utils {
         return (Jwt) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
     }
 
+    /*
+        Utente della richiesta corrente, costruito da JwtAuthenticationConverter.
+        Se l'Authentication non è un UserAuthenticationToken (es. configurata a mano) viene letto dalle claim del Jwt.
+     */
+    public AuthenticatedUser getUser() {
+        Authentication authentication=SecurityContextHolder.getContext().getAuthentication();
+        if(authentication instanceof UserAuthenticationToken) return ((UserAuthenticationToken) authentication).getUser();
+        Jwt jwt=(Jwt) authentication.getPrincipal();
+        return AuthenticatedUser.of(jwt,JwtAuthenticationConverter.roles(jwt));
+    }
+
     public String getAuthServerId() {
-        return getTokenNode().get("subject").asText();
+        return getUser().getSubject();
     }
 
     public String[] getName() {
-        String[] res=new String[2];
-        res[0]= getTokenNode().get("claims").get("given_name").asText(); //First_name
-        res[1]= getTokenNode().get("claims").get("family_name").asText(); //Last_name
-        return res;
+        AuthenticatedUser user=getUser();
+        return new String[]{user.getFirstName(),user.getLastName()}; //First_name, Last_name
     }
 
     public String getEmail() {
-        return getTokenNode().get("claims").get("preferred_username").asText();
-    }
-
-    private JsonNode getTokenNode() {
-        Jwt jwt = getPrincipal();
-        ObjectMapper objectMapper = new ObjectMapper();
-        String jwtAsString;
-        JsonNode jsonNode;
-        try {
-            jwtAsString = objectMapper.writeValueAsString(jwt);
-            jsonNode = objectMapper.readTree(jwtAsString);
-        } catch (JsonProcessingException e) {
-            log.error(e.getMessage());
-            throw new RuntimeException("Unable to retrieve user's info!");
-        }
-        return jsonNode;
+        return getUser().getEmail();
     }
 
 
@@ -0,0 +1,133 @@
+package it.carmelogug.puntoinformatica.support.cache;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.repositories.ProductRepository;
+import it.carmelogug.puntoinformatica.repositories.StoreRepository;
+import it.carmelogug.puntoinformatica.repositories.StoredProductRepository;
+import it.carmelogug.puntoinformatica.support.Utilities;
+import it.carmelogug.puntoinformatica.support.events.ProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoreChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/*
+    Cache read-through per id di Product, Store e StoredProduct.
+
+    Le cache sono limitate in dimensione (eviction W-TinyLFU di Caffeine) e contengono copie staccate
+    delle entità (Utilities.snapshot), quindi possono essere condivise tra le richieste.
+    Le voci vengono invalidate dopo il commit delle modifiche tramite gli eventi pubblicati dai service.
+    Gli id non esistenti non vengono messi in cache.
+ */
+@Component
+public class EntityCache {
+
+    private final ProductRepository productRepository;
+    private final StoreRepository storeRepository;
+    private final StoredProductRepository storedProductRepository;
+
+    private final Cache<Integer,Product> products;
+    private final Cache<Integer,Store> stores;
+    private final Cache<Integer,StoredProduct> storedProducts;
+
+
+    @Autowired
+    public EntityCache(ProductRepository productRepository, StoreRepository storeRepository,
+                       StoredProductRepository storedProductRepository,
+                       @Value("${puntoinformatica.cache.products.maximum-size:10000}") long productsSize,
+                       @Value("${puntoinformatica.cache.stores.maximum-size:1000}") long storesSize,
+                       @Value("${puntoinformatica.cache.stored-products.maximum-size:50000}") long storedProductsSize) {
+        this.productRepository = productRepository;
+        this.storeRepository = storeRepository;
+        this.storedProductRepository = storedProductRepository;
+        this.products = Caffeine.newBuilder().maximumSize(productsSize).recordStats().build();
+        this.stores = Caffeine.newBuilder().maximumSize(storesSize).recordStats().build();
+        this.storedProducts = Caffeine.newBuilder().maximumSize(storedProductsSize).recordStats().build();
+    }
+
+
+    /*
+        Lookup per id, restituiscono null se l'entità non esiste.
+     */
+    public Product findProductById(int id) {
+        return products.get(id, key -> {
+            Product p=productRepository.findProductById(key);
+            return p==null ? null : Utilities.snapshot(p);
+        });
+    }
+
+    public Store findStoreById(int id) {
+        return stores.get(id, key -> {
+            Store s=storeRepository.findStoreById(key);
+            return s==null ? null : Utilities.snapshot(s);
+        });
+    }
+
+    public StoredProduct findStoredProductById(int id) {
+        return storedProducts.get(id, key -> {
+            StoredProduct sp=storedProductRepository.findStoredProductById(key);
+            return sp==null ? null : Utilities.snapshot(sp);
+        });
+    }
+
+
+    /*
+        Invalidazione dopo il commit
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onProductChanged(ProductChangedEvent event) {
+        Integer id=event.getProduct().getId();
+        products.invalidate(id);
+        //il ban rimuove i prodotti dagli store
+        if(event.getProduct().isBanned())
+            storedProducts.asMap().values().removeIf(sp -> sp.getProduct()!=null && id.equals(sp.getProduct().getId()));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoreChanged(StoreChangedEvent event) {
+        Integer id=event.getStore().getId();
+        stores.invalidate(id);
+        storedProducts.asMap().values().removeIf(sp -> sp.getStore()!=null && id.equals(sp.getStore().getId()));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoredProductChanged(StoredProductChangedEvent event) {
+        storedProducts.invalidate(event.getStoredProduct().getId());
+    }
+
+
+    /*
+        Contatori per dimensionare le cache in produzione.
+     */
+    public Map<String,Map<String,Object>> stats() {
+        Map<String,Map<String,Object>> result=new LinkedHashMap<>();
+        result.put("products",stats(products));
+        result.put("stores",stats(stores));
+        result.put("storedProducts",stats(storedProducts));
+        return result;
+    }
+
+    public static Map<String,Object> stats(Cache<?,?> cache) {
+        CacheStats stats=cache.stats();
+        Map<String,Object> result=new LinkedHashMap<>();
+        result.put("size",cache.estimatedSize());
+        result.put("hits",stats.hitCount());
+        result.put("misses",stats.missCount());
+        result.put("hitRate",stats.hitRate());
+        result.put("evictions",stats.evictionCount());
+        return result;
+    }
+
+}
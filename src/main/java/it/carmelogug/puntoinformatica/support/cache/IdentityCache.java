@@ -0,0 +1,98 @@
+package it.carmelogug.puntoinformatica.support.cache;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import it.carmelogug.puntoinformatica.repositories.UserRepository;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+    Cache email -> (id utente, id carrello) per le richieste degli utenti autenticati.
+
+    Viene popolata da AccountingService.addAndgetUser al login e, in caso di miss, con una sola query
+    (utente e carrello in join). Le voci scadono dopo ttl-seconds e vengono invalidate quando il carrello
+    di un utente viene creato. Le modifiche fatte in una transazione vengono applicate dopo il commit.
+    Le email senza utente non vengono messe in cache.
+ */
+@Component
+public class IdentityCache {
+
+    private final UserRepository userRepository;
+
+    private final Cache<String,Identity> identities;
+
+
+    @Autowired
+    public IdentityCache(UserRepository userRepository,
+                         @Value("${puntoinformatica.cache.identities.maximum-size:10000}") long maximumSize,
+                         @Value("${puntoinformatica.cache.identities.ttl-seconds:300}") long ttlSeconds) {
+        this.userRepository = userRepository;
+        this.identities = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+    }
+
+
+    /*
+        null se non esiste un utente con questa email. cartId è null se l'utente non ha un carrello.
+     */
+    public Identity resolve(String email) {
+        return identities.get(email, key -> {
+            List<Object[]> rows=userRepository.findIdentityByEmail(key);
+            if(rows.isEmpty()) return null;
+            return new Identity((Integer) rows.get(0)[0],(Integer) rows.get(0)[1]);
+        });
+    }
+
+    public void put(String email, int userId, Integer cartId) {
+        afterCommit(() -> identities.put(email,new Identity(userId,cartId)));
+    }
+
+    public void invalidate(String email) {
+        afterCommit(() -> identities.invalidate(email));
+    }
+
+    public Map<String,Object> stats() {
+        return EntityCache.stats(identities);
+    }
+
+    private static void afterCommit(Runnable action) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+
+    @Getter
+    public static class Identity {
+
+        private final int userId;
+        private final Integer cartId;
+
+        Identity(int userId, Integer cartId) {
+            this.userId = userId;
+            this.cartId = cartId;
+        }
+
+    }
+
+}
@@ -0,0 +1,828 @@
+package it.carmelogug.puntoinformatica.support.cart;
+
+
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.repositories.CartRepository;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import it.carmelogug.puntoinformatica.support.cache.IdentityCache;
+import it.carmelogug.puntoinformatica.support.events.CartChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.ProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoreChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.CartInCheckoutException;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.CartNotExistException;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.QuantityProductUnvailableException;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.QuantityWrongException;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.StoredProductNotInCart;
+import it.carmelogug.puntoinformatica.support.exceptions.StoredProduct.StoredProductNotExistException;
+import it.carmelogug.puntoinformatica.support.views.CartView;
+import it.carmelogug.puntoinformatica.support.views.OfferView;
+import it.carmelogug.puntoinformatica.support.views.UserView;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+
+/*
+    Carrelli attivi in memoria con scrittura differita sul db.
+
+    I carrelli sono in una mappa per email dell'acquirente, protetti da lock a strisce (lock-stripes lock,
+    scelti dall'hash dell'email): le modifiche vengono applicate in memoria e il carrello viene segnato come sporco.
+    Ogni flush-interval-ms un thread in background scrive i carrelli sporchi con tre batch JDBC in una transazione
+    (upsert delle righe, delete delle righe, incremento della versione del carrello): più modifiche alla stessa riga
+    tra due scritture diventano una sola scrittura.
+    Gli id delle nuove righe vengono presi a blocchi dalla sequenza di stored_products_in_cart, quindi
+    sono stabili anche prima della scrittura.
+
+    Un carrello non in memoria viene caricato al primo accesso. Prima dell'acquisto, fuori dalla sua transazione,
+    il carrello viene scritto e bloccato (hold): fino alla fine dell'acquisto (release) le modifiche vengono rifiutate,
+    poi il carrello viene rimosso dalla memoria e ricaricato dal db.
+    Ogni scrittura incrementa la versione del carrello solo se sul db è ancora quella da cui partono le modifiche:
+    se nel frattempo è stata incrementata da fuori (rimozione di prodotti, offerte cambiate) le modifiche vengono
+    riportate sulla nuova versione e riscritte, mentre un carrello rimosso dalla memoria (acquisto) non viene scritto.
+
+    La versione cambia con ogni modifica della vista del carrello, così basta lei come ETag: oltre alle modifiche
+    delle righe e all'acquisto, anche prezzo o quantità disponibile di un prodotto nel carrello
+    (StoredProductChangedEvent) incrementano la versione, in memoria per i carrelli caricati e sul db per gli altri,
+    in differita ma prima di ogni lettura dal db di versione o righe di un carrello.
+    Se una scrittura fallisce le modifiche tornano in attesa e vengono ritentate alla scrittura successiva.
+    All'arresto vengono scritti tutti i carrelli sporchi. I carrelli inattivi da idle-timeout-seconds vengono rimossi.
+
+    Ogni modifica delle quantità prenota prima la nuova quantità delle righe (StockReservations):
+    se il prodotto non è disponibile la modifica viene rifiutata e il carrello non cambia.
+ */
+@Component
+@Log4j2
+public class CartEngine {
+
+    private static final int ID_BLOCK=50;
+    private static final int MAX_REBASES=3;
+
+    private static final String ALLOCATE_LINE_IDS=
+            "SELECT CAST(nextval(pg_get_serial_sequence('punto_informatica.stored_products_in_cart', 'id')) AS INTEGER) " +
+            "FROM generate_series(1, ?)";
+
+    private static final String UPSERT_LINE=
+            "INSERT INTO punto_informatica.stored_products_in_cart (id, quantity, related_cart, stored_product, version) " +
+            "VALUES (?, ?, ?, ?, 0) " +
+            "ON CONFLICT (id) DO UPDATE SET quantity = EXCLUDED.quantity, " +
+            "version = punto_informatica.stored_products_in_cart.version + 1";
+
+    private static final String DELETE_LINE=
+            "DELETE FROM punto_informatica.stored_products_in_cart WHERE id = ?";
+
+    private static final String INCREMENT_CART_VERSION=
+            "UPDATE punto_informatica.cart SET version = version + ? WHERE id = ? AND version = ?";
+
+    private static final String SELECT_CART_VERSION=
+            "SELECT version FROM punto_informatica.cart WHERE id = ?";
+
+    //carrelli con il prodotto, esclusi quelli già incrementati in memoria (array di id)
+    private static final String INCREMENT_CARTS_WITH_STORED_PRODUCT=
+            "UPDATE punto_informatica.cart SET version = version + 1 " +
+            "WHERE id IN (SELECT related_cart FROM punto_informatica.stored_products_in_cart WHERE stored_product = ?) " +
+            "AND id <> ALL (?)";
+
+
+    private final CartRepository cartRepository;
+
+    private final EntityCache entityCache;
+
+    private final IdentityCache identityCache;
+
+    private final StockReservations stockReservations;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final long idleTimeoutMillis;
+
+    private final Map<String,ActiveCart> carts=new ConcurrentHashMap<>();
+    private final Map<Integer,ActiveCart> cartsById=new ConcurrentHashMap<>();
+    private final Object[] stripes;
+
+    //id dei carrelli con modifiche non ancora scritte
+    private final Set<Integer> dirty=ConcurrentHashMap.newKeySet();
+    //id dei carrelli con acquisti in corso e loro numero: le modifiche vengono rifiutate
+    private final Map<Integer,Integer> checkouts=new ConcurrentHashMap<>();
+    //prodotti con offerta cambiata i cui carrelli vanno incrementati sul db, con i carrelli già incrementati in memoria
+    private final Map<Integer,Set<Integer>> changedOffers=new ConcurrentHashMap<>();
+    private final Object offersLock=new Object();
+    //serializza le scritture sul db, così una scrittura più vecchia non può seguirne una più recente
+    private final ReentrantLock flushLock=new ReentrantLock();
+
+    private final Deque<Integer> freeLineIds=new ArrayDeque<>();
+
+    private final ScheduledExecutorService flusher=Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t=new Thread(r,"cart-write-behind");
+        t.setDaemon(true);
+        return t;
+    });
+
+
+    @Autowired
+    public CartEngine(CartRepository cartRepository, EntityCache entityCache, IdentityCache identityCache,
+                      StockReservations stockReservations, JdbcTemplate jdbcTemplate,
+                      PlatformTransactionManager transactionManager,
+                      @Value("${puntoinformatica.cart.flush-interval-ms:200}") long flushIntervalMillis,
+                      @Value("${puntoinformatica.cart.lock-stripes:64}") int lockStripes,
+                      @Value("${puntoinformatica.cart.idle-timeout-seconds:1800}") long idleTimeoutSeconds) {
+        this.cartRepository = cartRepository;
+        this.entityCache = entityCache;
+        this.identityCache = identityCache;
+        this.stockReservations = stockReservations;
+        this.jdbcTemplate = jdbcTemplate;
+        //le scritture non devono unirsi alla transazione del chiamante (es. acquisto)
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.idleTimeoutMillis = idleTimeoutSeconds*1000;
+        this.stripes = new Object[lockStripes];
+        for(int i=0; i<lockStripes; i++) stripes[i]=new Object();
+        flusher.scheduleWithFixedDelay(this::flushDirty,flushIntervalMillis,flushIntervalMillis,TimeUnit.MILLISECONDS);
+    }
+
+
+    /*
+        Lettura e modifiche del carrello dell'utente con email indicata
+     */
+    public CartView getCart(String email) throws CartNotExistException {
+        synchronized (stripe(email)){
+            return view(activeCart(email));
+        }
+    }
+
+    /*
+        Versione del carrello senza costruirne la vista: quella in memoria se il carrello è caricato, altrimenti
+        quella sul db. Letta con il lock della striscia, così non può precedere un caricamento in corso.
+     */
+    public long getVersion(String email) throws CartNotExistException {
+        synchronized (stripe(email)){
+            ActiveCart cart=carts.get(email);
+            if(cart!=null) return cart.version;
+            writeChangedOffers();
+            IdentityCache.Identity identity=identityCache.resolve(email);
+            if(identity==null || identity.getCartId()==null) throw new CartNotExistException();
+            Long version=cartRepository.findVersionById(identity.getCartId());
+            if(version==null) throw new CartNotExistException();
+            return version;
+        }
+    }
+
+    public CartView addStoredProduct(String email, int storedProductId, int quantity) throws CartNotExistException, StoredProductNotExistException,
+            QuantityProductUnvailableException, CartInCheckoutException {
+        StoredProduct sp=entityCache.findStoredProductById(storedProductId);
+        if(sp==null || sp.getStore()==null || sp.getProduct()==null) throw new StoredProductNotExistException();
+        synchronized (stripe(email)){
+            ActiveCart cart=modifiableCart(email);
+            Line line=cart.lineOf(storedProductId);
+            stockReservations.reserve(cart.id,Collections.singletonMap(storedProductId,(line==null ? 0 : line.quantity)+quantity));
+            if(line!=null) line.quantity+=quantity;
+            else{
+                line=new Line(nextLineId(),storedProductId,sp.getStore().getId(),sp.getProduct().getId(),quantity);
+                cart.lines.put(line.id,line);
+            }
+            cart.upserted(line.id);
+            changed(cart);
+            return view(cart);
+        }
+    }
+
+    public CartView updateQuantity(String email, int lineId, int quantity) throws CartNotExistException, StoredProductNotInCart,
+            QuantityProductUnvailableException, CartInCheckoutException {
+        synchronized (stripe(email)){
+            ActiveCart cart=modifiableCart(email);
+            Line line=cart.lines.get(lineId);
+            if(line==null) throw new StoredProductNotInCart();
+            stockReservations.reserve(cart.id,Collections.singletonMap(line.storedProduct,quantity));
+            line.quantity=quantity;
+            cart.upserted(lineId);
+            changed(cart);
+            return view(cart);
+        }
+    }
+
+    public CartView removeLine(String email, int lineId) throws CartNotExistException, StoredProductNotInCart, CartInCheckoutException {
+        synchronized (stripe(email)){
+            ActiveCart cart=modifiableCart(email);
+            Line line=cart.lines.remove(lineId);
+            if(line==null) throw new StoredProductNotInCart();
+            stockReservations.release(cart.id,line.storedProduct);
+            cart.deleted(lineId);
+            changed(cart);
+            return view(cart);
+        }
+    }
+
+
+    /*
+        Applica le operazioni nell'ordine dato, tutte o nessuna: vengono prima verificate tutte
+        (prodotti esistenti, righe presenti nel carrello al momento dell'operazione, quantità valide),
+        poi vengono prenotate le quantità finali dei prodotti toccati e infine le operazioni vengono applicate
+        insieme, con un solo incremento di versione e una sola scrittura differita.
+     */
+    public CartView apply(String email, List<CartOperation> operations) throws CartNotExistException, StoredProductNotExistException,
+            StoredProductNotInCart, QuantityWrongException, QuantityProductUnvailableException, CartInCheckoutException {
+        Map<Integer,StoredProduct> storedProducts=new HashMap<>();
+        for(CartOperation op:operations){
+            if(op==null || op.getType()==null) throw new QuantityWrongException();
+            if(op.getType()==CartOperation.Type.ADD){
+                if(op.getStoredProduct()==null) throw new StoredProductNotExistException();
+                if(op.getQuantity()==null || op.getQuantity()<1) throw new QuantityWrongException();
+                StoredProduct sp=entityCache.findStoredProductById(op.getStoredProduct());
+                if(sp==null || sp.getStore()==null || sp.getProduct()==null) throw new StoredProductNotExistException();
+                storedProducts.put(sp.getId(),sp);
+            }
+            else if(op.getStoredProductInCart()==null) throw new StoredProductNotInCart();
+            else if(op.getType()==CartOperation.Type.SET && (op.getQuantity()==null || op.getQuantity()<0)) throw new QuantityWrongException();
+        }
+        synchronized (stripe(email)){
+            ActiveCart cart=modifiableCart(email);
+            //verifica delle righe sullo stato che il carrello avrà al momento di ogni operazione
+            //e quantità finale per ogni prodotto toccato, da prenotare
+            Set<Integer> present=new HashSet<>(cart.lines.keySet());
+            Set<Integer> added=new HashSet<>();
+            Map<Integer,Integer> quantities=new HashMap<>();
+            for(CartOperation op:operations){
+                if(op.getType()==CartOperation.Type.ADD){
+                    Line line=cart.lineOf(op.getStoredProduct());
+                    if(line==null || !present.contains(line.id)) added.add(op.getStoredProduct());
+                    int current=quantities.getOrDefault(op.getStoredProduct(),line==null || !present.contains(line.id) ? 0 : line.quantity);
+                    quantities.put(op.getStoredProduct(),current+op.getQuantity());
+                }
+                else if(!present.contains(op.getStoredProductInCart())) throw new StoredProductNotInCart();
+                else{
+                    int storedProduct=cart.lines.get(op.getStoredProductInCart()).storedProduct;
+                    if(op.getType()==CartOperation.Type.REMOVE){
+                        present.remove(op.getStoredProductInCart());
+                        quantities.put(storedProduct,0);
+                    }
+                    else quantities.put(storedProduct,op.getQuantity());
+                }
+            }
+            stockReservations.reserve(cart.id,quantities);
+            Deque<Integer> ids=nextLineIds(added.size());
+            for(CartOperation op:operations){
+                switch (op.getType()){
+                    case ADD:
+                        Line line=cart.lineOf(op.getStoredProduct());
+                        if(line!=null) line.quantity+=op.getQuantity();
+                        else{
+                            StoredProduct sp=storedProducts.get(op.getStoredProduct());
+                            line=new Line(ids.poll(),sp.getId(),sp.getStore().getId(),sp.getProduct().getId(),op.getQuantity());
+                            cart.lines.put(line.id,line);
+                        }
+                        cart.upserted(line.id);
+                        break;
+                    case SET:
+                        cart.lines.get(op.getStoredProductInCart()).quantity=op.getQuantity();
+                        cart.upserted(op.getStoredProductInCart());
+                        break;
+                    case REMOVE:
+                        cart.lines.remove(op.getStoredProductInCart());
+                        cart.deleted(op.getStoredProductInCart());
+                        break;
+                }
+            }
+            if(!operations.isEmpty()) changed(cart);
+            return view(cart);
+        }
+    }
+
+
+    /*
+        Scrittura immediata delle modifiche di un carrello, da chiamare prima di leggerlo dal db (acquisto)
+        e fuori da altre transazioni: la scrittura usa una propria transazione.
+        Se la scrittura fallisce l'eccezione viene rilanciata e le modifiche restano in attesa.
+     */
+    public void flush(int cartId) {
+        flushLock.lock();
+        try{
+            ActiveCart cart=cartsById.get(cartId);
+            if(cart==null) return;
+            dirty.remove(cartId);
+            //drain attende le modifiche in corso sul carrello (lock della striscia)
+            CartWrite write=drain(cart);
+            if(write==null) return;
+            RuntimeException failure=write(Collections.singletonList(write));
+            if(failure!=null) throw failure;
+        }finally {
+            flushLock.unlock();
+        }
+    }
+
+    /*
+        Inizio dell'acquisto di un carrello, fuori dalla sua transazione: da qui a release le modifiche del carrello
+        vengono rifiutate (CartInCheckoutException), poi le modifiche in attesa vengono scritte (flush).
+        Una modifica iniziata prima di hold viene scritta dal flush, una successiva viene rifiutata: nessuna modifica
+        già confermata al client può quindi arrivare sul db dopo l'acquisto o essere scartata alla sua fine.
+        Se la scrittura fallisce il carrello viene sbloccato e l'eccezione rilanciata.
+     */
+    public void hold(int cartId) {
+        checkouts.merge(cartId,1,Integer::sum);
+        try{
+            flush(cartId);
+        }catch (RuntimeException e){
+            release(cartId);
+            throw e;
+        }
+    }
+
+    /*
+        Fine dell'acquisto (commit o annullamento): il carrello viene sbloccato, le modifiche arrivate durante
+        l'acquisto (solo da dropLines o da offerte cambiate) vengono scritte sulla versione attuale e il carrello
+        viene rimosso dalla memoria, così viene ricaricato con le righe e la versione scritte dall'acquisto.
+        Se la scrittura fallisce il carrello resta in memoria con le modifiche in attesa.
+     */
+    public void release(int cartId) {
+        checkouts.computeIfPresent(cartId,(id,count) -> count>1 ? count-1 : null);
+        ActiveCart cart=cartsById.get(cartId);
+        if(cart==null) return;
+        try{
+            flush(cartId);
+        }catch (RuntimeException e){
+            log.warn("Unable to write cart {} after the purchase: {}",cartId,e.getMessage());
+        }
+        synchronized (stripe(cart.email)){
+            if(!cart.hasPending() && !checkouts.containsKey(cartId)) evict(cart);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flusher.shutdown();
+        try{
+            flusher.awaitTermination(10,TimeUnit.SECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        flushDirty();
+        log.info("Cart engine stopped, {} carts still dirty",dirty.size());
+    }
+
+
+
+    /*
+        Invalidazione dopo il commit delle modifiche fatte fuori da CartEngine
+     */
+    /*
+        Le modifiche dei client sono rifiutate durante l'acquisto (hold): quelle in attesa qui vengono solo da dropLines,
+        già applicate sul db, e non vanno scritte sul carrello acquistato.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCartChanged(CartChangedEvent event) {
+        ActiveCart cart=cartsById.get(event.getCartId());
+        if(cart==null) return;
+        synchronized (stripe(cart.email)){
+            evict(cart);
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoredProductChanged(StoredProductChangedEvent event) {
+        int storedProduct=event.getStoredProduct().getId();
+        if(event.isRemoved()) dropLines(line -> line==storedProduct,null,null);
+        else offerChanged(storedProduct);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoreChanged(StoreChangedEvent event) {
+        if(!event.getStore().isBanned()) return;
+        int store=event.getStore().getId();
+        dropLines(null,line -> line==store,null);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onProductChanged(ProductChangedEvent event) {
+        if(!event.getProduct().isBanned()) return;
+        int product=event.getProduct().getId();
+        dropLines(null,null,line -> line==product);
+    }
+
+
+
+    /*
+        Metodi di supporto sui carrelli, da chiamare con il lock della striscia del carrello
+     */
+    private ActiveCart activeCart(String email) throws CartNotExistException {
+        ActiveCart cart=carts.get(email);
+        if(cart==null){
+            IdentityCache.Identity identity=identityCache.resolve(email);
+            if(identity==null || identity.getCartId()==null) throw new CartNotExistException();
+            writeChangedOffers();
+            CartView loaded=CartView.of(cartRepository.findCartViewById(identity.getCartId()));
+            if(loaded==null){
+                identityCache.invalidate(email);
+                throw new CartNotExistException();
+            }
+            cart=new ActiveCart(loaded.getId(),email,loaded.getVersion(),loaded.getBuyer());
+            for(CartView.Line l:loaded.getStoredProductsInCart()){
+                OfferView sp=l.getStoredProduct();
+                if(sp==null || sp.getStore()==null || sp.getProduct()==null) continue;
+                cart.lines.put(l.getId(),new Line(l.getId(),sp.getId(),sp.getStore().getId(),sp.getProduct().getId(),l.getQuantity()));
+            }
+            carts.put(email,cart);
+            cartsById.put(cart.id,cart);
+        }
+        cart.lastAccess=System.currentTimeMillis();
+        return cart;
+    }
+
+    private ActiveCart modifiableCart(String email) throws CartNotExistException, CartInCheckoutException {
+        ActiveCart cart=activeCart(email);
+        if(checkouts.containsKey(cart.id)) throw new CartInCheckoutException();
+        return cart;
+    }
+
+    /*
+        Una modifica (anche di più righe) incrementa la versione una sola volta.
+     */
+    private void changed(ActiveCart cart) {
+        cart.version++;
+        cart.versionDelta++;
+        dirty.add(cart.id);
+    }
+
+    private CartView view(ActiveCart cart) {
+        List<CartView.Line> lines=new ArrayList<>(cart.lines.size());
+        for(Line line:cart.lines.values()){
+            OfferView sp=OfferView.of(entityCache.findStoredProductById(line.storedProduct));
+            if(sp!=null) lines.add(CartView.Line.of(line.id,line.quantity,sp));
+        }
+        return CartView.of(cart.id,cart.version,cart.buyer,lines);
+    }
+
+    private void evict(ActiveCart cart) {
+        carts.remove(cart.email,cart);
+        cartsById.remove(cart.id,cart);
+        dirty.remove(cart.id);
+    }
+
+    /*
+        Rimuove dai carrelli in memoria le righe già cancellate sul db (ban, rimozione del prodotto dallo store).
+     */
+    private void dropLines(IntPredicate storedProduct, IntPredicate store, IntPredicate product) {
+        for(ActiveCart cart:cartsById.values()){
+            synchronized (stripe(cart.email)){
+                boolean removed=cart.lines.values().removeIf(line -> {
+                    boolean drop=(storedProduct!=null && storedProduct.test(line.storedProduct)) ||
+                            (store!=null && store.test(line.store)) ||
+                            (product!=null && product.test(line.product));
+                    if(drop) stockReservations.release(cart.id,line.storedProduct);
+                    return drop;
+                });
+                if(!removed) continue;
+                cart.pendingUpserts.removeIf(id -> !cart.lines.containsKey(id));
+                //anche questa modifica va scritta: la versione sul db non deve restare indietro rispetto a quella già vista dai client
+                changed(cart);
+            }
+        }
+    }
+
+    /*
+        Prezzo o quantità di un prodotto cambiati: la vista dei carrelli che lo contengono cambia.
+        Quelli in memoria vengono segnati come modificati (l'incremento viene scritto in differita), gli altri
+        vengono incrementati sul db in differita, ma sempre prima di leggere dal db versione o righe di un carrello
+        (writeChangedOffers): così l'acquisto non paga un UPDATE dei carrelli per ogni riga.
+        Il prodotto viene registrato prima di scorrere i carrelli in memoria: un carrello caricato nel frattempo
+        viene incrementato due volte, mai nessuna. Ogni cambiamento sostituisce i carrelli esclusi dal cambiamento
+        precedente, che potrebbero non essere più in memoria.
+     */
+    private void offerChanged(int storedProduct) {
+        Set<Integer> incremented=ConcurrentHashMap.newKeySet();
+        changedOffers.put(storedProduct,incremented);
+        for(ActiveCart cart:cartsById.values()){
+            synchronized (stripe(cart.email)){
+                if(cartsById.get(cart.id)!=cart || cart.lineOf(storedProduct)==null) continue;
+                changed(cart);
+                incremented.add(cart.id);
+            }
+        }
+    }
+
+    /*
+        Incremento sul db dei carrelli con le offerte cambiate, un UPDATE per prodotto in un solo batch.
+        Un carrello incrementato anche in memoria (aggiunto agli esclusi dopo la lettura) trova poi una versione
+        più recente e riporta le sue modifiche su quella (rebase). Se la scrittura fallisce i prodotti
+        tornano in attesa, senza sostituire un cambiamento arrivato nel frattempo.
+     */
+    private void writeChangedOffers() {
+        if(changedOffers.isEmpty()) return;
+        synchronized (offersLock){
+            Map<Integer,Set<Integer>> offers=new HashMap<>();
+            for(Iterator<Map.Entry<Integer,Set<Integer>>> it=changedOffers.entrySet().iterator(); it.hasNext(); ){
+                Map.Entry<Integer,Set<Integer>> e=it.next();
+                offers.put(e.getKey(),e.getValue());
+                it.remove();
+            }
+            if(offers.isEmpty()) return;
+            List<Object[]> args=new ArrayList<>(offers.size());
+            offers.forEach((storedProduct,incremented) ->
+                    args.add(new Object[]{storedProduct,incremented.stream().mapToInt(Integer::intValue).toArray()}));
+            try{
+                transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(INCREMENT_CARTS_WITH_STORED_PRODUCT,args));
+            }catch (RuntimeException e){
+                log.error("Unable to increment the version of the carts with {} changed offers: {}",offers.size(),e.getMessage());
+                offers.forEach(changedOffers::putIfAbsent);
+            }
+        }
+    }
+
+    private Object stripe(String email) {
+        return stripes[(email.hashCode() & 0x7fffffff)%stripes.length];
+    }
+
+    private int nextLineId() {
+        return nextLineIds(1).poll();
+    }
+
+    private Deque<Integer> nextLineIds(int count) {
+        synchronized (freeLineIds){
+            if(freeLineIds.size()<count)
+                freeLineIds.addAll(jdbcTemplate.queryForList(ALLOCATE_LINE_IDS,Integer.class,Math.max(ID_BLOCK,count-freeLineIds.size())));
+            Deque<Integer> result=new ArrayDeque<>(count);
+            for(int i=0; i<count; i++) result.add(freeLineIds.poll());
+            return result;
+        }
+    }
+
+
+
+    /*
+        Scrittura differita
+     */
+    private void flushDirty() {
+        flushLock.lock();
+        try{
+            writeChangedOffers();
+            List<CartWrite> writes=new ArrayList<>();
+            for(Iterator<Integer> it=dirty.iterator(); it.hasNext(); ){
+                ActiveCart cart=cartsById.get(it.next());
+                it.remove();
+                if(cart==null) continue;
+                CartWrite write=drain(cart);
+                if(write!=null) writes.add(write);
+            }
+            if(!writes.isEmpty()) write(writes);
+            evictIdle();
+        }catch (RuntimeException e){
+            log.error("Cart write-behind failed: {}",e.getMessage());
+        }finally {
+            flushLock.unlock();
+        }
+    }
+
+    /*
+        Stato da scrivere di un carrello: le righe modificate con la quantità attuale e le righe rimosse.
+     */
+    private CartWrite drain(ActiveCart cart) {
+        synchronized (stripe(cart.email)){
+            if(!cart.hasPending()) return null;
+            CartWrite write=new CartWrite(cart);
+            for(Integer id:cart.pendingUpserts){
+                Line line=cart.lines.get(id);
+                if(line!=null) write.upserts.add(new int[]{line.id,line.quantity,line.storedProduct});
+            }
+            write.deletes.addAll(cart.pendingDeletes);
+            write.versionDelta=cart.versionDelta;
+            write.expectedVersion=cart.version-cart.versionDelta;
+            cart.pendingUpserts.clear();
+            cart.pendingDeletes.clear();
+            cart.versionDelta=0;
+            return write;
+        }
+    }
+
+    /*
+        Le modifiche dei carrelli non scritti tornano in attesa (restore). Restituisce l'ultimo errore, null se
+        tutti i carrelli sono stati scritti.
+     */
+    private RuntimeException write(List<CartWrite> writes) {
+        return write(writes,0);
+    }
+
+    private RuntimeException write(List<CartWrite> writes, int rebases) {
+        try{
+            writeInTransaction(writes);
+            return null;
+        }catch (StaleCartException e){
+            //transazione annullata: le scritture dei carrelli incrementati da fuori vengono riportate sulla nuova versione
+            //e tutte vengono riprovate
+            for(CartWrite write:e.stale) if(!rebase(write)) writes=without(writes,write);
+            if(writes.isEmpty()) return null;
+            if(rebases<MAX_REBASES) return write(writes,rebases+1);
+            //versioni incrementate di continuo da fuori: si riprova alla prossima scrittura
+            writes.forEach(this::restore);
+            return e;
+        }catch (DataAccessException e){
+            if(writes.size()==1){
+                restore(writes.get(0));
+                return e;
+            }
+            //un carrello non scrivibile (es. prodotto rimosso nel frattempo) non deve bloccare gli altri
+            log.warn("Cart batch write failed, retrying cart by cart: {}",e.getMostSpecificCause().getMessage());
+        }catch (RuntimeException e){
+            //db non raggiungibile o transazione non avviata: nessun carrello è stato scritto
+            log.error("Cart write failed, {} carts will be retried: {}",writes.size(),e.getMessage());
+            writes.forEach(this::restore);
+            return e;
+        }
+        RuntimeException failure=null;
+        for(CartWrite write:writes){
+            try{
+                writeInTransaction(Collections.singletonList(write));
+            }catch (StaleCartException e){
+                if(rebase(write)){
+                    RuntimeException rebased=write(Collections.singletonList(write),rebases+1);
+                    if(rebased!=null) failure=rebased;
+                }
+            }catch (RuntimeException e){
+                log.error("Unable to write cart {}, it will be retried: {}",write.cart.id,e.getMessage());
+                restore(write);
+                failure=e;
+            }
+        }
+        return failure;
+    }
+
+    /*
+        Rimette in attesa le modifiche di una scrittura fallita, unite a quelle arrivate nel frattempo:
+        le righe rimosse dopo il drain restano rimosse, quelle tolte da dropLines non vengono più scritte.
+     */
+    private void restore(CartWrite write) {
+        ActiveCart cart=write.cart;
+        synchronized (stripe(cart.email)){
+            if(cartsById.get(cart.id)!=cart) return;
+            for(int[] line:write.upserts) if(cart.lines.containsKey(line[0])) cart.pendingUpserts.add(line[0]);
+            for(Integer id:write.deletes) if(!cart.lines.containsKey(id)) cart.pendingDeletes.add(id);
+            cart.versionDelta+=write.versionDelta;
+            dirty.add(cart.id);
+        }
+    }
+
+    /*
+        La versione del carrello sul db è cambiata da quando sono partite le modifiche: la scrittura viene riportata
+        sulla versione attuale e la versione in memoria avanza dello stesso incremento, così resta più recente di quella
+        sul db. false se il carrello non è più in memoria (acquisto concluso): le sue modifiche non vanno scritte.
+     */
+    private boolean rebase(CartWrite write) {
+        ActiveCart cart=write.cart;
+        List<Long> current=jdbcTemplate.queryForList(SELECT_CART_VERSION,Long.class,cart.id);
+        synchronized (stripe(cart.email)){
+            if(cartsById.get(cart.id)!=cart) return false;
+            if(current.isEmpty() || current.get(0)<write.expectedVersion){
+                log.warn("Cart {} changed on the database, {} unwritten changes discarded",cart.id,write.upserts.size()+write.deletes.size());
+                evict(cart);
+                return false;
+            }
+            cart.version+=current.get(0)-write.expectedVersion;
+            write.expectedVersion=current.get(0);
+            return true;
+        }
+    }
+
+    private static List<CartWrite> without(List<CartWrite> writes, CartWrite removed) {
+        List<CartWrite> result=new ArrayList<>(writes);
+        result.remove(removed);
+        return result;
+    }
+
+    /*
+        Prima la versione dei carrelli, condizionata a quella attesa: se un carrello è cambiato sul db
+        la transazione viene annullata prima di scrivere le righe.
+     */
+    private void writeInTransaction(List<CartWrite> writes) {
+        List<Object[]> upserts=new ArrayList<>(), deletes=new ArrayList<>(), versions=new ArrayList<>();
+        for(CartWrite write:writes){
+            for(int[] line:write.upserts) upserts.add(new Object[]{line[0],line[1],write.cart.id,line[2]});
+            for(Integer id:write.deletes) deletes.add(new Object[]{id});
+            versions.add(new Object[]{write.versionDelta,write.cart.id,write.expectedVersion});
+        }
+        transactionTemplate.execute(status -> {
+            int[] counts=jdbcTemplate.batchUpdate(INCREMENT_CART_VERSION,versions);
+            List<CartWrite> stale=new ArrayList<>();
+            for(int i=0; i<writes.size(); i++) if(counts[i]==0) stale.add(writes.get(i));
+            if(!stale.isEmpty()) throw new StaleCartException(stale);
+            if(!upserts.isEmpty()) jdbcTemplate.batchUpdate(UPSERT_LINE,upserts);
+            if(!deletes.isEmpty()) jdbcTemplate.batchUpdate(DELETE_LINE,deletes);
+            return null;
+        });
+    }
+
+    private void evictIdle() {
+        long limit=System.currentTimeMillis()-idleTimeoutMillis;
+        for(ActiveCart cart:cartsById.values()){
+            if(cart.lastAccess>=limit) continue;
+            synchronized (stripe(cart.email)){
+                if(cart.lastAccess<limit && !cart.hasPending() && !dirty.contains(cart.id)) evict(cart);
+            }
+        }
+    }
+
+
+
+    private static final class ActiveCart {
+
+        private final int id;
+        private final String email;
+        private final UserView buyer;
+        private long version;
+        private volatile long lastAccess;
+
+        //righe per id, in ordine di inserimento
+        private final Map<Integer,Line> lines=new LinkedHashMap<>();
+
+        //modifiche non ancora scritte
+        private final Set<Integer> pendingUpserts=new HashSet<>();
+        private final Set<Integer> pendingDeletes=new HashSet<>();
+        private int versionDelta;
+
+        ActiveCart(int id, String email, long version, UserView buyer) {
+            this.id = id;
+            this.email = email;
+            this.version = version;
+            this.buyer = buyer;
+        }
+
+        Line lineOf(int storedProduct) {
+            for(Line line:lines.values()) if(line.storedProduct==storedProduct) return line;
+            return null;
+        }
+
+        void upserted(int lineId) {
+            pendingUpserts.add(lineId);
+        }
+
+        void deleted(int lineId) {
+            //una riga mai scritta non va cancellata, ma la delete di un id inesistente è innocua
+            pendingUpserts.remove(lineId);
+            pendingDeletes.add(lineId);
+        }
+
+        boolean hasPending() {
+            return versionDelta>0 || !pendingUpserts.isEmpty() || !pendingDeletes.isEmpty();
+        }
+
+    }
+
+    private static final class Line {
+
+        private final int id;
+        private final int storedProduct;
+        private final int store;
+        private final int product;
+        private int quantity;
+
+        Line(int id, int storedProduct, int store, int product, int quantity) {
+            this.id = id;
+            this.storedProduct = storedProduct;
+            this.store = store;
+            this.product = product;
+            this.quantity = quantity;
+        }
+
+    }
+
+    private static final class CartWrite {
+
+        private final ActiveCart cart;
+        private final List<int[]> upserts=new ArrayList<>(); //(id, quantità, stored product)
+        private final List<Integer> deletes=new ArrayList<>();
+        private int versionDelta;
+        private long expectedVersion; //versione sul db da cui partono le modifiche
+
+        CartWrite(ActiveCart cart) {
+            this.cart = cart;
+        }
+
+    }
+
+    private static final class StaleCartException extends RuntimeException {
+
+        private final List<CartWrite> stale;
+
+        StaleCartException(List<CartWrite> stale) {
+            super(stale.size()+" carts changed on the database");
+            this.stale = stale;
+        }
+
+    }
+
+}
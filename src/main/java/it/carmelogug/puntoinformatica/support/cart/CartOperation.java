@@ -0,0 +1,26 @@
+package it.carmelogug.puntoinformatica.support.cart;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/*
+    Operazione di una modifica multipla del carrello:
+    ADD aggiunge quantity (almeno 1) allo storedProduct (crea la riga se non c'è), SET imposta la quantità
+    (0 o più) della riga storedProductInCart, REMOVE rimuove la riga storedProductInCart.
+ */
+@Getter
+@Setter
+public class CartOperation {
+
+    public enum Type {
+        ADD,
+        SET,
+        REMOVE
+    }
+
+    private Type type;
+    private Integer storedProduct;
+    private Integer storedProductInCart;
+    private Integer quantity;
+
+}
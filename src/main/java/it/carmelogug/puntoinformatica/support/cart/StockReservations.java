@@ -0,0 +1,271 @@
+package it.carmelogug.puntoinformatica.support.cart;
+
+
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import it.carmelogug.puntoinformatica.support.events.CartChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.QuantityProductUnvailableException;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/*
+    Prenotazioni in memoria della quantità dei prodotti negli store, fatte quando un prodotto entra nel carrello.
+
+    Ogni carrello prenota per ogni prodotto la quantità della sua riga: la prenotazione riesce se la quantità
+    del prodotto (StoredProduct.quantity, da EntityCache) meno quella prenotata dagli altri carrelli basta.
+    Una prenotazione scade dopo ttl-seconds dall'ultima modifica della riga: le scadenze sono in una timer wheel
+    di wheel-size slot da tick-ms, e ad ogni tick vengono rimosse insieme tutte le prenotazioni scadute nello slot.
+    All'acquisto le prenotazioni del carrello vengono confermate (verificando in memoria solo le righe scadute)
+    e rilasciate dopo il commit (CartChangedEvent), quando la quantità sul db è già stata scalata.
+
+    Le prenotazioni sono per nodo e non sopravvivono al riavvio: il decremento condizionato al checkout
+    resta il controllo definitivo.
+ */
+@Component
+@Log4j2
+public class StockReservations {
+
+    private final EntityCache entityCache;
+
+    private final boolean enabled;
+
+    private final long ttlTicks;
+
+    //serializza prenotazioni, rilasci e scadenze: operazioni in memoria di pochi microsecondi
+    private final ReentrantLock lock=new ReentrantLock();
+
+    private final Map<Integer,Integer> reservedByStoredProduct=new HashMap<>();
+    private final Map<Integer,Map<Integer,Reservation>> reservationsByCart=new HashMap<>();
+    private final TimerWheel wheel;
+    private long tick=0;
+
+    private final LongAdder expired=new LongAdder();
+    private final LongAdder rejected=new LongAdder();
+
+    private final ScheduledExecutorService ticker=Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t=new Thread(r,"stock-reservations");
+        t.setDaemon(true);
+        return t;
+    });
+
+
+    @Autowired
+    public StockReservations(EntityCache entityCache,
+                             @Value("${puntoinformatica.reservations.enabled:true}") boolean enabled,
+                             @Value("${puntoinformatica.reservations.ttl-seconds:900}") long ttlSeconds,
+                             @Value("${puntoinformatica.reservations.tick-ms:1000}") long tickMillis,
+                             @Value("${puntoinformatica.reservations.wheel-size:512}") int wheelSize) {
+        this.entityCache = entityCache;
+        this.enabled = enabled;
+        this.ttlTicks = Math.max(1,ttlSeconds*1000/tickMillis);
+        this.wheel = new TimerWheel(wheelSize);
+        if(enabled) ticker.scheduleAtFixedRate(this::advance,tickMillis,tickMillis,TimeUnit.MILLISECONDS);
+    }
+
+
+    /*
+        Porta le prenotazioni del carrello alle quantità indicate (stored product -> quantità, 0 o meno per rilasciarla),
+        tutte o nessuna. Le prenotazioni indicate ripartono da ttl-seconds.
+     */
+    public void reserve(int cartId, Map<Integer,Integer> quantities) throws QuantityProductUnvailableException {
+        if(!enabled || quantities.isEmpty()) return;
+        //letture da EntityCache (eventualmente dal db) fuori dal lock
+        Map<Integer,Integer> stock=new HashMap<>();
+        for(Map.Entry<Integer,Integer> e:quantities.entrySet()){
+            if(e.getValue()<=0) continue;
+            StoredProduct sp=entityCache.findStoredProductById(e.getKey());
+            stock.put(e.getKey(),sp==null ? 0 : sp.getQuantity());
+        }
+        lock.lock();
+        try{
+            Map<Integer,Reservation> held=reservationsByCart.getOrDefault(cartId,Collections.emptyMap());
+            for(Map.Entry<Integer,Integer> e:quantities.entrySet()){
+                if(e.getValue()<=0) continue;
+                Reservation own=held.get(e.getKey());
+                int available=stock.get(e.getKey())-reservedByStoredProduct.getOrDefault(e.getKey(),0)+(own==null ? 0 : own.quantity);
+                if(e.getValue()>available){
+                    rejected.increment();
+                    throw new QuantityProductUnvailableException(
+                            "Quantity Product Unvailable!"+","+
+                                    "Product: " + e.getKey()+","+
+                                    "Available: " + Math.max(0,available)
+                    );
+                }
+            }
+            for(Map.Entry<Integer,Integer> e:quantities.entrySet()) set(cartId,e.getKey(),e.getValue());
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(int cartId, int storedProduct) {
+        if(!enabled) return;
+        lock.lock();
+        try{
+            set(cartId,storedProduct,0);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String,Object> stats() {
+        Map<String,Object> result=new LinkedHashMap<>();
+        lock.lock();
+        try{
+            int count=0;
+            for(Map<Integer,Reservation> held:reservationsByCart.values()) count+=held.size();
+            result.put("carts",reservationsByCart.size());
+            result.put("reservations",count);
+            result.put("reservedUnits",reservedByStoredProduct.values().stream().mapToLong(Integer::longValue).sum());
+        }finally {
+            lock.unlock();
+        }
+        result.put("expired",expired.sum());
+        result.put("rejected",rejected.sum());
+        return result;
+    }
+
+    @PreDestroy
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+
+
+    /*
+        Rilasci dopo il commit: acquisto del carrello e rimozione del prodotto dallo store
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCartChanged(CartChangedEvent event) {
+        if(!enabled) return;
+        lock.lock();
+        try{
+            Map<Integer,Reservation> held=reservationsByCart.get(event.getCartId());
+            if(held==null) return;
+            for(Integer storedProduct:new ArrayList<>(held.keySet())) set(event.getCartId(),storedProduct,0);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoredProductChanged(StoredProductChangedEvent event) {
+        if(!enabled || !event.isRemoved()) return;
+        int storedProduct=event.getStoredProduct().getId();
+        lock.lock();
+        try{
+            for(Integer cartId:new ArrayList<>(reservationsByCart.keySet())) set(cartId,storedProduct,0);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+
+
+    /*
+        Metodi di supporto, da chiamare con il lock acquisito
+     */
+    private void set(int cartId, int storedProduct, int quantity) {
+        Map<Integer,Reservation> held=reservationsByCart.get(cartId);
+        Reservation r=held==null ? null : held.get(storedProduct);
+        if(r!=null){
+            wheel.cancel(r);
+            remove(r);
+        }
+        if(quantity<=0) return;
+        r=new Reservation(cartId,storedProduct,quantity,tick+ttlTicks);
+        reservationsByCart.computeIfAbsent(cartId,k -> new HashMap<>()).put(storedProduct,r);
+        reservedByStoredProduct.merge(storedProduct,quantity,Integer::sum);
+        wheel.schedule(r);
+    }
+
+    private void remove(Reservation r) {
+        Map<Integer,Reservation> held=reservationsByCart.get(r.cartId);
+        if(held!=null && held.remove(r.storedProduct,r) && held.isEmpty()) reservationsByCart.remove(r.cartId);
+        reservedByStoredProduct.computeIfPresent(r.storedProduct,(k,v) -> v-r.quantity<=0 ? null : v-r.quantity);
+    }
+
+    private void advance() {
+        lock.lock();
+        try{
+            tick++;
+            List<Reservation> due=wheel.expire(tick);
+            for(Reservation r:due) remove(r);
+            expired.add(due.size());
+        }catch (RuntimeException e){
+            log.error("Stock reservation expiry failed: {}",e.getMessage());
+        }finally {
+            lock.unlock();
+        }
+    }
+
+
+
+    private static final class Reservation {
+
+        private final int cartId;
+        private final int storedProduct;
+        private final int quantity;
+        private final long deadline; //tick di scadenza
+
+        Reservation(int cartId, int storedProduct, int quantity, long deadline) {
+            this.cartId = cartId;
+            this.storedProduct = storedProduct;
+            this.quantity = quantity;
+            this.deadline = deadline;
+        }
+
+    }
+
+    /*
+        Hashed timer wheel: la prenotazione con scadenza al tick t sta nello slot t % size.
+        Uno slot può contenere scadenze di giri diversi, che restano nello slot fino al loro tick.
+     */
+    private static final class TimerWheel {
+
+        private final List<Set<Reservation>> slots;
+
+        TimerWheel(int size) {
+            slots=new ArrayList<>(size);
+            for(int i=0; i<size; i++) slots.add(new HashSet<>());
+        }
+
+        void schedule(Reservation r) {
+            slot(r.deadline).add(r);
+        }
+
+        void cancel(Reservation r) {
+            slot(r.deadline).remove(r);
+        }
+
+        List<Reservation> expire(long tick) {
+            List<Reservation> result=new ArrayList<>();
+            for(Iterator<Reservation> it=slot(tick).iterator(); it.hasNext(); ){
+                Reservation r=it.next();
+                if(r.deadline>tick) continue;
+                it.remove();
+                result.add(r);
+            }
+            return result;
+        }
+
+        private Set<Reservation> slot(long tick) {
+            return slots.get((int) (tick%slots.size()));
+        }
+
+    }
+
+}
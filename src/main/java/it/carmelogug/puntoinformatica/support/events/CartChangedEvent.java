@@ -0,0 +1,18 @@
+package it.carmelogug.puntoinformatica.support.events;
+
+import lombok.Getter;
+
+/*
+    Pubblicato quando un carrello viene modificato direttamente sul db senza passare da CartEngine (acquisto).
+    Consegnato ai listener dopo il commit della transazione.
+ */
+@Getter
+public class CartChangedEvent {
+
+    private final int cartId;
+
+    public CartChangedEvent(int cartId) {
+        this.cartId = cartId;
+    }
+
+}
@@ -0,0 +1,19 @@
+package it.carmelogug.puntoinformatica.support.events;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import lombok.Getter;
+
+/*
+    Pubblicato da ProductService ogni volta che un prodotto viene aggiunto, bannato o sbannato.
+    Le strutture in memoria (indici di ricerca ecc.) lo ricevono solo dopo il commit della transazione.
+ */
+@Getter
+public class ProductChangedEvent {
+
+    private final Product product;
+
+    public ProductChangedEvent(Product product) {
+        this.product = product;
+    }
+
+}
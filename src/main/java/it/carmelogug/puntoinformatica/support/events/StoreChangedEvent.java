@@ -0,0 +1,19 @@
+package it.carmelogug.puntoinformatica.support.events;
+
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import lombok.Getter;
+
+/*
+    Pubblicato da StoreService quando uno store viene aggiunto, bannato o sbannato.
+    Consegnato ai listener dopo il commit della transazione.
+ */
+@Getter
+public class StoreChangedEvent {
+
+    private final Store store;
+
+    public StoreChangedEvent(Store store) {
+        this.store = store;
+    }
+
+}
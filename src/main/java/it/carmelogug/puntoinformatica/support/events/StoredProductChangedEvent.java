@@ -0,0 +1,21 @@
+package it.carmelogug.puntoinformatica.support.events;
+
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import lombok.Getter;
+
+/*
+    Pubblicato quando un prodotto in uno store viene aggiunto, modificato (prezzo o quantità) o rimosso.
+    removed è true se la riga non esiste più.
+ */
+@Getter
+public class StoredProductChangedEvent {
+
+    private final StoredProduct storedProduct;
+    private final boolean removed;
+
+    public StoredProductChangedEvent(StoredProduct storedProduct, boolean removed) {
+        this.storedProduct = storedProduct;
+        this.removed = removed;
+    }
+
+}
@@ -0,0 +1,9 @@
+package it.carmelogug.puntoinformatica.support.exceptions.Purchasing;
+
+public class CartInCheckoutException extends Exception{
+    private final static String message="A purchase of the cart is in progress, retry later!";
+
+    public CartInCheckoutException(){
+        super(message);
+    }
+}
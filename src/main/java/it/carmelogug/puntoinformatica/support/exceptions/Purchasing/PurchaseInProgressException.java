@@ -0,0 +1,9 @@
+package it.carmelogug.puntoinformatica.support.exceptions.Purchasing;
+
+public class PurchaseInProgressException extends Exception{
+    private final static String message="A purchase with the same Idempotency-Key is in progress, retry later!";
+
+    public PurchaseInProgressException(){
+        super(message);
+    }
+}
@@ -0,0 +1,137 @@
+package it.carmelogug.puntoinformatica.support.idempotency;
+
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.PurchaseInProgressException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Risultati delle richieste con Idempotency-Key: chiave -> id dell'entità creata (es. l'acquisto).
+
+    La prima richiesta con una chiave esegue l'operazione; le richieste successive con la stessa chiave ricevono
+    l'id già creato senza eseguirla. Le richieste che arrivano mentre la prima è in corso ne attendono l'esito
+    per al massimo wait-timeout-ms, poi ricevono PurchaseInProgressException: un'esecuzione bloccata non tiene
+    occupati i thread delle richieste ripetute.
+    Un'esecuzione fallita non viene ricordata: la richiesta successiva con la stessa chiave la ripete.
+    Il numero di chiavi è limitato (maximum-size) e ogni chiave scade dopo ttl-seconds.
+ */
+@Component
+public class IdempotencyStore {
+
+    private final Cache<String,CompletableFuture<Integer>> results;
+
+    private final long waitTimeoutMillis;
+
+    private final LongAdder coalesced=new LongAdder();
+    private final LongAdder timedOut=new LongAdder();
+
+
+    @Autowired
+    public IdempotencyStore(@Value("${puntoinformatica.idempotency.maximum-size:100000}") long maximumSize,
+                            @Value("${puntoinformatica.idempotency.ttl-seconds:86400}") long ttlSeconds,
+                            @Value("${puntoinformatica.idempotency.wait-timeout-ms:10000}") long waitTimeoutMillis) {
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.results = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+    }
+
+
+    /*
+        Restituisce un Claim già risolto (isReplayed) se la chiave ha già un risultato, attendendo l'esecuzione
+        in corso con la stessa chiave. Altrimenti il chiamante diventa l'esecutore: deve chiamare complete con
+        l'id creato e in ogni caso release (in un finally).
+        L'attesa vale in totale, anche se nel frattempo un'esecuzione fallisce e ne parte un'altra.
+     */
+    public Claim claim(String key) throws PurchaseInProgressException {
+        long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+        while(true){
+            CompletableFuture<Integer> own=new CompletableFuture<>();
+            CompletableFuture<Integer> existing=results.asMap().putIfAbsent(key,own);
+            if(existing==null) return new Claim(key,own);
+            if(!existing.isDone()) coalesced.increment();
+            Integer id;
+            try{
+                id=existing.get(Math.max(0,deadline-System.nanoTime()),TimeUnit.NANOSECONDS);
+            }catch (TimeoutException e){
+                timedOut.increment();
+                throw new PurchaseInProgressException();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new PurchaseInProgressException();
+            }catch (ExecutionException e){
+                //i future vengono completati solo con un id o con null: trattato come esecuzione fallita
+                id=null;
+            }
+            if(id!=null) return new Claim(id);
+            //l'esecuzione in corso è fallita: si riprova a diventare l'esecutore
+        }
+    }
+
+    public Map<String,Object> stats() {
+        Map<String,Object> result=EntityCache.stats(results);
+        result.put("coalesced",coalesced.sum());
+        result.put("timedOut",timedOut.sum());
+        return result;
+    }
+
+
+
+    public class Claim {
+
+        private final String key;
+        private final CompletableFuture<Integer> future;
+        private final Integer replayedId;
+
+        private Claim(String key, CompletableFuture<Integer> future) {
+            this.key = key;
+            this.future = future;
+            this.replayedId = null;
+        }
+
+        private Claim(int replayedId) {
+            this.key = null;
+            this.future = null;
+            this.replayedId = replayedId;
+        }
+
+        public boolean isReplayed() {
+            return replayedId!=null;
+        }
+
+        //id già creato, solo se isReplayed
+        public int getId() {
+            return replayedId;
+        }
+
+        public void complete(int id) {
+            future.complete(id);
+        }
+
+        /*
+            Un'esecuzione non completata libera la chiave e sblocca le richieste in attesa.
+         */
+        public void release() {
+            if(future==null || future.isDone()) return;
+            results.asMap().remove(key,future);
+            future.complete(null);
+        }
+
+    }
+
+}
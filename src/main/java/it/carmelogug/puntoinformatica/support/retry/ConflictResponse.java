@@ -0,0 +1,29 @@
+package it.carmelogug.puntoinformatica.support.retry;
+
+
+import it.carmelogug.puntoinformatica.support.ResponseMessage;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+
+/*
+    Risposta dei controller a un conflitto di versione non risolto da OptimisticRetryAspect (tentativi esauriti
+    o budget negato): 409 con Retry-After, così il client ripete la richiesta invece di riceverla come errore interno.
+ */
+public final class ConflictResponse {
+
+    public static final String MESSAGE="Resource modified concurrently, retry later!";
+
+    private static final int RETRY_AFTER_SECONDS=1;
+
+    private ConflictResponse() {
+    }
+
+    public static ResponseEntity<ResponseMessage> of() {
+        HttpHeaders headers=new HttpHeaders();
+        headers.add(HttpHeaders.RETRY_AFTER,String.valueOf(RETRY_AFTER_SECONDS));
+        return new ResponseEntity<>(new ResponseMessage(MESSAGE),headers,HttpStatus.CONFLICT);
+    }
+
+}
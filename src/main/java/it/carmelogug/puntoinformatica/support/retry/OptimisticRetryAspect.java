@@ -0,0 +1,147 @@
+package it.carmelogug.puntoinformatica.support.retry;
+
+
+import lombok.extern.log4j.Log4j2;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.OptimisticLockException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/*
+    Riesecuzione dei metodi @RetryOnConflict falliti per un conflitto di versione
+    (OptimisticLockException o OptimisticLockingFailureException, anche come causa).
+
+    L'aspect ha precedenza massima, quindi avvolge l'interceptor di @Transactional: ogni tentativo
+    è una nuova transazione, e il conflitto sollevato al commit viene intercettato. Se il metodo
+    è chiamato dentro una transazione già attiva non viene rieseguito (la transazione esterna è da annullare).
+
+    Attesa prima del tentativo n: casuale tra 0 e min(max-delay, base-delay * 2^n) (full jitter).
+    Budget: ogni chiamata accredita budget-ratio tentativi (fino a budget-max), ogni nuovo tentativo ne consuma uno.
+    Con budget esaurito il conflitto arriva al chiamante, così i tentativi non moltiplicano il carico
+    quando i conflitti sono la norma.
+ */
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@Log4j2
+public class OptimisticRetryAspect {
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final double budgetRatio;
+    private final double budgetMax;
+
+    private double budget;
+
+    private final Map<String,MethodCounters> counters=new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public OptimisticRetryAspect(@Value("${puntoinformatica.retry.max-attempts:4}") int maxAttempts,
+                                 @Value("${puntoinformatica.retry.base-delay-ms:10}") long baseDelayMillis,
+                                 @Value("${puntoinformatica.retry.max-delay-ms:200}") long maxDelayMillis,
+                                 @Value("${puntoinformatica.retry.budget-ratio:0.2}") double budgetRatio,
+                                 @Value("${puntoinformatica.retry.budget-max:50}") double budgetMax) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetRatio = budgetRatio;
+        this.budgetMax = budgetMax;
+        this.budget = budgetMax;
+    }
+
+
+    @Around("@annotation(it.carmelogug.puntoinformatica.support.retry.RetryOnConflict)")
+    public Object retry(ProceedingJoinPoint joinPoint) throws Throwable {
+        if(TransactionSynchronizationManager.isActualTransactionActive()) return joinPoint.proceed();
+
+        MethodCounters methodCounters=counters.computeIfAbsent(joinPoint.getSignature().toShortString(),k -> new MethodCounters());
+        methodCounters.calls.increment();
+        deposit();
+        for(int attempt=1; ; attempt++){
+            try{
+                return joinPoint.proceed();
+            }catch (Throwable t){
+                if(!isConflict(t)) throw t;
+                methodCounters.conflicts.increment();
+                if(attempt>=maxAttempts){
+                    methodCounters.exhausted.increment();
+                    throw t;
+                }
+                if(!withdraw()){
+                    methodCounters.budgetDenied.increment();
+                    throw t;
+                }
+                methodCounters.retries.increment();
+                long delay=ThreadLocalRandom.current().nextLong(Math.min(maxDelayMillis,baseDelayMillis<<Math.min(attempt,20))+1);
+                log.debug("Version conflict in {}, attempt {} retried in {} ms",joinPoint.getSignature().toShortString(),attempt,delay);
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /*
+        Contatori per metodo, ordinati per nome.
+     */
+    public Map<String,Map<String,Object>> stats() {
+        Map<String,Map<String,Object>> result=new TreeMap<>();
+        counters.forEach((method,c) -> {
+            Map<String,Object> m=new LinkedHashMap<>();
+            m.put("calls",c.calls.sum());
+            m.put("conflicts",c.conflicts.sum());
+            m.put("retries",c.retries.sum());
+            m.put("exhausted",c.exhausted.sum());
+            m.put("budgetDenied",c.budgetDenied.sum());
+            result.put(method,m);
+        });
+        return result;
+    }
+
+
+
+    private synchronized void deposit() {
+        budget=Math.min(budgetMax,budget+budgetRatio);
+    }
+
+    private synchronized boolean withdraw() {
+        if(budget<1) return false;
+        budget--;
+        return true;
+    }
+
+    private static boolean isConflict(Throwable t) {
+        for(Throwable c=t; c!=null; c=c.getCause()){
+            if(c instanceof OptimisticLockException || c instanceof OptimisticLockingFailureException) return true;
+            if(c.getCause()==c) break;
+        }
+        return false;
+    }
+
+
+    private static final class MethodCounters {
+
+        private final LongAdder calls=new LongAdder();
+        private final LongAdder conflicts=new LongAdder();
+        private final LongAdder retries=new LongAdder();
+        private final LongAdder exhausted=new LongAdder();
+        private final LongAdder budgetDenied=new LongAdder();
+
+    }
+
+}
@@ -0,0 +1,18 @@
+package it.carmelogug.puntoinformatica.support.retry;
+
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+/*
+    Metodo transazionale rieseguito da OptimisticRetryAspect in caso di conflitto di versione.
+    Il metodo deve poter essere rieseguito con gli stessi argomenti: le entità vanno rilette dal db
+    all'interno della transazione, perché dopo il rollback quelle passate come argomento sono staccate.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RetryOnConflict {
+}
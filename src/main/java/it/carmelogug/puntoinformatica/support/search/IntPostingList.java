@@ -0,0 +1,69 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+import java.util.Arrays;
+
+/*
+    Lista ordinata di id (senza duplicati) su array primitivo.
+    Gli id dei prodotti sono crescenti, quindi l'inserimento è quasi sempre un append in coda.
+ */
+final class IntPostingList {
+
+    private int[] ids=new int[4];
+    private int size=0;
+
+    int size() {
+        return size;
+    }
+
+    int get(int i) {
+        return ids[i];
+    }
+
+    void add(int id) {
+        if(size>0 && ids[size-1]<id){
+            ensureCapacity();
+            ids[size++]=id;
+            return;
+        }
+        int pos=Arrays.binarySearch(ids,0,size,id);
+        if(pos>=0) return;
+        pos=-pos-1;
+        ensureCapacity();
+        System.arraycopy(ids,pos,ids,pos+1,size-pos);
+        ids[pos]=id;
+        size++;
+    }
+
+    void remove(int id) {
+        int pos=Arrays.binarySearch(ids,0,size,id);
+        if(pos<0) return;
+        System.arraycopy(ids,pos+1,ids,pos,size-pos-1);
+        size--;
+    }
+
+    /*
+        Restituisce gli id presenti sia in candidates (ordinato, lunghezza count) sia nella lista,
+        scrivendoli in testa a candidates. Restituisce il numero di id rimasti.
+     */
+    int retainIn(int[] candidates, int count) {
+        int i=0, j=0, out=0;
+        while(i<count && j<size){
+            if(candidates[i]<ids[j]) i++;
+            else if(candidates[i]>ids[j]) j++;
+            else {
+                candidates[out++]=candidates[i];
+                i++; j++;
+            }
+        }
+        return out;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(ids,size);
+    }
+
+    private void ensureCapacity() {
+        if(size==ids.length) ids=Arrays.copyOf(ids,size*2);
+    }
+
+}
@@ -0,0 +1,311 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.repositories.StoredProductRepository;
+import it.carmelogug.puntoinformatica.support.events.ProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoreChangedEvent;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+
+/*
+    Listino in memoria delle offerte (StoredProduct) di ogni prodotto, ordinate per prezzo crescente.
+
+    Ogni listino è fatto di array primitivi paralleli (prezzo, quantità, store, id) e non viene mai modificato:
+    ogni aggiornamento crea un nuovo listino e lo sostituisce, quindi le letture non prendono lock.
+    Gli aggiornamenti arrivano dopo il commit tramite StoredProductChangedEvent (aggiunta, modifica, rimozione, acquisto)
+    e dagli eventi di ban di store e prodotti.
+    Gli eventi di transazioni concorrenti possono arrivare in un ordine diverso da quello dei commit: ogni offerta
+    ha la versione di StoredProduct e un evento con una versione non più recente di quella nel listino viene ignorato.
+    Gli id delle offerte rimosse restano per un po' tra le rimozioni recenti, così un evento in ritardo non le fa ricomparire.
+ */
+@Component
+@Log4j2
+public class PriceBookIndex {
+
+    private final StoredProductRepository storedProductRepository;
+
+    //false anche se la costruzione all'avvio fallisce: la ricerca usa la query JPA
+    private volatile boolean enabled;
+
+    private final Map<Integer,PriceBook> books=new ConcurrentHashMap<>();
+
+    //serializza gli aggiornamenti, le letture non lo usano
+    private final Object writeLock=new Object();
+    private final List<Runnable> pending=new ArrayList<>();
+    private volatile boolean ready=false;
+
+    //id delle offerte rimosse più di recente, solo con writeLock
+    private static final int MAX_REMOVED=10_000;
+    private final Set<Integer> removed=Collections.newSetFromMap(new LinkedHashMap<Integer,Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,Boolean> eldest) {
+            return size()>MAX_REMOVED;
+        }
+    });
+
+
+    @Autowired
+    public PriceBookIndex(StoredProductRepository storedProductRepository,
+                          @Value("${puntoinformatica.offers.price-book.enabled:true}") boolean enabled) {
+        this.storedProductRepository = storedProductRepository;
+        this.enabled = enabled;
+    }
+
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        if(!enabled) return;
+        long start=System.currentTimeMillis();
+        List<Object[]> rows;
+        try{
+            rows=storedProductRepository.findAllOffers();
+        }catch (RuntimeException e){
+            log.error("Price book not built, offer search uses the database: {}",e.getMessage());
+            synchronized (writeLock){
+                enabled=false;
+                pending.clear();
+            }
+            return;
+        }
+        synchronized (writeLock){
+            //righe ordinate per (prodotto, prezzo, id): ogni listino viene creato in un colpo solo
+            int from=0;
+            while(from<rows.size()){
+                Integer product=(Integer) rows.get(from)[1];
+                int to=from;
+                while(to<rows.size() && product.equals(rows.get(to)[1])) to++;
+                books.put(product,PriceBook.of(rows.subList(from,to)));
+                from=to;
+            }
+            for(Runnable update:pending) update.run();
+            pending.clear();
+            ready=true;
+        }
+        log.info("Price book built: {} offers for {} products in {} ms",rows.size(),books.size(),System.currentTimeMillis()-start);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoredProductChanged(StoredProductChangedEvent event) {
+        StoredProduct sp=event.getStoredProduct();
+        int id=sp.getId(), product=sp.getProduct().getId(), store=sp.getStore().getId();
+        double price=sp.getPrice();
+        int quantity=sp.getQuantity();
+        long version=sp.getVersion();
+        if(event.isRemoved()) update(() -> remove(product,id));
+        else update(() -> upsert(id,product,store,price,quantity,version));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoreChanged(StoreChangedEvent event) {
+        //il ban rimuove tutti i prodotti dello store
+        if(!event.getStore().isBanned()) return;
+        int store=event.getStore().getId();
+        update(() -> books.replaceAll((product,book) -> book.withoutStore(store)));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onProductChanged(ProductChangedEvent event) {
+        if(!event.getProduct().isBanned()) return;
+        int product=event.getProduct().getId();
+        update(() -> books.remove(product));
+    }
+
+
+    /*
+        Offerte del prodotto ordinate per prezzo crescente, filtrate per store (se non null), prezzo massimo (se non null)
+        e quantità strettamente maggiore di minQuantity (se non null). Al più limit risultati.
+     */
+    public List<Offer> find(int product, Integer store, Double maxPrice, Integer minQuantity, int limit) {
+        PriceBook book=books.get(product);
+        List<Offer> result=new ArrayList<>();
+        if(book==null) return result;
+        for(int i=0; i<book.size() && result.size()<limit; i++){
+            if(maxPrice!=null && book.prices[i]>maxPrice) break; //listino ordinato per prezzo
+            if(store!=null && book.stores[i]!=store) continue;
+            if(minQuantity!=null && book.quantities[i]<=minQuantity) continue;
+            result.add(new Offer(book.ids[i],product,book.stores[i],book.prices[i],book.quantities[i]));
+        }
+        return result;
+    }
+
+
+
+    private void update(Runnable update) {
+        if(!enabled) return;
+        synchronized (writeLock){
+            if(ready) update.run();
+            else if(enabled) pending.add(update);
+        }
+    }
+
+    private void upsert(int id, int product, int store, double price, int quantity, long version) {
+        if(removed.contains(id)) return;
+        books.compute(product,(p,book) -> {
+            if(book==null) return PriceBook.EMPTY.with(id,store,price,quantity,version);
+            return book.version(id)>=version ? book : book.with(id,store,price,quantity,version);
+        });
+    }
+
+    //una riga rimossa non torna: la rimozione vale qualunque sia la versione
+    private void remove(int product, int id) {
+        removed.add(id);
+        books.computeIfPresent(product,(p,book) -> {
+            PriceBook result=book.without(id);
+            return result.size()==0 ? null : result;
+        });
+    }
+
+
+
+    @Getter
+    public static class Offer {
+
+        private final int storedProductId;
+        private final int productId;
+        private final int storeId;
+        private final double price;
+        private final int quantity;
+
+        Offer(int storedProductId, int productId, int storeId, double price, int quantity) {
+            this.storedProductId = storedProductId;
+            this.productId = productId;
+            this.storeId = storeId;
+            this.price = price;
+            this.quantity = quantity;
+        }
+
+    }
+
+
+    /*
+        Listino immutabile di un prodotto: array paralleli ordinati per (prezzo, id).
+     */
+    private static final class PriceBook {
+
+        private static final PriceBook EMPTY=new PriceBook(new int[0],new int[0],new double[0],new int[0],new long[0]);
+
+        private final int[] ids;
+        private final int[] stores;
+        private final double[] prices;
+        private final int[] quantities;
+        private final long[] versions;
+
+        private PriceBook(int[] ids, int[] stores, double[] prices, int[] quantities, long[] versions) {
+            this.ids = ids;
+            this.stores = stores;
+            this.prices = prices;
+            this.quantities = quantities;
+            this.versions = versions;
+        }
+
+        static PriceBook of(List<Object[]> rows) {
+            int n=rows.size();
+            int[] ids=new int[n], stores=new int[n], quantities=new int[n];
+            double[] prices=new double[n];
+            long[] versions=new long[n];
+            for(int i=0; i<n; i++){
+                Object[] row=rows.get(i);
+                ids[i]=(Integer) row[0];
+                stores[i]=(Integer) row[2];
+                prices[i]=(Double) row[3];
+                quantities[i]=(Integer) row[4];
+                versions[i]=(Long) row[5];
+            }
+            return new PriceBook(ids,stores,prices,quantities,versions);
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        //-1 se l'offerta non è nel listino
+        long version(int id) {
+            for(int i=0; i<ids.length; i++) if(ids[i]==id) return versions[i];
+            return -1;
+        }
+
+        PriceBook with(int id, int store, double price, int quantity, long version) {
+            PriceBook base=without(id);
+            int n=base.size();
+            int pos=0;
+            while(pos<n && (base.prices[pos]<price || (base.prices[pos]==price && base.ids[pos]<id))) pos++;
+            int[] ids=insert(base.ids,pos,id);
+            int[] stores=insert(base.stores,pos,store);
+            int[] quantities=insert(base.quantities,pos,quantity);
+            double[] prices=new double[n+1];
+            System.arraycopy(base.prices,0,prices,0,pos);
+            prices[pos]=price;
+            System.arraycopy(base.prices,pos,prices,pos+1,n-pos);
+            long[] versions=new long[n+1];
+            System.arraycopy(base.versions,0,versions,0,pos);
+            versions[pos]=version;
+            System.arraycopy(base.versions,pos,versions,pos+1,n-pos);
+            return new PriceBook(ids,stores,prices,quantities,versions);
+        }
+
+        PriceBook without(int id) {
+            for(int i=0; i<ids.length; i++){
+                if(ids[i]==id) return keep(index -> ids[index]!=id);
+            }
+            return this;
+        }
+
+        PriceBook withoutStore(int store) {
+            for(int s:stores){
+                if(s==store) return keep(index -> stores[index]!=store);
+            }
+            return this;
+        }
+
+        private PriceBook keep(IntPredicate filter) {
+            int n=0;
+            int[] ids=new int[this.ids.length], stores=new int[this.ids.length], quantities=new int[this.ids.length];
+            double[] prices=new double[this.ids.length];
+            long[] versions=new long[this.ids.length];
+            for(int i=0; i<this.ids.length; i++){
+                if(!filter.test(i)) continue;
+                ids[n]=this.ids[i];
+                stores[n]=this.stores[i];
+                prices[n]=this.prices[i];
+                quantities[n]=this.quantities[i];
+                versions[n]=this.versions[i];
+                n++;
+            }
+            return new PriceBook(Arrays.copyOf(ids,n),Arrays.copyOf(stores,n),Arrays.copyOf(prices,n),Arrays.copyOf(quantities,n),
+                    Arrays.copyOf(versions,n));
+        }
+
+        private static int[] insert(int[] array, int pos, int value) {
+            int[] result=new int[array.length+1];
+            System.arraycopy(array,0,result,0,pos);
+            result[pos]=value;
+            System.arraycopy(array,pos,result,pos+1,array.length-pos);
+            return result;
+        }
+
+    }
+
+}
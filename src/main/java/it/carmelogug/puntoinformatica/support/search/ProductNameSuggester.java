@@ -0,0 +1,442 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.repositories.ProductRepository;
+import it.carmelogug.puntoinformatica.support.events.ProductChangedEvent;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/*
+    Autocompletamento dei nomi dei prodotti non bannati.
+
+    I nomi sono in un radix trie (trie con etichette sugli archi) indicizzati per ogni inizio di parola,
+    quindi "iph" suggerisce anche "Apple iPhone 13". Il trie viene aggiornato dopo ogni commit tramite ProductChangedEvent.
+
+    All'arresto i nomi vengono salvati su disco: all'avvio lo snapshot viene usato solo se numero, id massimo
+    e somma degli id dei suoi prodotti sono uguali a quelli letti sul db (watermarkOfNotBanned, solo aggregati numerici
+    sulla colonna id), altrimenti il trie viene ricostruito dal db. Così un prodotto aggiunto, bannato o sbannato
+    mentre l'applicazione era ferma invalida lo snapshot; i nomi non vengono mai modificati dall'applicazione,
+    dopo una rinomina fatta direttamente sul db lo snapshot va cancellato a mano.
+ */
+@Component
+@Log4j2
+public class ProductNameSuggester {
+
+    private static final int SNAPSHOT_MAGIC=0x50495355; //"PISU"
+    private static final int SNAPSHOT_VERSION=2;
+
+
+    private final ProductRepository productRepository;
+
+    private final Path snapshotPath;
+
+    private final ReadWriteLock lock=new ReentrantReadWriteLock();
+
+    private final Node root=new Node("");
+    private final Map<Integer,String> names=new HashMap<>();
+
+    private final List<Product> pending=new ArrayList<>();
+    private volatile boolean ready=false;
+    private volatile boolean enabled=true; //false se la costruzione all'avvio fallisce: nessun suggerimento
+
+
+    @Autowired
+    public ProductNameSuggester(ProductRepository productRepository,
+                                @Value("${puntoinformatica.suggest.snapshot-path:suggest-snapshot.bin}") String snapshotPath) {
+        this.productRepository = productRepository;
+        this.snapshotPath = Paths.get(snapshotPath);
+    }
+
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        long start=System.currentTimeMillis();
+        Map<Integer,String> loaded;
+        boolean fromSnapshot;
+        try{
+            loaded=readSnapshot();
+            fromSnapshot=loaded!=null;
+            if(!fromSnapshot){
+                loaded=new HashMap<>();
+                for(Product p:productRepository.findAll()){
+                    if(!p.isBanned()) loaded.put(p.getId(),p.getName());
+                }
+            }
+        }catch (RuntimeException e){
+            log.error("Product name suggester not built, suggestions are disabled: {}",e.getMessage());
+            lock.writeLock().lock();
+            try{
+                enabled=false;
+                pending.clear();
+            }finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+        lock.writeLock().lock();
+        try{
+            for(Map.Entry<Integer,String> e:loaded.entrySet()) add(e.getKey(),e.getValue());
+            for(Product p:pending) apply(p);
+            pending.clear();
+            ready=true;
+        }finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Product name suggester built from {}: {} names in {} ms",
+                fromSnapshot ? "snapshot" : "database",loaded.size(),System.currentTimeMillis()-start);
+        if(!fromSnapshot) writeSnapshot();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onProductChanged(ProductChangedEvent event) {
+        if(!enabled) return;
+        Product p=new Product();
+        p.setId(event.getProduct().getId());
+        p.setName(event.getProduct().getName());
+        p.setBanned(event.getProduct().isBanned());
+        lock.writeLock().lock();
+        try{
+            if(ready) apply(p);
+            else if(enabled) pending.add(p);
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if(ready) writeSnapshot();
+    }
+
+
+    /*
+        I primi limit nomi distinti di prodotti che hanno una parola che inizia con prefix, ordinati per lunghezza
+        della parte del nome che inizia con quella parola (il completamento più corto prima), a parità in ordine
+        alfabetico di quella parte: per "ip" "iPhone" viene prima di "iPad Air 2", per "iph" "Apple iPhone 13"
+        (chiave "IPHONE 13") viene prima di "iPhone 14".
+     */
+    public List<String> suggest(String prefix, int limit) {
+        String key=normalize(prefix);
+        if(key.isEmpty() || limit<=0) return Collections.emptyList();
+        LinkedHashSet<String> result=new LinkedHashSet<>();
+        lock.readLock().lock();
+        try{
+            Node node=root;
+            StringBuilder path=new StringBuilder();
+            int matched=0;
+            while(matched<key.length()){
+                Node child=node.child(key.charAt(matched));
+                if(child==null) return Collections.emptyList();
+                int common=commonPrefix(child.label,key,matched);
+                if(matched+common<key.length() && common<child.label.length()) return Collections.emptyList();
+                matched+=common;
+                path.append(child.label);
+                node=child;
+            }
+            collect(node,path.toString(),result,limit);
+        }finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<>(result);
+    }
+
+
+
+    /*
+        Gestione del trie, da chiamare con il lock in scrittura
+     */
+    private void apply(Product p) {
+        String previous=names.get(p.getId());
+        if(previous!=null && (p.isBanned() || !previous.equals(p.getName()))) remove(p.getId());
+        if(!p.isBanned() && !names.containsKey(p.getId())) add(p.getId(),p.getName());
+    }
+
+    private void add(int id, String name) {
+        names.put(id,name);
+        for(String key:keys(name)) insert(key,name);
+    }
+
+    private void remove(int id) {
+        String name=names.remove(id);
+        if(name==null) return;
+        for(String key:keys(name)) remove(key,name);
+    }
+
+    /*
+        Toglie name dal nodo di key, poi risale il percorso: un nodo rimasto senza nomi e senza figli viene rimosso,
+        uno con un solo figlio viene fuso con il figlio, così il trie resta compatto dopo le rimozioni.
+     */
+    private void remove(String key, String name) {
+        List<Node> path=new ArrayList<>();
+        path.add(root);
+        Node node=root;
+        int pos=0;
+        while(pos<key.length()){
+            Node child=node.child(key.charAt(pos));
+            if(child==null) return;
+            int common=commonPrefix(child.label,key,pos);
+            if(common<child.label.length()) return;
+            pos+=common;
+            node=child;
+            path.add(node);
+        }
+        if(node.completions==null) return;
+        node.completions.computeIfPresent(name,(n,count) -> count>1 ? count-1 : null);
+        if(!node.completions.isEmpty()) return;
+        node.completions=null;
+        for(int i=path.size()-1; i>0; i--){
+            Node current=path.get(i), parent=path.get(i-1);
+            if(current.completions!=null || current.children.length>1) return;
+            if(current.children.length==1){
+                Node only=current.children[0];
+                only.label=current.label+only.label;
+                parent.replaceChild(current,only);
+                return;
+            }
+            parent.removeChild(current);
+        }
+    }
+
+    private void insert(String key, String name) {
+        Node node=root;
+        int pos=0;
+        while(pos<key.length()){
+            Node child=node.child(key.charAt(pos));
+            if(child==null){
+                child=new Node(key.substring(pos));
+                node.addChild(child);
+                node=child;
+                break;
+            }
+            int common=commonPrefix(child.label,key,pos);
+            if(common<child.label.length()){
+                //divide l'arco: child diventa figlio di un nuovo nodo intermedio
+                Node middle=new Node(child.label.substring(0,common));
+                node.replaceChild(child,middle);
+                child.label=child.label.substring(common);
+                middle.addChild(child);
+                child=middle;
+            }
+            pos+=common;
+            node=child;
+        }
+        if(node.completions==null) node.completions=new TreeMap<>();
+        node.completions.merge(name,1,Integer::sum);
+    }
+
+    /*
+        Visita best-first del sottoalbero di node: la coda restituisce i nodi in ordine di (lunghezza, chiave),
+        e i figli hanno sempre chiavi più lunghe del padre, quindi i nomi escono già nell'ordine del risultato
+        e la visita si ferma ai primi limit senza scorrere tutto il sottoalbero.
+     */
+    private static void collect(Node node, String key, Set<String> result, int limit) {
+        PriorityQueue<Candidate> queue=new PriorityQueue<>();
+        queue.add(new Candidate(node,key));
+        while(!queue.isEmpty() && result.size()<limit){
+            Candidate current=queue.poll();
+            if(current.node.completions!=null){
+                for(String name:current.node.completions.keySet()){
+                    if(result.size()>=limit) return;
+                    result.add(name);
+                }
+            }
+            for(Node child:current.node.children) queue.add(new Candidate(child,current.key+child.label));
+        }
+    }
+
+    private static int commonPrefix(String label, String key, int from) {
+        int i=0;
+        while(i<label.length() && from+i<key.length() && label.charAt(i)==key.charAt(from+i)) i++;
+        return i;
+    }
+
+    /*
+        Chiavi di un nome: il nome intero e ogni sua parte che inizia con una parola.
+     */
+    private static List<String> keys(String name) {
+        String normalized=normalize(name);
+        List<String> result=new ArrayList<>();
+        for(int i=0; i<normalized.length(); i++){
+            if(normalized.charAt(i)!=' ' && (i==0 || normalized.charAt(i-1)==' ')) result.add(normalized.substring(i));
+        }
+        return result;
+    }
+
+    private static String normalize(String s) {
+        return s==null ? "" : s.trim().replaceAll("\\s+"," ").toUpperCase();
+    }
+
+
+
+    /*
+        Snapshot su disco
+     */
+    private Map<Integer,String> readSnapshot() {
+        if(!Files.isReadable(snapshotPath)) return null;
+        try(DataInputStream in=new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))){
+            if(in.readInt()!=SNAPSHOT_MAGIC || in.readInt()!=SNAPSHOT_VERSION) return null;
+            long count=in.readLong();
+            Map<Integer,String> result=new HashMap<>();
+            for(long i=0; i<count; i++){
+                int id=in.readInt();
+                result.put(id,in.readUTF());
+            }
+            if(!Arrays.equals(watermark(result.keySet()),watermark(productRepository.watermarkOfNotBanned().get(0)))){
+                log.info("Product name suggester snapshot is stale, rebuilding from database");
+                return null;
+            }
+            return result;
+        }catch (IOException e){
+            log.warn("Unable to read product name suggester snapshot: {}",e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeSnapshot() {
+        Map<Integer,String> copy;
+        lock.readLock().lock();
+        try{
+            copy=new HashMap<>(names);
+        }finally {
+            lock.readLock().unlock();
+        }
+        try{
+            Path dir=snapshotPath.toAbsolutePath().getParent();
+            if(dir!=null) Files.createDirectories(dir);
+            Path tmp=Files.createTempFile(dir,"suggest",".tmp");
+            try(DataOutputStream out=new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))){
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(copy.size());
+                for(Map.Entry<Integer,String> e:copy.entrySet()){
+                    out.writeInt(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+            }
+            Files.move(tmp,snapshotPath,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException e){
+            log.warn("Unable to write product name suggester snapshot: {}",e.getMessage());
+        }
+    }
+
+
+
+    /*
+        Stessi valori di watermarkOfNotBanned: numero di prodotti, id massimo e somma degli id (0 se non ci sono prodotti).
+     */
+    static long[] watermark(Collection<Integer> ids) {
+        long max=0, sum=0;
+        for(int id:ids){
+            max=Math.max(max,id);
+            sum+=id;
+        }
+        return new long[]{ids.size(),max,sum};
+    }
+
+    static long[] watermark(Object[] row) {
+        long[] result=new long[row.length];
+        for(int i=0; i<row.length; i++) result[i]=((Number) row[i]).longValue();
+        return result;
+    }
+
+
+
+    private static final class Candidate implements Comparable<Candidate> {
+
+        private final Node node;
+        private final String key; //chiave completa fino a node compreso
+
+        Candidate(Node node, String key) {
+            this.node = node;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int result=Integer.compare(key.length(),other.key.length());
+            return result!=0 ? result : key.compareTo(other.key);
+        }
+
+    }
+
+    private static final class Node {
+
+        private static final Node[] NO_CHILDREN=new Node[0];
+
+        private String label;
+        private Node[] children=NO_CHILDREN; //ordinati per primo carattere dell'etichetta
+        private TreeMap<String,Integer> completions; //nomi che terminano qui, con il numero di prodotti
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node child(char c) {
+            int low=0, high=children.length-1;
+            while(low<=high){
+                int mid=(low+high)>>>1;
+                char m=children[mid].label.charAt(0);
+                if(m<c) low=mid+1;
+                else if(m>c) high=mid-1;
+                else return children[mid];
+            }
+            return null;
+        }
+
+        void addChild(Node child) {
+            char c=child.label.charAt(0);
+            int pos=0;
+            while(pos<children.length && children[pos].label.charAt(0)<c) pos++;
+            Node[] result=new Node[children.length+1];
+            System.arraycopy(children,0,result,0,pos);
+            result[pos]=child;
+            System.arraycopy(children,pos,result,pos+1,children.length-pos);
+            children=result;
+        }
+
+        void removeChild(Node child) {
+            for(int i=0; i<children.length; i++){
+                if(children[i]==child){
+                    Node[] result=new Node[children.length-1];
+                    System.arraycopy(children,0,result,0,i);
+                    System.arraycopy(children,i+1,result,i,children.length-i-1);
+                    children=result;
+                    return;
+                }
+            }
+        }
+
+        void replaceChild(Node old, Node replacement) {
+            for(int i=0; i<children.length; i++){
+                if(children[i]==old){
+                    children[i]=replacement;
+                    return;
+                }
+            }
+        }
+
+    }
+
+}
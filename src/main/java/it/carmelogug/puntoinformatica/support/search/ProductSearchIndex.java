@@ -0,0 +1,281 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.repositories.ProductRepository;
+import it.carmelogug.puntoinformatica.support.Utilities;
+import it.carmelogug.puntoinformatica.support.events.ProductChangedEvent;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/*
+    Indice invertito a trigrammi sul nome dei prodotti.
+
+    Per ogni trigramma del nome (in upperCase) viene mantenuta una posting list per ogni coppia (Type,Category),
+    così i filtri su type e category selezionano direttamente le liste da intersecare.
+    I candidati ottenuti dall'intersezione vengono poi verificati con un contains sul nome,
+    quindi il risultato è lo stesso della query advSearchByNameAndTypeAndCategory.
+
+    I conteggi per Type e Category contano gli stessi prodotti restituiti dalla ricerca, bannati compresi:
+    senza filtro sul nome sono le dimensioni delle liste di ogni coppia, quindi il catalogo non viene scorso.
+
+    L'indice viene costruito all'avvio e aggiornato dopo ogni commit tramite ProductChangedEvent.
+ */
+@Component
+@Log4j2
+public class ProductSearchIndex {
+
+    private static final int GRAM=3;
+    private static final Product.Type[] TYPES=Product.Type.values();
+    private static final Product.Category[] CATEGORIES=Product.Category.values();
+    private static final int BUCKETS=TYPES.length*CATEGORIES.length;
+
+
+    private final ProductRepository productRepository;
+
+    //false anche se la costruzione all'avvio fallisce: la ricerca usa la query JPA
+    private volatile boolean enabled;
+
+    private final ReadWriteLock lock=new ReentrantReadWriteLock();
+
+    private final Map<Long,IntPostingList[]> postings=new HashMap<>();
+    private final IntPostingList[] bucketIds=new IntPostingList[BUCKETS];
+    private final Map<Integer,Product> products=new HashMap<>();
+
+    //eventi arrivati mentre l'indice veniva costruito, riapplicati a fine costruzione
+    private final List<Product> pending=new ArrayList<>();
+    private volatile boolean ready=false;
+
+
+    @Autowired
+    public ProductSearchIndex(ProductRepository productRepository,
+                              @Value("${puntoinformatica.search.index.enabled:true}") boolean enabled) {
+        this.productRepository = productRepository;
+        this.enabled = enabled;
+        for(int b=0; b<BUCKETS; b++) bucketIds[b]=new IntPostingList();
+    }
+
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        if(!enabled) return;
+        long start=System.currentTimeMillis();
+        List<Product> all;
+        try{
+            all=productRepository.findAll();
+        }catch (RuntimeException e){
+            log.error("Product search index not built, search uses the database: {}",e.getMessage());
+            lock.writeLock().lock();
+            try{
+                enabled=false;
+                pending.clear();
+            }finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+        lock.writeLock().lock();
+        try{
+            for(Product p:all) put(Utilities.snapshot(p));
+            for(Product p:pending) put(p);
+            pending.clear();
+            ready=true;
+        }finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Product search index built: {} products, {} trigrams in {} ms",
+                products.size(),postings.size(),System.currentTimeMillis()-start);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onProductChanged(ProductChangedEvent event) {
+        if(!enabled) return;
+        Product p=Utilities.snapshot(event.getProduct());
+        lock.writeLock().lock();
+        try{
+            if(ready) put(p);
+            else if(enabled) pending.add(p);
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /*
+        name ha lo stesso formato passato alla query JPA: "%NOME%" per la ricerca per contenuto,
+        altrimenti viene confrontato per uguaglianza (es. nome composto da soli spazi).
+        Restituisce null se il pattern usa wildcard del LIKE che l'indice non gestisce:
+        in quel caso il chiamante deve usare la query JPA.
+     */
+    public List<Product> search(String name, Product.Type type, Product.Category category) {
+        String needle=needle(name);
+        if(isUnsupported(needle)) return null;
+        boolean containing=isContaining(name);
+
+        List<Product> result=new ArrayList<>();
+        lock.readLock().lock();
+        try{
+            for(Product.Type t:TYPES){
+                if(type!=null && type!=t) continue;
+                for(Product.Category c:CATEGORIES){
+                    if(category!=null && category!=c) continue;
+                    collect(bucket(t,c),needle,containing,result);
+                }
+            }
+        }finally {
+            lock.readLock().unlock();
+        }
+        result.sort(Comparator.comparing(Product::getId));
+        return result;
+    }
+
+    /*
+        Come search, ma restituisce anche i conteggi per Type e Category calcolati in un solo passaggio
+        sui prodotti che soddisfano il filtro sul nome. Senza filtro sul nome usa le dimensioni delle liste per coppia.
+     */
+    public ProductSearchResult searchWithFacets(String name, Product.Type type, Product.Category category) {
+        String needle=needle(name);
+        if(isUnsupported(needle)) return null;
+        boolean containing=isContaining(name);
+
+        long[] cells=new long[BUCKETS];
+        List<Product> result=new ArrayList<>();
+        lock.readLock().lock();
+        try{
+            for(Product.Type t:TYPES){
+                for(Product.Category c:CATEGORIES){
+                    boolean selected=(type==null || type==t) && (category==null || category==c);
+                    int bucket=bucket(t,c);
+                    if(needle==null){
+                        cells[bucket]=bucketIds[bucket].size();
+                        if(selected) collect(bucket,null,false,result);
+                        continue;
+                    }
+                    List<Product> matches=new ArrayList<>();
+                    collect(bucket,needle,containing,matches);
+                    cells[bucket]=matches.size();
+                    if(selected) result.addAll(matches);
+                }
+            }
+        }finally {
+            lock.readLock().unlock();
+        }
+        result.sort(Comparator.comparing(Product::getId));
+        return new ProductSearchResult(result,cells,type,category);
+    }
+
+
+
+    /*
+        Metodi di supporto, da chiamare con il lock acquisito
+     */
+    private void collect(int bucket, String needle, boolean containing, List<Product> result) {
+        if(needle==null){
+            IntPostingList all=bucketIds[bucket];
+            for(int i=0; i<all.size(); i++) result.add(products.get(all.get(i)));
+            return;
+        }
+        if(!containing || needle.length()<GRAM){
+            //nessun trigramma utilizzabile: scansione del solo bucket
+            IntPostingList all=bucketIds[bucket];
+            for(int i=0; i<all.size(); i++){
+                Product p=products.get(all.get(i));
+                if(matches(p,needle,containing)) result.add(p);
+            }
+            return;
+        }
+
+        List<IntPostingList> lists=new ArrayList<>();
+        for(long gram:trigrams(needle)){
+            IntPostingList[] byBucket=postings.get(gram);
+            if(byBucket==null || byBucket[bucket]==null || byBucket[bucket].size()==0) return;
+            lists.add(byBucket[bucket]);
+        }
+        lists.sort(Comparator.comparingInt(IntPostingList::size));
+        int[] candidates=lists.get(0).toArray();
+        int count=candidates.length;
+        for(int i=1; i<lists.size() && count>0; i++) count=lists.get(i).retainIn(candidates,count);
+        for(int i=0; i<count; i++){
+            Product p=products.get(candidates[i]);
+            if(matches(p,needle,true)) result.add(p);
+        }
+    }
+
+    private void put(Product p) {
+        Product previous=products.put(p.getId(),p);
+        if(previous!=null){
+            if(normalize(previous).equals(normalize(p)) &&
+                    previous.getType()==p.getType() && previous.getCategory()==p.getCategory()) return;
+            removePostings(previous);
+        }
+        addPostings(p);
+    }
+
+    private void addPostings(Product p) {
+        int bucket=bucket(p.getType(),p.getCategory());
+        bucketIds[bucket].add(p.getId());
+        for(long gram:trigrams(normalize(p))){
+            IntPostingList[] byBucket=postings.computeIfAbsent(gram, g -> new IntPostingList[BUCKETS]);
+            if(byBucket[bucket]==null) byBucket[bucket]=new IntPostingList();
+            byBucket[bucket].add(p.getId());
+        }
+    }
+
+    private void removePostings(Product p) {
+        int bucket=bucket(p.getType(),p.getCategory());
+        bucketIds[bucket].remove(p.getId());
+        for(long gram:trigrams(normalize(p))){
+            IntPostingList[] byBucket=postings.get(gram);
+            if(byBucket!=null && byBucket[bucket]!=null) byBucket[bucket].remove(p.getId());
+        }
+    }
+
+    private static String needle(String name) {
+        if(name==null) return null;
+        return isContaining(name) ? name.substring(1,name.length()-1) : name;
+    }
+
+    private static boolean isContaining(String name) {
+        return name!=null && name.length()>=2 && name.startsWith("%") && name.endsWith("%");
+    }
+
+    private static boolean isUnsupported(String needle) {
+        return needle!=null && (needle.indexOf('%')>=0 || needle.indexOf('_')>=0);
+    }
+
+    private static boolean matches(Product p, String needle, boolean containing) {
+        String name=normalize(p);
+        return containing ? name.contains(needle) : name.equals(needle);
+    }
+
+    static int bucket(Product.Type type, Product.Category category) {
+        return type.ordinal()*CATEGORIES.length+category.ordinal();
+    }
+
+    private static String normalize(Product p) {
+        return p.getName().toUpperCase();
+    }
+
+    private static Set<Long> trigrams(String s) {
+        Set<Long> result=new HashSet<>();
+        for(int i=0; i+GRAM<=s.length(); i++){
+            result.add(((long) s.charAt(i)<<32) | ((long) s.charAt(i+1)<<16) | s.charAt(i+2));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,57 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Risultato della ricerca prodotti con i conteggi per Type e per Category.
+
+    I conteggi considerano gli stessi prodotti della ricerca, cioè tutti quelli che soddisfano il filtro sul nome
+    (bannati compresi, come nella ricerca senza conteggi).
+    I conteggi per Type rispettano il filtro sulla category ma non quello sul type (e viceversa),
+    così il frontend può mostrare accanto a ogni filtro quanti risultati otterrebbe selezionandolo.
+ */
+@Getter
+public class ProductSearchResult {
+
+    private final List<Product> products;
+    private final Map<Product.Type,Long> typeCounts=new EnumMap<>(Product.Type.class);
+    private final Map<Product.Category,Long> categoryCounts=new EnumMap<>(Product.Category.class);
+
+
+    /*
+        cells contiene i conteggi per ogni coppia (Type,Category), indicizzati come i bucket dell'indice.
+     */
+    ProductSearchResult(List<Product> products, long[] cells, Product.Type type, Product.Category category) {
+        this.products = products;
+        for(Product.Type t:Product.Type.values()) typeCounts.put(t,0L);
+        for(Product.Category c:Product.Category.values()) categoryCounts.put(c,0L);
+        for(Product.Type t:Product.Type.values()){
+            for(Product.Category c:Product.Category.values()){
+                long count=cells[ProductSearchIndex.bucket(t,c)];
+                if(category==null || category==c) typeCounts.merge(t,count,Long::sum);
+                if(type==null || type==t) categoryCounts.merge(c,count,Long::sum);
+            }
+        }
+    }
+
+    /*
+        Costruisce il risultato con un solo passaggio sui prodotti che soddisfano il filtro sul nome
+        (usato quando la ricerca non passa dall'indice).
+     */
+    public static ProductSearchResult fromNameMatches(List<Product> nameMatches, Product.Type type, Product.Category category) {
+        long[] cells=new long[Product.Type.values().length*Product.Category.values().length];
+        List<Product> products=new ArrayList<>();
+        for(Product p:nameMatches){
+            cells[ProductSearchIndex.bucket(p.getType(),p.getCategory())]++;
+            if((type==null || type==p.getType()) && (category==null || category==p.getCategory())) products.add(p);
+        }
+        return new ProductSearchResult(products,cells,type,category);
+    }
+
+}
@@ -0,0 +1,222 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.repositories.StoreRepository;
+import it.carmelogug.puntoinformatica.support.Utilities;
+import it.carmelogug.puntoinformatica.support.events.StoreChangedEvent;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/*
+    Indice in memoria della posizione degli store: albero country -> region -> province -> city.
+
+    Ogni nodo contiene gli id di tutti gli store sotto di esso, quindi un filtro che si ferma a un livello
+    restituisce direttamente gli id del nodo. I nodi city hanno anche gli indirizzi ordinati (TreeMap)
+    per la ricerca per prefisso sull'indirizzo.
+    I campi sono già in upperCase (Utilities.adjustPropreties), come i parametri della ricerca.
+
+    L'indice viene costruito all'avvio e aggiornato dopo ogni commit tramite StoreChangedEvent
+    (addStore, banStore, unbanStore).
+ */
+@Component
+@Log4j2
+public class StoreLocationIndex {
+
+    private final StoreRepository storeRepository;
+
+    //false anche se la costruzione all'avvio fallisce: la ricerca usa la query JPA
+    private volatile boolean enabled;
+
+    private final ReadWriteLock lock=new ReentrantReadWriteLock();
+
+    private final LocationNode root=new LocationNode();
+    private final Map<Integer,Store> stores=new HashMap<>();
+
+    private final List<Store> pending=new ArrayList<>();
+    private volatile boolean ready=false;
+
+
+    @Autowired
+    public StoreLocationIndex(StoreRepository storeRepository,
+                              @Value("${puntoinformatica.stores.location-index.enabled:true}") boolean enabled) {
+        this.storeRepository = storeRepository;
+        this.enabled = enabled;
+    }
+
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void build() {
+        if(!enabled) return;
+        long start=System.currentTimeMillis();
+        List<Store> all;
+        try{
+            all=storeRepository.findAll();
+        }catch (RuntimeException e){
+            log.error("Store location index not built, search uses the database: {}",e.getMessage());
+            lock.writeLock().lock();
+            try{
+                enabled=false;
+                pending.clear();
+            }finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+        lock.writeLock().lock();
+        try{
+            for(Store s:all) put(Utilities.snapshot(s));
+            for(Store s:pending) put(s);
+            pending.clear();
+            ready=true;
+        }finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Store location index built: {} stores in {} ms",stores.size(),System.currentTimeMillis()-start);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoreChanged(StoreChangedEvent event) {
+        if(!enabled) return;
+        Store s=Utilities.snapshot(event.getStore());
+        lock.writeLock().lock();
+        try{
+            if(ready) put(s);
+            else if(enabled) pending.add(s);
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /*
+        I parametri hanno lo stesso formato passato alla query JPA (upperCase, null = nessun filtro):
+        country, region, province e city sono confrontati per uguaglianza, address per prefisso.
+        Restituisce null se un parametro contiene wildcard del LIKE: in quel caso il chiamante deve usare la query JPA.
+     */
+    public List<Store> search(String country, String region, String city, String province, String address) {
+        if(isUnsupported(country) || isUnsupported(region) || isUnsupported(city) ||
+                isUnsupported(province) || isUnsupported(address)) return null;
+
+        List<Store> result=new ArrayList<>();
+        lock.readLock().lock();
+        try{
+            List<LocationNode> nodes=Collections.singletonList(root);
+            for(String key:new String[]{country,region,province,city}){
+                nodes=descend(nodes,key);
+                if(nodes.isEmpty()) return result;
+            }
+            for(LocationNode leaf:nodes){
+                if(address==null){
+                    for(int i=0; i<leaf.ids.size(); i++) result.add(stores.get(leaf.ids.get(i)));
+                    continue;
+                }
+                for(Map.Entry<String,IntPostingList> e:leaf.addresses.tailMap(address).entrySet()){
+                    if(!e.getKey().startsWith(address)) break;
+                    for(int i=0; i<e.getValue().size(); i++) result.add(stores.get(e.getValue().get(i)));
+                }
+            }
+        }finally {
+            lock.readLock().unlock();
+        }
+        result.sort(Comparator.comparing(Store::getId));
+        return result;
+    }
+
+
+
+    /*
+        Metodi di supporto, da chiamare con il lock acquisito
+     */
+    private static List<LocationNode> descend(List<LocationNode> nodes, String key) {
+        List<LocationNode> result=new ArrayList<>();
+        for(LocationNode node:nodes){
+            if(key==null) result.addAll(node.children.values());
+            else{
+                LocationNode child=node.children.get(key);
+                if(child!=null) result.add(child);
+            }
+        }
+        return result;
+    }
+
+    private void put(Store s) {
+        Store previous=stores.put(s.getId(),s);
+        if(previous!=null){
+            if(Objects.equals(previous.getCountry(),s.getCountry()) && Objects.equals(previous.getRegion(),s.getRegion()) &&
+                    Objects.equals(previous.getProvince(),s.getProvince()) && Objects.equals(previous.getCity(),s.getCity()) &&
+                    Objects.equals(previous.getAddress(),s.getAddress())) return;
+            remove(previous);
+        }
+        add(s);
+    }
+
+    private void add(Store s) {
+        LocationNode node=root;
+        node.ids.add(s.getId());
+        for(String key:path(s)){
+            node=node.children.computeIfAbsent(key,k -> new LocationNode());
+            node.ids.add(s.getId());
+        }
+        if(s.getAddress()!=null) node.addresses.computeIfAbsent(s.getAddress(),a -> new IntPostingList()).add(s.getId());
+    }
+
+    private void remove(Store s) {
+        String[] path=path(s);
+        LocationNode[] nodes=new LocationNode[path.length+1];
+        nodes[0]=root;
+        for(int i=0; i<path.length; i++){
+            nodes[i+1]=nodes[i].children.get(path[i]);
+            if(nodes[i+1]==null) return;
+        }
+        LocationNode city=nodes[path.length];
+        if(s.getAddress()!=null){
+            IntPostingList ids=city.addresses.get(s.getAddress());
+            if(ids!=null){
+                ids.remove(s.getId());
+                if(ids.size()==0) city.addresses.remove(s.getAddress());
+            }
+        }
+        for(int i=path.length; i>=0; i--){
+            nodes[i].ids.remove(s.getId());
+            if(i>0 && nodes[i].ids.size()==0) nodes[i-1].children.remove(path[i-1]);
+        }
+    }
+
+    /*
+        Chiavi dell'albero dalla radice al nodo city. Un campo nullo è una chiave null,
+        che non viene mai selezionata da un filtro (come upper(null) LIKE nella query JPA).
+     */
+    private static String[] path(Store s) {
+        return new String[]{s.getCountry(),s.getRegion(),s.getProvince(),s.getCity()};
+    }
+
+    private static boolean isUnsupported(String value) {
+        return value!=null && (value.indexOf('%')>=0 || value.indexOf('_')>=0);
+    }
+
+
+
+    private static final class LocationNode {
+
+        private final IntPostingList ids=new IntPostingList();
+        private final Map<String,LocationNode> children=new HashMap<>(); //chiave null per i campi nulli
+        private final TreeMap<String,IntPostingList> addresses=new TreeMap<>(); //solo nei nodi city
+
+    }
+
+}
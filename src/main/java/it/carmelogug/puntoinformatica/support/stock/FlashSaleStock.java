@@ -0,0 +1,599 @@
+package it.carmelogug.puntoinformatica.support.stock;
+
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.QuantityProductUnvailableException;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/*
+    Modalità flash sale per singoli prodotti negli store (StoredProduct), attivata dall'admin.
+
+    La quantità di un prodotto in flash sale è in memoria in un contatore a strisce (StripedStock): l'acquisto
+    scala il contatore con una CAS, senza lock di riga su stored_products. Le vendite confermate (commit dell'acquisto)
+    si accumulano in pending e ogni flush-interval-ms vengono scritte sul db con un batch
+    (quantity = quantity - venduto) in una transazione. Dopo il commit viene pubblicato StoredProductChangedEvent
+    con la quantità scritta, così listino, cache e prenotazioni seguono la vendita con il ritardo di un flush.
+
+    Journal (journal-path), una riga per evento:
+        E id / D id      attivazione / disattivazione della flash sale
+        S id q           vendita di q pezzi, scritta prima del commit dell'acquisto (q negativo se poi annullata)
+        F id q           q pezzi scritti sul db, scritta dopo il commit del flush
+    All'avvio, prima che arrivino richieste, le vendite non ancora scritte (somma S - somma F) vengono applicate
+    al db e il journal viene compattato; il contatore riparte dalla quantità sul db.
+    Un arresto tra una scrittura e il suo commit fa contare una vendita in più, mai una in meno: il contatore
+    può solo sottostimare la quantità disponibile.
+
+    Le modifiche della quantità fatte da altri (admin, riconciliazione) riallineano il contatore dopo il commit.
+    La flash sale va attivata prima dell'inizio della vendita: un acquisto già in corso sul db non viene
+    visto dal contatore.
+ */
+@Component
+@Log4j2
+public class FlashSaleStock {
+
+    private static final String SELECT_QUANTITY=
+            "SELECT quantity FROM punto_informatica.stored_products WHERE id = ?";
+
+    private static final String LOCK_QUANTITY=SELECT_QUANTITY+" FOR UPDATE";
+
+    private static final String SUBTRACT_SOLD=
+            "UPDATE punto_informatica.stored_products SET quantity = quantity - ?, version = version + 1 WHERE id = ?";
+
+    private static final String SELECT_FLUSHED=
+            "SELECT id, quantity, price, related_store, product_id, version FROM punto_informatica.stored_products WHERE id IN ";
+
+    //righe dopo cui il journal viene compattato, quando tutte le vendite sono scritte sul db
+    private static final int COMPACT_THRESHOLD=100_000;
+
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Path journalPath;
+
+    private final int stripes;
+
+    private final Map<Integer,SaleState> sales=new ConcurrentHashMap<>();
+
+    //serializza il journal e le vendite scritte nel journal ma non ancora sul db (per la compattazione)
+    private final Object journalLock=new Object();
+    private final Map<Integer,Integer> journaled=new HashMap<>();
+    private BufferedWriter journal;
+    private int journalLines=0;
+
+    //serializza attivazioni e disattivazioni
+    private final Object stateLock=new Object();
+
+    private final ScheduledExecutorService flusher=Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t=new Thread(r,"flash-sale-write-behind");
+        t.setDaemon(true);
+        return t;
+    });
+    private final long flushIntervalMillis;
+
+    //true durante la pubblicazione degli eventi del flush: il contatore è già allineato e non va reimpostato
+    private final ThreadLocal<Boolean> publishing=ThreadLocal.withInitial(() -> false);
+
+
+    @Autowired
+    public FlashSaleStock(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, ApplicationEventPublisher eventPublisher,
+                          @Value("${puntoinformatica.flash-sale.journal-path:flash-sale-journal.log}") String journalPath,
+                          @Value("${puntoinformatica.flash-sale.stripes:16}") int stripes,
+                          @Value("${puntoinformatica.flash-sale.flush-interval-ms:500}") long flushIntervalMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.eventPublisher = eventPublisher;
+        //il flush non deve unirsi alla transazione del chiamante (es. disattivazione)
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.journalPath = Paths.get(journalPath);
+        this.stripes = stripes;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+
+    /*
+        Recupero dal journal, eseguito alla creazione del bean e quindi prima che il server accetti richieste.
+     */
+    @PostConstruct
+    public void recover() throws IOException {
+        Set<Integer> enabled=new HashSet<>();
+        Map<Integer,Integer> unflushed=new HashMap<>();
+        if(Files.isReadable(journalPath)){
+            for(String line:Files.readAllLines(journalPath,StandardCharsets.UTF_8)){
+                String[] f=line.trim().split(" ");
+                try{
+                    switch (f[0]){
+                        case "E": enabled.add(Integer.parseInt(f[1])); break;
+                        case "D": enabled.remove(Integer.parseInt(f[1])); break;
+                        case "S": unflushed.merge(Integer.parseInt(f[1]),Integer.parseInt(f[2]),Integer::sum); break;
+                        case "F": unflushed.merge(Integer.parseInt(f[1]),-Integer.parseInt(f[2]),Integer::sum); break;
+                        default: log.warn("Unknown flash sale journal record: {}",line);
+                    }
+                }catch (RuntimeException e){
+                    //l'ultima riga può essere troncata da un arresto durante la scrittura
+                    log.warn("Skipping malformed flash sale journal record: {}",line);
+                }
+            }
+        }
+        unflushed.values().removeIf(q -> q<=0);
+        if(!unflushed.isEmpty()){
+            List<Object[]> args=new ArrayList<>();
+            unflushed.forEach((id,q) -> args.add(new Object[]{q,id}));
+            transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(SUBTRACT_SOLD,args));
+            log.info("Flash sale recovery: unflushed sales of {} products written to the database",unflushed.size());
+        }
+        for(Integer id:enabled){
+            List<Integer> quantity=jdbcTemplate.queryForList(SELECT_QUANTITY,Integer.class,id);
+            if(quantity.isEmpty()) continue;
+            SaleState state=new SaleState(id,stripes);
+            state.stock.reset(quantity.get(0));
+            state.active=true;
+            sales.put(id,state);
+        }
+        synchronized (journalLock){
+            compact();
+        }
+        flusher.scheduleWithFixedDelay(this::flush,flushIntervalMillis,flushIntervalMillis,TimeUnit.MILLISECONDS);
+        if(!sales.isEmpty()) log.info("Flash sale active for {} products",sales.size());
+    }
+
+    @PreDestroy
+    public void close() {
+        flusher.shutdown();
+        try{
+            flusher.awaitTermination(10,TimeUnit.SECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (journalLock){
+            try{
+                if(journal!=null) journal.close();
+            }catch (IOException e){
+                log.warn("Unable to close flash sale journal: {}",e.getMessage());
+            }
+        }
+    }
+
+
+    public boolean isActive(int storedProduct) {
+        SaleState state=sales.get(storedProduct);
+        return state!=null && state.active;
+    }
+
+    /*
+        Attivazione: il contatore parte dalla quantità sul db, letta con lock di riga così gli acquisti
+        già in corso sul prodotto sono conclusi. false se il prodotto non esiste.
+     */
+    public boolean enable(int storedProduct) {
+        synchronized (stateLock){
+            SaleState current=sales.get(storedProduct);
+            if(current!=null && current.active) return true;
+            //una flash sale disattivata con vendite non ancora scritte viene riattivata con lo stesso stato
+            SaleState state= current!=null ? current : new SaleState(storedProduct,stripes);
+            Boolean result=transactionTemplate.execute(status -> {
+                List<Integer> quantity=jdbcTemplate.queryForList(LOCK_QUANTITY,Integer.class,storedProduct);
+                if(quantity.isEmpty()) return false;
+                state.stock.reset(quantity.get(0)-state.pending.get()-state.inflight.get());
+                synchronized (journalLock){
+                    append("E "+storedProduct);
+                }
+                state.active=true;
+                sales.put(storedProduct,state);
+                return true;
+            });
+            return Boolean.TRUE.equals(result);
+        }
+    }
+
+    /*
+        Disattivazione: le vendite in corso vengono attese e quelle confermate scritte sul db, poi il prodotto
+        torna al decremento sul db. Senza l'attesa una vendita confermata dopo il flush verrebbe scritta solo
+        al flush successivo, mentre gli acquisti sul db vedrebbero ancora la quantità piena.
+     */
+    public void disable(int storedProduct) {
+        SaleState state;
+        synchronized (stateLock){
+            state=sales.get(storedProduct);
+            if(state==null || !state.active) return;
+            state.active=false;
+            synchronized (journalLock){
+                append("D "+storedProduct);
+            }
+        }
+        //take incrementa inflight prima di controllare active: dopo questa attesa nessuna vendita è in corso
+        while(state.inflight.get()>0){
+            try{
+                Thread.sleep(1);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        flush();
+    }
+
+
+    /*
+        Vendita di quantity pezzi nella transazione corrente (acquisto).
+        false se il prodotto non è in flash sale: il chiamante deve scalare la quantità sul db.
+        Se la transazione viene annullata i pezzi tornano disponibili.
+     */
+    public boolean take(int storedProduct, int quantity) throws QuantityProductUnvailableException {
+        SaleState state=sales.get(storedProduct);
+        if(state==null) return false;
+        //la vendita risulta in corso prima del controllo di active, così disable la attende
+        state.inflight.addAndGet(quantity);
+        if(!state.active){
+            state.inflight.addAndGet(-quantity);
+            return false;
+        }
+        if(!state.stock.take(quantity)){
+            state.inflight.addAndGet(-quantity);
+            throw new QuantityProductUnvailableException(
+                    "Quantity Product Unvailable!"+","+
+                            "Product: " + storedProduct+","+
+                            "Available: " + state.stock.total()
+            );
+        }
+        transactionSales().add(new Sale(state,quantity));
+        return true;
+    }
+
+    /*
+        Savepoint delle vendite della transazione corrente: rollbackTo restituisce le vendite fatte dopo mark,
+        da chiamare insieme al rollback del savepoint sul db (checkout a gruppi).
+     */
+    public int mark() {
+        List<Sale> current=currentSales();
+        return current==null ? 0 : current.size();
+    }
+
+    public void rollbackTo(int mark) {
+        List<Sale> current=currentSales();
+        if(current==null) return;
+        while(current.size()>mark){
+            Sale sale=current.remove(current.size()-1);
+            sale.state.stock.add(sale.quantity);
+            sale.state.inflight.addAndGet(-sale.quantity);
+        }
+    }
+
+    public Map<Integer,Map<String,Object>> stats() {
+        Map<Integer,Map<String,Object>> result=new TreeMap<>();
+        sales.forEach((id,state) -> {
+            Map<String,Object> m=new LinkedHashMap<>();
+            m.put("active",state.active);
+            m.put("available",state.stock.total());
+            m.put("inflight",state.inflight.get());
+            m.put("unflushed",state.pending.get());
+            result.put(id,m);
+        });
+        return result;
+    }
+
+
+
+    /*
+        Modifiche fatte da altri dopo il commit: il contatore viene riallineato alla nuova quantità,
+        meno le vendite non ancora scritte (che il flush sottrarrà anche sul db) e quelle in corso.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStoredProductChanged(StoredProductChangedEvent event) {
+        SaleState state=sales.get(event.getStoredProduct().getId());
+        if(state==null || publishing.get()) return;
+        if(event.isRemoved()){
+            synchronized (stateLock){
+                state.active=false;
+                sales.remove(state.id);
+                synchronized (journalLock){
+                    append("D "+state.id);
+                    journaled.remove(state.id);
+                }
+            }
+            return;
+        }
+        if(!state.active) return;
+        state.stock.reset(event.getStoredProduct().getQuantity()-state.pending.get()-state.inflight.get());
+    }
+
+
+
+    /*
+        Vendite della transazione corrente, legate alla transazione come risorsa: un solo TransactionSynchronization
+        le scrive nel journal prima del commit e le conferma (o restituisce) alla fine della transazione.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Sale> currentSales() {
+        return (List<Sale>) TransactionSynchronizationManager.getResource(this);
+    }
+
+    private List<Sale> transactionSales() {
+        List<Sale> current=currentSales();
+        if(current!=null) return current;
+        List<Sale> created=new ArrayList<>();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            private boolean journaledSales=false;
+
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                synchronized (journalLock){
+                    for(Sale sale:created){
+                        append("S "+sale.state.id+" "+sale.quantity);
+                        journaled.merge(sale.state.id,sale.quantity,Integer::sum);
+                    }
+                }
+                journaledSales=true;
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(FlashSaleStock.this);
+                for(Sale sale:created){
+                    if(status==STATUS_COMMITTED) sale.state.pending.addAndGet(sale.quantity);
+                    else{
+                        sale.state.stock.add(sale.quantity);
+                        if(journaledSales){
+                            synchronized (journalLock){
+                                append("S "+sale.state.id+" "+(-sale.quantity));
+                                journaled.merge(sale.state.id,-sale.quantity,Integer::sum);
+                            }
+                        }
+                    }
+                    sale.state.inflight.addAndGet(-sale.quantity);
+                }
+            }
+        });
+        TransactionSynchronizationManager.bindResource(this,created);
+        return created;
+    }
+
+    /*
+        Scrittura differita delle vendite confermate
+     */
+    private void flush() {
+        Map<SaleState,Integer> sold=new HashMap<>();
+        for(SaleState state:sales.values()){
+            int q=state.pending.getAndSet(0);
+            if(q>0) sold.put(state,q);
+        }
+        if(!sold.isEmpty()){
+            List<Object[]> args=new ArrayList<>();
+            sold.forEach((state,q) -> args.add(new Object[]{q,state.id}));
+            List<StoredProduct> flushed;
+            try{
+                flushed=transactionTemplate.execute(status -> {
+                    jdbcTemplate.batchUpdate(SUBTRACT_SOLD,args);
+                    return select(sold.keySet());
+                });
+            }catch (DataAccessException e){
+                log.error("Flash sale write-behind failed, retrying later: {}",e.getMessage());
+                sold.forEach((state,q) -> state.pending.addAndGet(q));
+                return;
+            }
+            synchronized (journalLock){
+                try{
+                    sold.forEach((state,q) -> {
+                        append("F "+state.id+" "+q);
+                        journaled.merge(state.id,-q,Integer::sum);
+                    });
+                }catch (UncheckedIOException e){
+                    //le vendite sono già sul db: al riavvio verrebbero sottratte di nuovo (sottostima, non vendita in eccesso)
+                    log.error("Unable to record flushed flash sales: {}",e.getMessage());
+                }
+            }
+            publishing.set(true);
+            try{
+                for(StoredProduct sp:flushed) eventPublisher.publishEvent(new StoredProductChangedEvent(sp,false));
+            }finally {
+                publishing.set(false);
+            }
+        }
+        //prodotti disattivati senza vendite ancora da scrivere
+        synchronized (stateLock){
+            sales.values().removeIf(state -> !state.active && state.pending.get()==0 && state.inflight.get()==0);
+        }
+        synchronized (journalLock){
+            journaled.values().removeIf(q -> q==0);
+            try{
+                if(journaled.isEmpty() && journalLines>COMPACT_THRESHOLD) compact();
+            }catch (UncheckedIOException e){
+                log.error(e.getMessage());
+            }
+        }
+    }
+
+
+
+    /*
+        Prodotti appena scritti dal flush, con i soli campi usati dai listener: id, quantità, prezzo, versione
+        e id di store e prodotto.
+     */
+    private List<StoredProduct> select(Set<SaleState> states) {
+        StringJoiner ids=new StringJoiner(", ","(",")");
+        for(SaleState state:states) ids.add(String.valueOf(state.id));
+        return jdbcTemplate.query(SELECT_FLUSHED+ids,(rs,row) -> {
+            Store store=new Store();
+            store.setId(rs.getInt(4));
+            Product product=new Product();
+            product.setId(rs.getInt(5));
+            StoredProduct sp=new StoredProduct();
+            sp.setId(rs.getInt(1));
+            sp.setQuantity(rs.getInt(2));
+            sp.setPrice(rs.getDouble(3));
+            sp.setStore(store);
+            sp.setProduct(product);
+            sp.setVersion(rs.getLong(6));
+            return sp;
+        });
+    }
+
+    /*
+        Journal, da chiamare con journalLock
+     */
+    private void append(String record) {
+        try{
+            if(journal==null) journal=Files.newBufferedWriter(journalPath,StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,StandardOpenOption.APPEND,StandardOpenOption.WRITE);
+            journal.write(record);
+            journal.newLine();
+            journal.flush();
+            journalLines++;
+        }catch (IOException e){
+            throw new UncheckedIOException("Unable to write flash sale journal",e);
+        }
+    }
+
+    /*
+        Riscrive il journal con le sole flash sale attive e le vendite non ancora scritte sul db.
+     */
+    private void compact() {
+        try{
+            if(journal!=null){
+                journal.close();
+                journal=null;
+            }
+            Path dir=journalPath.toAbsolutePath().getParent();
+            if(dir!=null) Files.createDirectories(dir);
+            Path tmp=Files.createTempFile(dir,"flash-sale",".tmp");
+            List<String> records=new ArrayList<>();
+            for(SaleState state:sales.values()) if(state.active) records.add("E "+state.id);
+            journaled.forEach((id,q) -> records.add("S "+id+" "+q));
+            Files.write(tmp,records,StandardCharsets.UTF_8);
+            Files.move(tmp,journalPath,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            journalLines=records.size();
+        }catch (IOException e){
+            throw new UncheckedIOException("Unable to compact flash sale journal",e);
+        }
+    }
+
+
+
+    private static final class Sale {
+
+        private final SaleState state;
+        private final int quantity;
+
+        Sale(SaleState state, int quantity) {
+            this.state = state;
+            this.quantity = quantity;
+        }
+
+    }
+
+    private static final class SaleState {
+
+        private final int id;
+        private final StripedStock stock;
+        private final AtomicInteger pending=new AtomicInteger(); //vendite confermate non ancora scritte
+        private final AtomicInteger inflight=new AtomicInteger(); //vendite in transazioni non concluse
+        private volatile boolean active=false;
+
+        SaleState(int id, int stripes) {
+            this.id = id;
+            this.stock = new StripedStock(stripes);
+        }
+
+    }
+
+    /*
+        Quantità divisa in strisce su celle distanti (una linea di cache ciascuna): ogni thread parte da una
+        striscia casuale, così le CAS concorrenti cadono su celle diverse. Se nessuna striscia da sola basta
+        le strisce vengono raccolte in una sotto lock (caso raro, a fine disponibilità o per quantità grandi).
+     */
+    static final class StripedStock {
+
+        private static final int PAD=16; //16 int = 64 byte
+
+        private final int stripes;
+        private final AtomicIntegerArray cells;
+
+        StripedStock(int stripes) {
+            this.stripes = stripes;
+            this.cells = new AtomicIntegerArray(stripes*PAD);
+        }
+
+        boolean take(int quantity) {
+            int start=ThreadLocalRandom.current().nextInt(stripes);
+            for(int i=0; i<stripes; i++){
+                int cell=((start+i)%stripes)*PAD;
+                for(int v=cells.get(cell); v>=quantity; v=cells.get(cell)){
+                    if(cells.compareAndSet(cell,v,v-quantity)) return true;
+                }
+            }
+            synchronized (this){
+                int total=drain();
+                boolean taken=total>=quantity;
+                cells.addAndGet(start*PAD,taken ? total-quantity : total);
+                return taken;
+            }
+        }
+
+        void add(int quantity) {
+            cells.addAndGet(ThreadLocalRandom.current().nextInt(stripes)*PAD,quantity);
+        }
+
+        /*
+            Imposta il totale, distribuito in parti uguali tra le strisce.
+         */
+        synchronized void reset(int quantity) {
+            drain();
+            quantity=Math.max(0,quantity);
+            for(int i=0; i<stripes; i++) cells.addAndGet(i*PAD,quantity/stripes+(i<quantity%stripes ? 1 : 0));
+        }
+
+        int total() {
+            int result=0;
+            for(int i=0; i<stripes; i++) result+=cells.get(i*PAD);
+            return result;
+        }
+
+        private int drain() {
+            int total=0;
+            for(int i=0; i<stripes; i++) total+=cells.getAndSet(i*PAD,0);
+            return total;
+        }
+
+    }
+
+}
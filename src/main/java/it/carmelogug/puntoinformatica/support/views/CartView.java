@@ -0,0 +1,71 @@
+package it.carmelogug.puntoinformatica.support.views;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Carrello con acquirente e prodotti, stesso JSON dell'entità Cart.
+    Costruito dalle righe di una sola query (una riga per prodotto nel carrello, LEFT JOIN per il carrello vuoto)
+    o dai carrelli attivi in memoria (CartEngine).
+ */
+@Getter
+public class CartView {
+
+    public static final String SELECT_COLUMNS="c.id, c.version, "+UserView.SELECT_COLUMNS+", spic.id, spic.quantity, "+OfferView.SELECT_COLUMNS;
+
+    private final int id;
+    @JsonIgnore
+    private final long version;
+    private final UserView buyer;
+    private final List<Line> storedProductsInCart;
+
+    private CartView(int id, long version, UserView buyer, List<Line> storedProductsInCart) {
+        this.id = id;
+        this.version = version;
+        this.buyer = buyer;
+        this.storedProductsInCart = storedProductsInCart;
+    }
+
+    public static CartView of(int id, long version, UserView buyer, List<Line> storedProductsInCart) {
+        return new CartView(id,version,buyer,storedProductsInCart);
+    }
+
+    /*
+        null se non ci sono righe (carrello non esistente).
+     */
+    public static CartView of(List<Object[]> rows) {
+        if(rows.isEmpty()) return null;
+        Object[] first=rows.get(0);
+        CartView result=new CartView((Integer) first[0],(Long) first[1],UserView.of(first,2),new ArrayList<>());
+        int from=2+UserView.COLUMNS;
+        for(Object[] row:rows){
+            if(row[from]==null) continue;
+            result.storedProductsInCart.add(new Line((Integer) row[from],(Integer) row[from+1],OfferView.of(row,from+2)));
+        }
+        return result;
+    }
+
+
+    @Getter
+    public static class Line {
+
+        private final int id;
+        private final int quantity;
+        private final OfferView storedProduct;
+
+        private Line(int id, int quantity, OfferView storedProduct) {
+            this.id = id;
+            this.quantity = quantity;
+            this.storedProduct = storedProduct;
+        }
+
+        public static Line of(int id, int quantity, OfferView storedProduct) {
+            return new Line(id,quantity,storedProduct);
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+package it.carmelogug.puntoinformatica.support.views;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import lombok.Getter;
+
+/*
+    Offerta (StoredProduct) con store e prodotto, stesso JSON dell'entità.
+ */
+@Getter
+public class OfferView {
+
+    public static final String SELECT_COLUMNS="sp.id, sp.quantity, sp.price, "+StoreView.SELECT_COLUMNS+", "+ProductView.SELECT_COLUMNS;
+    static final int COLUMNS=3+StoreView.COLUMNS+ProductView.COLUMNS;
+
+    private final Integer id;
+    private final Integer quantity;
+    private final Double price;
+    private final StoreView store;
+    private final ProductView product;
+
+    private OfferView(Integer id, Integer quantity, Double price, StoreView store, ProductView product) {
+        this.id = id;
+        this.quantity = quantity;
+        this.price = price;
+        this.store = store;
+        this.product = product;
+    }
+
+    public static OfferView of(int id, int quantity, double price, Store store, Product product) {
+        return new OfferView(id,quantity,price,StoreView.of(store),ProductView.of(product));
+    }
+
+    public static OfferView of(StoredProduct sp) {
+        if(sp==null) return null;
+        return new OfferView(sp.getId(),sp.getQuantity(),sp.getPrice(),StoreView.of(sp.getStore()),ProductView.of(sp.getProduct()));
+    }
+
+    public static OfferView of(Object[] row) {
+        return of(row,0);
+    }
+
+    static OfferView of(Object[] row, int from) {
+        if(row[from]==null) return null;
+        return new OfferView((Integer) row[from],(Integer) row[from+1],(Double) row[from+2],
+                StoreView.of(row,from+3),ProductView.of(row,from+3+StoreView.COLUMNS));
+    }
+
+}
@@ -0,0 +1,51 @@
+package it.carmelogug.puntoinformatica.support.views;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import lombok.Getter;
+
+/*
+    Prodotto nei read model: stessi campi (e stesso JSON) dell'entità, senza associazioni.
+ */
+@Getter
+public class ProductView {
+
+    //colonne lette da of(row,from), nell'ordine di SELECT_COLUMNS
+    public static final String SELECT_COLUMNS="p.id, p.name, p.type, p.category, p.barCode, p.banned, p.description, p.url, p.urlImage";
+    static final int COLUMNS=9;
+
+    private final Integer id;
+    private final String name;
+    private final Product.Type type;
+    private final Product.Category category;
+    private final Long barCode;
+    private final boolean banned;
+    private final String description;
+    private final String url;
+    private final String urlImage;
+
+    private ProductView(Integer id, String name, Product.Type type, Product.Category category, Long barCode, boolean banned,
+                        String description, String url, String urlImage) {
+        this.id = id;
+        this.name = name;
+        this.type = type;
+        this.category = category;
+        this.barCode = barCode;
+        this.banned = banned;
+        this.description = description;
+        this.url = url;
+        this.urlImage = urlImage;
+    }
+
+    public static ProductView of(Product p) {
+        if(p==null) return null;
+        return new ProductView(p.getId(),p.getName(),p.getType(),p.getCategory(),p.getBarCode(),p.isBanned(),
+                p.getDescription(),p.getUrl(),p.getUrlImage());
+    }
+
+    static ProductView of(Object[] row, int from) {
+        if(row[from]==null) return null;
+        return new ProductView((Integer) row[from],(String) row[from+1],(Product.Type) row[from+2],(Product.Category) row[from+3],
+                (Long) row[from+4],(Boolean) row[from+5],(String) row[from+6],(String) row[from+7],(String) row[from+8]);
+    }
+
+}
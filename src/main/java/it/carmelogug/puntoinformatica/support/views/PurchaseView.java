@@ -0,0 +1,72 @@
+package it.carmelogug.puntoinformatica.support.views;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/*
+    Acquisto con acquirente e prodotti acquistati, stesso JSON dell'entità Purchase.
+    Costruito dalle righe di una sola query ordinate per acquisto (una riga per prodotto acquistato).
+ */
+@Getter
+public class PurchaseView {
+
+    public static final String SELECT_COLUMNS="pu.id, pu.purchaseTime, pu.price, "+UserView.SELECT_COLUMNS+", " +
+            "pip.id, pip.quantity, pip.price, "+StoreView.SELECT_COLUMNS+", "+ProductView.SELECT_COLUMNS;
+
+    private final int id;
+    private final Date purchaseTime;
+    private final double price;
+    private final UserView buyer;
+    private final List<Line> productsInPurchase=new ArrayList<>();
+
+    private PurchaseView(int id, Date purchaseTime, double price, UserView buyer) {
+        this.id = id;
+        this.purchaseTime = purchaseTime;
+        this.price = price;
+        this.buyer = buyer;
+    }
+
+    /*
+        Le righe dello stesso acquisto devono essere consecutive.
+     */
+    public static List<PurchaseView> of(List<Object[]> rows) {
+        List<PurchaseView> result=new ArrayList<>();
+        PurchaseView current=null;
+        int from=3+UserView.COLUMNS;
+        for(Object[] row:rows){
+            int id=(Integer) row[0];
+            if(current==null || current.id!=id){
+                current=new PurchaseView(id,(Date) row[1],(Double) row[2],UserView.of(row,3));
+                result.add(current);
+            }
+            if(row[from]==null) continue;
+            current.productsInPurchase.add(new Line((Integer) row[from],(Integer) row[from+1],(Double) row[from+2],
+                    StoreView.of(row,from+3),ProductView.of(row,from+3+StoreView.COLUMNS)));
+        }
+        return result;
+    }
+
+
+    @Getter
+    public static class Line {
+
+        private final int id;
+        private final int quantity;
+        private final double price;
+        private final StoreView store;
+        private final ProductView product;
+
+        private Line(int id, int quantity, double price, StoreView store, ProductView product) {
+            this.id = id;
+            this.quantity = quantity;
+            this.price = price;
+            this.store = store;
+            this.product = product;
+        }
+
+    }
+
+}
@@ -0,0 +1,47 @@
+package it.carmelogug.puntoinformatica.support.views;
+
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import lombok.Getter;
+
+/*
+    Store nei read model: stessi campi (e stesso JSON) dell'entità, senza associazioni.
+ */
+@Getter
+public class StoreView {
+
+    //colonne lette da of(row,from), nell'ordine di SELECT_COLUMNS
+    public static final String SELECT_COLUMNS="s.id, s.country, s.city, s.region, s.province, s.address, s.postalCode, s.banned";
+    static final int COLUMNS=8;
+
+    private final Integer id;
+    private final String country;
+    private final String city;
+    private final String region;
+    private final String province;
+    private final String address;
+    private final Long postalCode;
+    private final boolean banned;
+
+    private StoreView(Integer id, String country, String city, String region, String province, String address, Long postalCode, boolean banned) {
+        this.id = id;
+        this.country = country;
+        this.city = city;
+        this.region = region;
+        this.province = province;
+        this.address = address;
+        this.postalCode = postalCode;
+        this.banned = banned;
+    }
+
+    public static StoreView of(Store s) {
+        if(s==null) return null;
+        return new StoreView(s.getId(),s.getCountry(),s.getCity(),s.getRegion(),s.getProvince(),s.getAddress(),s.getPostalCode(),s.isBanned());
+    }
+
+    static StoreView of(Object[] row, int from) {
+        if(row[from]==null) return null;
+        return new StoreView((Integer) row[from],(String) row[from+1],(String) row[from+2],(String) row[from+3],
+                (String) row[from+4],(String) row[from+5],(Long) row[from+6],(Boolean) row[from+7]);
+    }
+
+}
@@ -0,0 +1,31 @@
+package it.carmelogug.puntoinformatica.support.views;
+
+import lombok.Getter;
+
+/*
+    Acquirente nei read model di carrello e acquisti: stessi campi (e stesso JSON) dell'entità User.
+ */
+@Getter
+public class UserView {
+
+    public static final String SELECT_COLUMNS="u.id, u.firstName, u.lastName, u.email";
+    static final int COLUMNS=4;
+
+    private final int id;
+    private final String firstName;
+    private final String lastName;
+    private final String email;
+
+    private UserView(int id, String firstName, String lastName, String email) {
+        this.id = id;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.email = email;
+    }
+
+    static UserView of(Object[] row, int from) {
+        if(row[from]==null) return null;
+        return new UserView((Integer) row[from],(String) row[from+1],(String) row[from+2],(String) row[from+3]);
+    }
+
+}
@@ -0,0 +1,223 @@
+package it.carmelogug.puntoinformatica.services;
+
+import it.carmelogug.puntoinformatica.entities.User;
+import it.carmelogug.puntoinformatica.entities.purchasing.Cart;
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.repositories.CartRepository;
+import it.carmelogug.puntoinformatica.support.CheckoutOrder;
+import it.carmelogug.puntoinformatica.support.CheckoutReport;
+import it.carmelogug.puntoinformatica.support.StatementCounter;
+import lombok.extern.log4j.Log4j2;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    Acquisti su PostgreSQL (profilo test): le righe vengono scritte e rilette dal db vero,
+    ogni test con utente, store e prodotti propri.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@Import(StatementCounter.class)
+@Log4j2
+class PurchasingServiceTest {
+
+    private static final int WARMUP=5;
+    private static final int ITERATIONS=20;
+
+    @Autowired
+    private PurchasingService purchasingService;
+
+    @Autowired
+    private AccountingService accountingService;
+
+    @Autowired
+    private StoreService storeService;
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private CartRepository cartRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+
+    @Test
+    void partialPurchaseSkipsUnavailableLines() throws Exception {
+        Store store=store();
+        StoredProduct available=storedProduct(store,5,10.0);
+        StoredProduct soldOut=storedProduct(store,5,20.0);
+        Cart cart=cart(user());
+        purchasingService.addStoredProductToCart(cart.getBuyer().getEmail(),available,2);
+        purchasingService.addStoredProductToCart(cart.getBuyer().getEmail(),soldOut,3);
+        //venduto altrove dopo l'aggiunta al carrello: l'UPDATE condizionato non trova la quantità
+        jdbcTemplate.update("UPDATE punto_informatica.stored_products SET quantity = 1 WHERE id = ?",soldOut.getId());
+
+        purchasingService.flushCart(cart.getId());
+        CheckoutReport report=purchasingService.addPartialPurchase(cart);
+
+        assertNotNull(report.getPurchase());
+        assertEquals(20.0,report.getPurchase().getPrice(),0.001);
+        assertEquals(1,report.getSkipped().size());
+        assertEquals(soldOut.getId().intValue(),report.getSkipped().get(0).getStoredProduct());
+        assertEquals(3,quantity(available));
+        assertEquals(1,quantity(soldOut));
+        assertEquals(1,productsInPurchase(report.getPurchase().getId()));
+        //la riga saltata resta nel carrello
+        assertEquals(1,jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM punto_informatica.stored_products_in_cart WHERE related_cart = ? AND stored_product = ?",
+                Integer.class,cart.getId(),soldOut.getId()));
+    }
+
+    @Test
+    void partialPurchaseWithNoAvailableLineBuysNothing() throws Exception {
+        StoredProduct soldOut=storedProduct(store(),5,20.0);
+        Cart cart=cart(user());
+        purchasingService.addStoredProductToCart(cart.getBuyer().getEmail(),soldOut,3);
+        jdbcTemplate.update("UPDATE punto_informatica.stored_products SET quantity = 0 WHERE id = ?",soldOut.getId());
+
+        purchasingService.flushCart(cart.getId());
+        CheckoutReport report=purchasingService.addPartialPurchase(cart);
+
+        assertNull(report.getPurchase());
+        assertEquals(1,report.getSkipped().size());
+        assertEquals(0,quantity(soldOut));
+    }
+
+
+    @Test
+    void failedOrderOfABatchIsRolledBackAndTheOthersCommitted() throws Exception {
+        Store store=store();
+        StoredProduct shared=storedProduct(store,10,10.0);
+        StoredProduct soldOut=storedProduct(store,5,20.0);
+        Cart first=cart(user());
+        purchasingService.addStoredProductToCart(first.getBuyer().getEmail(),shared,2);
+        Cart second=cart(user());
+        //la prima riga viene scalata, la seconda fallisce: lo scalo della prima va annullato
+        purchasingService.addStoredProductToCart(second.getBuyer().getEmail(),shared,1);
+        purchasingService.addStoredProductToCart(second.getBuyer().getEmail(),soldOut,3);
+        jdbcTemplate.update("UPDATE punto_informatica.stored_products SET quantity = 1 WHERE id = ?",soldOut.getId());
+        purchasingService.flushCart(first.getId());
+        purchasingService.flushCart(second.getId());
+
+        CheckoutOrder completed=new CheckoutOrder("first",first.getId(),first.getBuyer().getEmail());
+        CheckoutOrder failed=new CheckoutOrder("second",second.getId(),second.getBuyer().getEmail());
+        purchasingService.addPurchases(Arrays.asList(completed,failed));
+        completed.publish();
+        failed.publish();
+
+        assertEquals(CheckoutOrder.State.COMPLETED,completed.getState());
+        assertEquals(CheckoutOrder.State.FAILED,failed.getState());
+        assertEquals(8,quantity(shared));
+        assertEquals(1,quantity(soldOut));
+        assertEquals(1,productsInPurchase(completed.getPurchaseId()));
+        assertEquals(0,jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM punto_informatica.purchases AS p JOIN punto_informatica.users AS u ON p.buyer = u.user_id " +
+                        "WHERE u.email = ?",Integer.class,second.getBuyer().getEmail()));
+        assertEquals(2,jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM punto_informatica.stored_products_in_cart WHERE related_cart = ?",Integer.class,second.getId()));
+        assertEquals(0,jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM punto_informatica.stored_products_in_cart WHERE related_cart = ?",Integer.class,first.getId()));
+    }
+
+
+    /*
+        Micro-benchmark del checkout: statement eseguiti (compresi quelli dei listener dopo il commit) e latenza media
+        per carrelli di 1, 10 e 100 righe. Ogni riga in più costa un solo statement, l'UPDATE condizionato.
+     */
+    @Test
+    void checkoutStatementsAndLatencyByCartSize() throws Exception {
+        Store store=store();
+        List<StoredProduct> storedProducts=new ArrayList<>();
+        for(int i=0; i<100; i++) storedProducts.add(storedProduct(store,1_000_000,1.0));
+
+        Map<Integer,Integer> statements=new LinkedHashMap<>();
+        for(int lines:new int[]{1,10,100}){
+            long elapsed=0;
+            for(int i=0; i<WARMUP+ITERATIONS; i++){
+                Cart cart=cart(user());
+                for(StoredProduct storedProduct:storedProducts.subList(0,lines))
+                    purchasingService.addStoredProductToCart(cart.getBuyer().getEmail(),storedProduct,1);
+                purchasingService.flushCart(cart.getId());
+                StatementCounter.reset();
+                long start=System.nanoTime();
+                purchasingService.addPurchase(cart);
+                if(i<WARMUP) continue;
+                elapsed+=System.nanoTime()-start;
+                statements.put(lines,StatementCounter.count());
+            }
+            log.info("Checkout of {} lines: {} statements, {} ms",lines,statements.get(lines),
+                    String.format("%.2f",elapsed/1e6/ITERATIONS));
+        }
+        assertEquals(statements.get(1)+9,statements.get(10));
+        assertEquals(statements.get(1)+99,statements.get(100));
+    }
+
+
+
+    /*
+        Dati di prova
+     */
+    private User user() {
+        return accountingService.addAndgetUser(UUID.randomUUID()+"@test.it","Test","User");
+    }
+
+    private Cart cart(User user) {
+        Cart cart=cartRepository.findCartByBuyer(user);
+        cart.setBuyer(user);
+        return cart;
+    }
+
+    private Store store() throws Exception {
+        Store store=new Store();
+        store.setCountry("Italia");
+        store.setRegion("Calabria");
+        store.setCity("Rende");
+        store.setProvince("CS");
+        store.setAddress("Via "+UUID.randomUUID());
+        return storeService.addStore(store);
+    }
+
+    private StoredProduct storedProduct(Store store, int quantity, double price) throws Exception {
+        Product product=new Product();
+        product.setName("Product "+UUID.randomUUID());
+        product.setType(Product.Type.HARDWARE);
+        product.setCategory(Product.Category.COMPUTER);
+        product.setBarCode(ThreadLocalRandom.current().nextLong(1,Long.MAX_VALUE));
+        product=productService.addProduct(product);
+        StoredProduct storedProduct=new StoredProduct();
+        storedProduct.setStore(store);
+        storedProduct.setProduct(product);
+        storedProduct.setQuantity(quantity);
+        storedProduct.setPrice(price);
+        return storeService.addStoredProduct(storedProduct);
+    }
+
+    private int quantity(StoredProduct storedProduct) {
+        return jdbcTemplate.queryForObject("SELECT quantity FROM punto_informatica.stored_products WHERE id = ?",
+                Integer.class,storedProduct.getId());
+    }
+
+    private int productsInPurchase(int purchase) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM punto_informatica.products_in_purchase WHERE related_purchase = ?",
+                Integer.class,purchase);
+    }
+
+}
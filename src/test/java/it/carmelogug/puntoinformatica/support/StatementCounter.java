@@ -0,0 +1,64 @@
+package it.carmelogug.puntoinformatica.support;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+/*
+    Conta gli statement eseguiti sul db dal thread corrente (un batch JDBC conta come uno), avvolgendo
+    il DataSource in un proxy. Importata (@Import) da tutti i test sul db del profilo test, così condividono
+    lo stesso contesto Spring e quindi lo stesso schema create-drop.
+ */
+@TestConfiguration
+public class StatementCounter {
+
+    private static final ThreadLocal<int[]> COUNT=ThreadLocal.withInitial(() -> new int[1]);
+
+    public static void reset() {
+        COUNT.get()[0]=0;
+    }
+
+    public static int count() {
+        return COUNT.get()[0];
+    }
+
+    @Bean
+    public static BeanPostProcessor statementCountingDataSource() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                return bean instanceof DataSource ? wrap(DataSource.class,bean) : bean;
+            }
+        };
+    }
+
+
+
+    /*
+        Connection e statement restituiti vengono avvolti a loro volta
+     */
+    private static Object wrap(Class<?> type, Object target) {
+        return Proxy.newProxyInstance(StatementCounter.class.getClassLoader(),new Class<?>[]{type},(proxy,method,args) -> {
+            if(Statement.class.isAssignableFrom(type) && method.getName().startsWith("execute")) COUNT.get()[0]++;
+            Object result;
+            try{
+                result=method.invoke(target,args);
+            }catch (InvocationTargetException e){
+                throw e.getCause();
+            }
+            Class<?> returned=method.getReturnType();
+            if(result!=null && (returned==Connection.class || returned==Statement.class ||
+                    returned==PreparedStatement.class || returned==CallableStatement.class)) return wrap(returned,result);
+            return result;
+        });
+    }
+
+}
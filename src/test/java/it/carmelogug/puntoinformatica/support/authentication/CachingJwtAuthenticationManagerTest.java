@@ -0,0 +1,121 @@
+package it.carmelogug.puntoinformatica.support.authentication;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import lombok.extern.log4j.Log4j2;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+import org.springframework.security.oauth2.server.resource.BearerTokenAuthenticationToken;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationProvider;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+@Log4j2
+class CachingJwtAuthenticationManagerTest {
+
+    private static final SecretKey KEY=new SecretKeySpec("0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII),"HmacSHA256");
+
+    private static final int WARMUP=2_000;
+    private static final int ITERATIONS=20_000;
+
+
+    @Test
+    void cachedTokenIsRebuiltWithTheDetailsOfEachRequest() throws JOSEException {
+        JwtDecoder decoder=mock(JwtDecoder.class,delegatesTo(decoder()));
+        CachingJwtAuthenticationManager manager=new CachingJwtAuthenticationManager(decoder,100);
+        String token=token(60_000);
+
+        Authentication first=manager.authenticate(bearer(token,"first"));
+        Authentication second=manager.authenticate(bearer(token,"second"));
+
+        verify(decoder,times(1)).decode(token);
+        assertNotSame(first,second);
+        assertEquals("first",first.getDetails());
+        assertEquals("second",second.getDetails());
+        assertSame(first.getPrincipal(),second.getPrincipal());
+        assertEquals(new HashSet<>(Arrays.asList("user","admin")),((UserAuthenticationToken) second).getUser().getRoles());
+        assertEquals(first.getAuthorities(),second.getAuthorities());
+        assertEquals("mario.rossi@example.com",((UserAuthenticationToken) second).getUser().getEmail());
+    }
+
+    @Test
+    void expiredTokenIsNotCached() throws JOSEException {
+        JwtDecoder decoder=mock(JwtDecoder.class,delegatesTo(decoder()));
+        CachingJwtAuthenticationManager manager=new CachingJwtAuthenticationManager(decoder,100);
+        String token=token(-60_000);
+
+        assertThrows(RuntimeException.class,() -> manager.authenticate(bearer(token,null)));
+        assertThrows(RuntimeException.class,() -> manager.authenticate(bearer(token,null)));
+        verify(decoder,times(2)).decode(token);
+    }
+
+    /*
+        Non è un test di prestazioni con soglie: stampa la latenza media per richiesta con e senza cache
+        (verifica HMAC della firma e conversione delle claim ad ogni richiesta).
+     */
+    @Test
+    void authenticationLatencyWithAndWithoutCache() throws JOSEException {
+        String token=token(60_000);
+        JwtAuthenticationProvider provider=new JwtAuthenticationProvider(decoder());
+        provider.setJwtAuthenticationConverter(new JwtAuthenticationConverter());
+        CachingJwtAuthenticationManager manager=new CachingJwtAuthenticationManager(decoder(),100);
+
+        double uncached=measure(() -> provider.authenticate(bearer(token,null)));
+        double cached=measure(() -> manager.authenticate(bearer(token,null)));
+        log.info("Authentication: {} us/request without cache, {} us/request with cache",
+                String.format("%.2f",uncached),String.format("%.2f",cached));
+        assertTrue(manager.authenticate(bearer(token,null)).isAuthenticated());
+    }
+
+
+
+    private static double measure(Runnable authentication) {
+        for(int i=0; i<WARMUP; i++) authentication.run();
+        long start=System.nanoTime();
+        for(int i=0; i<ITERATIONS; i++) authentication.run();
+        return (System.nanoTime()-start)/1000.0/ITERATIONS;
+    }
+
+    private static JwtDecoder decoder() {
+        return NimbusJwtDecoder.withSecretKey(KEY).build();
+    }
+
+    private static BearerTokenAuthenticationToken bearer(String token, Object details) {
+        BearerTokenAuthenticationToken result=new BearerTokenAuthenticationToken(token);
+        result.setDetails(details);
+        return result;
+    }
+
+    private static String token(long expiresInMillis) throws JOSEException {
+        JWTClaimsSet claims=new JWTClaimsSet.Builder()
+                .subject("1b3c5a2e")
+                .issueTime(new Date())
+                .expirationTime(new Date(System.currentTimeMillis()+expiresInMillis))
+                .claim("preferred_username","mario.rossi@example.com")
+                .claim("given_name","Mario")
+                .claim("family_name","Rossi")
+                .claim("resource_access",Collections.singletonMap("puntoinformatica-springboot",
+                        Collections.singletonMap("roles",Arrays.asList("user","admin"))))
+                .build();
+        SignedJWT jwt=new SignedJWT(new JWSHeader(JWSAlgorithm.HS256),claims);
+        jwt.sign(new MACSigner(KEY));
+        return jwt.serialize();
+    }
+
+}
@@ -0,0 +1,129 @@
+package it.carmelogug.puntoinformatica.support.authentication;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.log4j.Log4j2;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Log4j2
+class UtilsTest {
+
+    private static final int WARMUP=200;
+    private static final int ITERATIONS=2_000;
+
+
+    @AfterEach
+    void clear() {
+        SecurityContextHolder.clearContext();
+    }
+
+
+    @Test
+    void readsTheUserBuiltByTheConverter() {
+        Jwt jwt=jwt();
+        SecurityContextHolder.getContext().setAuthentication(new JwtAuthenticationConverter().convert(jwt));
+
+        assertEquals("1b3c5a2e",Utils.getAuthServerId());
+        assertEquals("mario.rossi@example.com",Utils.getEmail());
+        assertArrayEquals(new String[]{"Mario","Rossi"},Utils.getName());
+        assertSame(Utils.getUser(),Utils.getUser());
+    }
+
+    @Test
+    void readsTheClaimsOfAPlainJwtAuthentication() {
+        SecurityContextHolder.getContext().setAuthentication(new JwtAuthenticationToken(jwt()));
+
+        assertEquals("1b3c5a2e",Utils.getAuthServerId());
+        assertEquals("mario.rossi@example.com",Utils.getEmail());
+        assertArrayEquals(new String[]{"Mario","Rossi"},Utils.getName());
+        assertEquals(Collections.singleton("user"),Utils.getUser().getRoles());
+    }
+
+    /*
+        Non è un test di prestazioni con soglie: stampa latenza e byte allocati per richiesta
+        (getAuthServerId, getEmail e getName, come in AccountingController) con la lettura precedente,
+        che serializzava il Jwt in JSON e lo rileggeva con un nuovo ObjectMapper ad ogni chiamata.
+     */
+    @Test
+    void userInfoLatencyAndAllocations() {
+        SecurityContextHolder.getContext().setAuthentication(new JwtAuthenticationConverter().convert(jwt()));
+
+        Measure json=measure(() -> {
+            Jwt jwt=Utils.getPrincipal();
+            tokenNode(jwt).get("subject").asText();
+            tokenNode(jwt).get("claims").get("preferred_username").asText();
+            tokenNode(jwt).get("claims").get("given_name").asText();
+            tokenNode(jwt).get("claims").get("family_name").asText();
+        });
+        Measure user=measure(() -> {
+            Utils.getAuthServerId();
+            Utils.getEmail();
+            Utils.getName();
+        });
+        log.info("User info: {} us and {} bytes/request reading the JSON tree, {} us and {} bytes/request reading AuthenticatedUser",
+                String.format("%.2f",json.micros),json.bytes,String.format("%.3f",user.micros),user.bytes);
+        assertTrue(user.bytes<json.bytes);
+    }
+
+
+
+    private static Measure measure(Runnable request) {
+        com.sun.management.ThreadMXBean threads=(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread=Thread.currentThread().getId();
+        for(int i=0; i<WARMUP; i++) request.run();
+        long allocated=threads.getThreadAllocatedBytes(thread);
+        long start=System.nanoTime();
+        for(int i=0; i<ITERATIONS; i++) request.run();
+        long elapsed=System.nanoTime()-start;
+        return new Measure(elapsed/1000.0/ITERATIONS,(threads.getThreadAllocatedBytes(thread)-allocated)/ITERATIONS);
+    }
+
+    private static JsonNode tokenNode(Jwt jwt) {
+        ObjectMapper objectMapper=new ObjectMapper();
+        try{
+            return objectMapper.readTree(objectMapper.writeValueAsString(jwt));
+        }catch (JsonProcessingException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Jwt jwt() {
+        return Jwt.withTokenValue("token")
+                .header("alg","RS256")
+                .subject("1b3c5a2e")
+                .issuedAt(Instant.now())
+                .expiresAt(Instant.now().plusSeconds(300))
+                .claim("preferred_username","mario.rossi@example.com")
+                .claim("given_name","Mario")
+                .claim("family_name","Rossi")
+                .claim("resource_access",Collections.singletonMap("puntoinformatica-springboot",
+                        Collections.singletonMap("roles",Arrays.asList("user"))))
+                .build();
+    }
+
+
+    private static final class Measure {
+
+        private final double micros;
+        private final long bytes;
+
+        private Measure(double micros, long bytes) {
+            this.micros = micros;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,259 @@
+package it.carmelogug.puntoinformatica.support.cart;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.repositories.CartRepository;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import it.carmelogug.puntoinformatica.support.cache.IdentityCache;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.CartInCheckoutException;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.QuantityWrongException;
+import it.carmelogug.puntoinformatica.support.views.CartView;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class CartEngineTest {
+
+    private static final String EMAIL="mario.rossi@example.com";
+    private static final int CART=10;
+
+    private JdbcTemplate jdbcTemplate;
+    private CartRepository cartRepository;
+    private CartEngine engine;
+
+
+    @BeforeEach
+    void engine() {
+        jdbcTemplate=mock(JdbcTemplate.class);
+        when(jdbcTemplate.queryForList(startsWith("SELECT"),eq(Integer.class),anyInt())).thenAnswer(invocation -> {
+            List<Integer> ids=new ArrayList<>();
+            for(int i=0; i<(Integer) invocation.getArgument(2); i++) ids.add(100+i);
+            return ids;
+        });
+        updated(1);
+        EntityCache entityCache=mock(EntityCache.class);
+        for(int id=1; id<=2; id++){
+            StoredProduct sp=storedProduct(id);
+            when(entityCache.findStoredProductById(id)).thenReturn(sp);
+        }
+        //flush-interval molto più lungo del test: le scritture avvengono solo con flush
+        cartRepository=cartRepository();
+        engine=new CartEngine(cartRepository,entityCache,identityCache(),mock(StockReservations.class),jdbcTemplate,
+                mock(PlatformTransactionManager.class),60_000,4,1800);
+    }
+
+    @AfterEach
+    void close() {
+        engine.close();
+    }
+
+
+    @Test
+    void changesToALineBecomeOneWrite() throws Exception {
+        CartView view=engine.addStoredProduct(EMAIL,1,1);
+        int line=view.getStoredProductsInCart().get(0).getId();
+        engine.addStoredProduct(EMAIL,1,2);
+        view=engine.updateQuantity(EMAIL,line,5);
+        assertEquals(3,view.getVersion());
+        verify(jdbcTemplate,never()).batchUpdate(anyString(),anyList());
+
+        engine.flush(CART);
+
+        assertEquals(Collections.singletonList(Arrays.asList(line,5,CART,1)),batch("INSERT"));
+        assertEquals(Collections.singletonList(Arrays.asList(3,CART,0L)),batch("UPDATE"));
+        verify(jdbcTemplate,never()).batchUpdate(startsWith("DELETE"),anyList());
+
+        //carrello già scritto: nessuna scrittura
+        engine.flush(CART);
+        verify(jdbcTemplate,times(2)).batchUpdate(anyString(),anyList());
+    }
+
+    @Test
+    void lineAddedAndRemovedBeforeTheWriteIsOnlyDeleted() throws Exception {
+        int line=engine.addStoredProduct(EMAIL,1,1).getStoredProductsInCart().get(0).getId();
+        engine.removeLine(EMAIL,line);
+
+        engine.flush(CART);
+
+        verify(jdbcTemplate,never()).batchUpdate(startsWith("INSERT"),anyList());
+        assertEquals(Collections.singletonList(Collections.singletonList(line)),batch("DELETE"));
+        assertEquals(Collections.singletonList(Arrays.asList(2,CART,0L)),batch("UPDATE"));
+    }
+
+    @Test
+    void failedWriteIsMergedWithTheLaterChanges() throws Exception {
+        int first=engine.addStoredProduct(EMAIL,1,1).getStoredProductsInCart().get(0).getId();
+        doThrow(new DataAccessResourceFailureException("connection refused"))
+                .when(jdbcTemplate).batchUpdate(startsWith("INSERT"),anyList());
+        assertThrows(DataAccessResourceFailureException.class,() -> engine.flush(CART));
+
+        //modifiche arrivate dopo la scrittura fallita
+        doReturn(new int[0]).when(jdbcTemplate).batchUpdate(startsWith("INSERT"),anyList());
+        int second=engine.addStoredProduct(EMAIL,2,4).getStoredProductsInCart().get(1).getId();
+        engine.updateQuantity(EMAIL,first,3);
+        clearInvocations(jdbcTemplate);
+
+        engine.flush(CART);
+
+        List<List<Object>> upserts=batch("INSERT");
+        upserts.sort(Comparator.comparing(row -> (Integer) row.get(0)));
+        assertEquals(Arrays.asList(Arrays.asList(first,3,CART,1),Arrays.asList(second,4,CART,2)),upserts);
+        assertEquals(Collections.singletonList(Arrays.asList(3,CART,0L)),batch("UPDATE"));
+    }
+
+    @Test
+    void invalidQuantitiesRejectTheWholeBatch() throws Exception {
+        int line=engine.addStoredProduct(EMAIL,1,2).getStoredProductsInCart().get(0).getId();
+
+        assertThrows(QuantityWrongException.class,() -> engine.apply(EMAIL,Arrays.asList(set(line,1),add(2,0))));
+        assertThrows(QuantityWrongException.class,() -> engine.apply(EMAIL,Arrays.asList(set(line,1),add(1,-1))));
+        assertThrows(QuantityWrongException.class,() -> engine.apply(EMAIL,Arrays.asList(add(2,1),set(line,-1))));
+
+        CartView view=engine.getCart(EMAIL);
+        assertEquals(1,view.getVersion());
+        assertEquals(1,view.getStoredProductsInCart().size());
+        assertEquals(2,view.getStoredProductsInCart().get(0).getQuantity());
+    }
+
+    @Test
+    void changesAreRejectedWhileTheCartIsInCheckout() throws Exception {
+        int line=engine.addStoredProduct(EMAIL,1,1).getStoredProductsInCart().get(0).getId();
+
+        engine.hold(CART);
+        //la modifica confermata prima dell'acquisto è già sul db
+        assertEquals(Collections.singletonList(Arrays.asList(line,1,CART,1)),batch("INSERT"));
+        assertThrows(CartInCheckoutException.class,() -> engine.addStoredProduct(EMAIL,2,1));
+        assertThrows(CartInCheckoutException.class,() -> engine.updateQuantity(EMAIL,line,2));
+        assertThrows(CartInCheckoutException.class,() -> engine.removeLine(EMAIL,line));
+        assertEquals(1,engine.getCart(EMAIL).getVersion());
+        engine.release(CART);
+
+        //dopo l'acquisto il carrello viene riletto dal db
+        engine.addStoredProduct(EMAIL,2,1);
+        verify(cartRepository,times(2)).findCartViewById(CART);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void writeIsRebasedOnAVersionIncrementedOnTheDatabase() throws Exception {
+        int line=engine.addStoredProduct(EMAIL,1,1).getStoredProductsInCart().get(0).getId();
+        //versione incrementata da fuori (es. rimozione di un prodotto) da 0 a 4
+        when(jdbcTemplate.batchUpdate(startsWith("UPDATE"),anyList())).thenReturn(new int[]{0},new int[]{1});
+        when(jdbcTemplate.queryForList(startsWith("SELECT version"),eq(Long.class),eq(CART))).thenReturn(Collections.singletonList(4L));
+
+        engine.flush(CART);
+
+        ArgumentCaptor<List<Object[]>> versions=ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate,times(2)).batchUpdate(startsWith("UPDATE"),versions.capture());
+        assertEquals(Arrays.asList(1,CART,0L),Arrays.asList(versions.getAllValues().get(0).get(0)));
+        assertEquals(Arrays.asList(1,CART,4L),Arrays.asList(versions.getAllValues().get(1).get(0)));
+        assertEquals(Collections.singletonList(Arrays.asList(line,1,CART,1)),batch("INSERT"));
+        //la versione vista dai client resta più recente di quella sul db
+        assertEquals(5,engine.getVersion(EMAIL));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void changedOfferIncrementsTheVersionOfTheCartsWithIt() throws Exception {
+        engine.addStoredProduct(EMAIL,1,1);
+
+        engine.onStoredProductChanged(new StoredProductChangedEvent(storedProduct(1),false));
+        engine.onStoredProductChanged(new StoredProductChangedEvent(storedProduct(2),false));
+        assertEquals(2,engine.getVersion(EMAIL));
+        //carrelli non in memoria: incrementati sul db solo alla scrittura successiva
+        verify(jdbcTemplate,never()).batchUpdate(startsWith("UPDATE punto_informatica.cart SET version = version + 1"),anyList());
+
+        engine.close();
+
+        //un UPDATE per prodotto, escluso il carrello già incrementato in memoria
+        ArgumentCaptor<List<Object[]>> args=ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate).batchUpdate(startsWith("UPDATE punto_informatica.cart SET version = version + 1"),args.capture());
+        List<Object[]> offers=new ArrayList<>(args.getValue());
+        offers.sort(Comparator.comparing(row -> (Integer) row[0]));
+        assertEquals(2,offers.size());
+        assertArrayEquals(new int[]{CART},(int[]) offers.get(0)[1]);
+        assertArrayEquals(new int[0],(int[]) offers.get(1)[1]);
+    }
+
+
+    //righe aggiornate dall'incremento di versione di ogni carrello
+    private void updated(int count) {
+        when(jdbcTemplate.batchUpdate(startsWith("UPDATE"),anyList())).thenAnswer(invocation -> {
+            int[] counts=new int[invocation.<List<?>>getArgument(1).size()];
+            Arrays.fill(counts,count);
+            return counts;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<List<Object>> batch(String statement) {
+        ArgumentCaptor<List<Object[]>> args=ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate).batchUpdate(startsWith(statement),args.capture());
+        List<List<Object>> result=new ArrayList<>();
+        for(Object[] a:args.getValue()) result.add(Arrays.asList(a));
+        return result;
+    }
+
+    private static CartOperation add(int storedProduct, int quantity) {
+        CartOperation op=new CartOperation();
+        op.setType(CartOperation.Type.ADD);
+        op.setStoredProduct(storedProduct);
+        op.setQuantity(quantity);
+        return op;
+    }
+
+    private static CartOperation set(int line, int quantity) {
+        CartOperation op=new CartOperation();
+        op.setType(CartOperation.Type.SET);
+        op.setStoredProductInCart(line);
+        op.setQuantity(quantity);
+        return op;
+    }
+
+    private static CartRepository cartRepository() {
+        CartRepository cartRepository=mock(CartRepository.class);
+        //carrello vuoto: id, versione, acquirente, nessuna riga
+        Object[] row={CART,0L,1,"Mario","Rossi",EMAIL,null};
+        when(cartRepository.findCartViewById(CART)).thenReturn(Collections.singletonList(row));
+        return cartRepository;
+    }
+
+    private static IdentityCache identityCache() {
+        IdentityCache.Identity identity=mock(IdentityCache.Identity.class);
+        when(identity.getCartId()).thenReturn(CART);
+        IdentityCache identityCache=mock(IdentityCache.class);
+        when(identityCache.resolve(EMAIL)).thenReturn(identity);
+        return identityCache;
+    }
+
+    private static StoredProduct storedProduct(int id) {
+        Store store=new Store();
+        store.setId(id);
+        Product product=new Product();
+        product.setId(id);
+        StoredProduct sp=new StoredProduct();
+        sp.setId(id);
+        sp.setQuantity(100);
+        sp.setPrice(9.99);
+        sp.setStore(store);
+        sp.setProduct(product);
+        return sp;
+    }
+
+}
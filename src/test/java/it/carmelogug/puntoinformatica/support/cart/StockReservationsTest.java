@@ -0,0 +1,125 @@
+package it.carmelogug.puntoinformatica.support.cart;
+
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.support.cache.EntityCache;
+import it.carmelogug.puntoinformatica.support.events.CartChangedEvent;
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.QuantityProductUnvailableException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class StockReservationsTest {
+
+    private StockReservations reservations;
+
+
+    @AfterEach
+    void close() {
+        if(reservations!=null) reservations.close();
+    }
+
+
+    @Test
+    void reservationsShareTheStockOfAProduct() throws QuantityProductUnvailableException {
+        reservations=new StockReservations(entityCache(1,5),true,900,1000,8);
+
+        reservations.reserve(1,quantity(1,3));
+        assertThrows(QuantityProductUnvailableException.class,() -> reservations.reserve(2,quantity(1,3)));
+        reservations.reserve(2,quantity(1,2));
+        //la prenotazione del carrello stesso viene sostituita, non sommata
+        reservations.reserve(1,quantity(1,2));
+        reservations.reserve(1,quantity(1,3));
+
+        assertEquals(5L,reservations.stats().get("reservedUnits"));
+        assertEquals(1L,reservations.stats().get("rejected"));
+    }
+
+    @Test
+    void failedReservationLeavesTheOthersUntouched() throws QuantityProductUnvailableException {
+        reservations=new StockReservations(entityCache(1,5,2,1),true,900,1000,8);
+        reservations.reserve(1,quantity(2,1));
+
+        Map<Integer,Integer> both=quantity(1,2);
+        both.put(2,1);
+        assertThrows(QuantityProductUnvailableException.class,() -> reservations.reserve(2,both));
+        assertEquals(1,reservations.stats().get("reservations"));
+        assertEquals(1L,reservations.stats().get("reservedUnits"));
+    }
+
+    @Test
+    void releaseAndPurchaseFreeTheStock() throws QuantityProductUnvailableException {
+        reservations=new StockReservations(entityCache(1,5),true,900,1000,8);
+
+        reservations.reserve(1,quantity(1,5));
+        reservations.release(1,1);
+        reservations.reserve(2,quantity(1,5));
+        reservations.onCartChanged(new CartChangedEvent(2));
+        reservations.reserve(3,quantity(1,5));
+
+        assertEquals(1,reservations.stats().get("carts"));
+        assertEquals(0L,reservations.stats().get("expired"));
+    }
+
+    /*
+        ttl di 1 secondo con tick da 10 ms: 100 tick su una ruota di 8 slot, quindi la scadenza
+        passa più volte dal suo slot prima di essere rimossa.
+     */
+    @Test
+    void reservationsExpireAfterTtlAcrossWheelRounds() throws Exception {
+        reservations=new StockReservations(entityCache(1,5),true,1,10,8);
+
+        reservations.reserve(1,quantity(1,5));
+        Thread.sleep(300);
+        assertThrows(QuantityProductUnvailableException.class,() -> reservations.reserve(2,quantity(1,1)));
+        assertEquals(0L,reservations.stats().get("expired"));
+
+        long deadline=System.currentTimeMillis()+5000;
+        while(!reservations.stats().get("reservations").equals(0) && System.currentTimeMillis()<deadline) Thread.sleep(20);
+        assertEquals(1L,reservations.stats().get("expired"));
+        assertEquals(0L,reservations.stats().get("reservedUnits"));
+        reservations.reserve(2,quantity(1,5));
+    }
+
+    @Test
+    void renewedReservationKeepsOnlyTheNewDeadline() throws Exception {
+        reservations=new StockReservations(entityCache(1,5),true,1,10,8);
+
+        reservations.reserve(1,quantity(1,2));
+        Thread.sleep(600);
+        reservations.reserve(1,quantity(1,3));
+        //la vecchia scadenza (dopo circa 400 ms) non deve rilasciare la prenotazione rinnovata
+        Thread.sleep(600);
+        assertEquals(3L,reservations.stats().get("reservedUnits"));
+        assertEquals(0L,reservations.stats().get("expired"));
+    }
+
+
+
+    //coppie stored product, quantità
+    private static EntityCache entityCache(int... stock) {
+        EntityCache entityCache=mock(EntityCache.class);
+        for(int i=0; i<stock.length; i+=2){
+            StoredProduct sp=storedProduct(stock[i],stock[i+1]);
+            when(entityCache.findStoredProductById(stock[i])).thenReturn(sp);
+        }
+        return entityCache;
+    }
+
+    private static StoredProduct storedProduct(int id, int quantity) {
+        StoredProduct sp=new StoredProduct();
+        sp.setId(id);
+        sp.setQuantity(quantity);
+        return sp;
+    }
+
+    private static Map<Integer,Integer> quantity(int storedProduct, int quantity) {
+        return new HashMap<>(Collections.singletonMap(storedProduct,quantity));
+    }
+
+}
@@ -0,0 +1,123 @@
+package it.carmelogug.puntoinformatica.support.idempotency;
+
+import it.carmelogug.puntoinformatica.support.exceptions.Purchasing.PurchaseInProgressException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotencyStoreTest {
+
+    private static final int WAITING=8;
+
+
+    @Test
+    void completedKeyIsReplayed() throws Exception {
+        IdempotencyStore store=new IdempotencyStore(100,3600,10_000);
+        IdempotencyStore.Claim first=store.claim("key");
+        assertFalse(first.isReplayed());
+        first.complete(42);
+        first.release();
+
+        IdempotencyStore.Claim second=store.claim("key");
+        assertTrue(second.isReplayed());
+        assertEquals(42,second.getId());
+        assertFalse(store.claim("other").isReplayed());
+    }
+
+    @Test
+    void waitForARunningExecutionTimesOut() throws Exception {
+        IdempotencyStore store=new IdempotencyStore(100,3600,100);
+        IdempotencyStore.Claim running=store.claim("key");
+
+        long start=System.currentTimeMillis();
+        assertThrows(PurchaseInProgressException.class,() -> store.claim("key"));
+        assertTrue(System.currentTimeMillis()-start<5000);
+        assertEquals(1L,store.stats().get("timedOut"));
+
+        //l'esecuzione in corso non viene toccata dall'attesa scaduta
+        running.complete(3);
+        assertEquals(3,store.claim("key").getId());
+    }
+
+    @Test
+    void concurrentRequestsWaitForTheRunningOne() throws Exception {
+        IdempotencyStore store=new IdempotencyStore(100,3600,10_000);
+        IdempotencyStore.Claim running=store.claim("key");
+        ExecutorService executor=Executors.newFixedThreadPool(WAITING);
+        try{
+            List<Future<IdempotencyStore.Claim>> waiting=submit(executor,store);
+            awaitCoalesced(store,WAITING);
+            for(Future<IdempotencyStore.Claim> f:waiting) assertFalse(f.isDone());
+
+            running.complete(7);
+            for(Future<IdempotencyStore.Claim> f:waiting){
+                IdempotencyStore.Claim claim=f.get(5,TimeUnit.SECONDS);
+                assertTrue(claim.isReplayed());
+                assertEquals(7,claim.getId());
+            }
+        }finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedExecutionIsRepeatedByOneWaitingRequest() throws Exception {
+        IdempotencyStore store=new IdempotencyStore(100,3600,10_000);
+        IdempotencyStore.Claim running=store.claim("key");
+        ExecutorService executor=Executors.newFixedThreadPool(WAITING);
+        try{
+            List<Future<IdempotencyStore.Claim>> waiting=submit(executor,store);
+            awaitCoalesced(store,WAITING);
+
+            //esecuzione fallita: una sola delle richieste in attesa diventa l'esecutore, le altre attendono lei
+            running.release();
+            IdempotencyStore.Claim retry=null;
+            long deadline=System.currentTimeMillis()+5000;
+            while(retry==null && System.currentTimeMillis()<deadline){
+                for(Future<IdempotencyStore.Claim> f:waiting) if(f.isDone()) retry=f.get();
+                Thread.sleep(10);
+            }
+            assertNotNull(retry);
+            assertFalse(retry.isReplayed());
+            retry.complete(9);
+
+            int executors=0;
+            for(Future<IdempotencyStore.Claim> f:waiting){
+                IdempotencyStore.Claim claim=f.get(5,TimeUnit.SECONDS);
+                if(!claim.isReplayed()) executors++;
+                else assertEquals(9,claim.getId());
+            }
+            assertEquals(1,executors);
+        }finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+
+    private static List<Future<IdempotencyStore.Claim>> submit(ExecutorService executor, IdempotencyStore store) throws InterruptedException {
+        CountDownLatch started=new CountDownLatch(WAITING);
+        List<Future<IdempotencyStore.Claim>> result=new ArrayList<>();
+        for(int i=0; i<WAITING; i++) result.add(executor.submit(() -> {
+            started.countDown();
+            return store.claim("key");
+        }));
+        assertTrue(started.await(5,TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static void awaitCoalesced(IdempotencyStore store, long count) throws InterruptedException {
+        long deadline=System.currentTimeMillis()+5000;
+        while(!store.stats().get("coalesced").equals(count) && System.currentTimeMillis()<deadline) Thread.sleep(10);
+        assertEquals(count,store.stats().get("coalesced"));
+    }
+
+}
@@ -0,0 +1,102 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.entities.store.Store;
+import it.carmelogug.puntoinformatica.entities.store.StoredProduct;
+import it.carmelogug.puntoinformatica.repositories.StoredProductRepository;
+import it.carmelogug.puntoinformatica.support.events.StoredProductChangedEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class PriceBookIndexTest {
+
+    private static final int PRODUCT=7;
+
+
+    @Test
+    void olderEventsDoNotOverwriteNewerOffers() {
+        PriceBookIndex index=built(new Object[]{1,PRODUCT,1,10.0,5,3L});
+
+        changed(index,1,9.0,4,5L,false);
+        //evento di un commit precedente arrivato dopo
+        changed(index,1,10.0,5,4L,false);
+        changed(index,1,9.0,4,5L,false);
+
+        List<PriceBookIndex.Offer> offers=index.find(PRODUCT,null,null,null,10);
+        assertEquals(1,offers.size());
+        assertEquals(9.0,offers.get(0).getPrice());
+        assertEquals(4,offers.get(0).getQuantity());
+    }
+
+    @Test
+    void removedOfferIsNotRestoredByALateEvent() {
+        PriceBookIndex index=built(new Object[]{1,PRODUCT,1,10.0,5,3L},new Object[]{2,PRODUCT,2,12.0,1,0L});
+
+        changed(index,1,10.0,5,3L,true);
+        changed(index,1,8.0,2,4L,false);
+
+        List<PriceBookIndex.Offer> offers=index.find(PRODUCT,null,null,null,10);
+        assertEquals(1,offers.size());
+        assertEquals(2,offers.get(0).getStoredProductId());
+    }
+
+    @Test
+    void eventsBeforeTheBuildAreCheckedAgainstTheLoadedVersions() {
+        StoredProductRepository repository=mock(StoredProductRepository.class);
+        when(repository.findAllOffers()).thenReturn(Collections.singletonList(new Object[]{1,PRODUCT,1,10.0,5,3L}));
+        PriceBookIndex index=new PriceBookIndex(repository,true);
+        changed(index,1,11.0,5,2L,false);
+        changed(index,3,20.0,1,0L,false);
+        index.build();
+
+        List<PriceBookIndex.Offer> offers=index.find(PRODUCT,null,null,null,10);
+        assertEquals(2,offers.size());
+        assertEquals(10.0,offers.get(0).getPrice());
+        assertEquals(3,offers.get(1).getStoredProductId());
+    }
+
+    @Test
+    void failedBuildDisablesTheIndex() {
+        StoredProductRepository repository=mock(StoredProductRepository.class);
+        when(repository.findAllOffers()).thenThrow(new IllegalStateException("database not available"));
+        PriceBookIndex index=new PriceBookIndex(repository,true);
+
+        index.build();
+        changed(index,1,10.0,5,0L,false);
+
+        assertFalse(index.isReady());
+        assertTrue(index.find(PRODUCT,null,null,null,10).isEmpty());
+    }
+
+
+
+    private static PriceBookIndex built(Object[]... rows) {
+        StoredProductRepository repository=mock(StoredProductRepository.class);
+        when(repository.findAllOffers()).thenReturn(Arrays.asList(rows));
+        PriceBookIndex index=new PriceBookIndex(repository,true);
+        index.build();
+        return index;
+    }
+
+    private static void changed(PriceBookIndex index, int id, double price, int quantity, long version, boolean removed) {
+        Store store=new Store();
+        store.setId(id);
+        Product product=new Product();
+        product.setId(PRODUCT);
+        StoredProduct sp=new StoredProduct();
+        sp.setId(id);
+        sp.setStore(store);
+        sp.setProduct(product);
+        sp.setPrice(price);
+        sp.setQuantity(quantity);
+        sp.setVersion(version);
+        index.onStoredProductChanged(new StoredProductChangedEvent(sp,removed));
+    }
+
+}
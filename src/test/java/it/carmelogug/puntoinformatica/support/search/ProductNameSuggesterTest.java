@@ -0,0 +1,120 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.repositories.ProductRepository;
+import it.carmelogug.puntoinformatica.support.events.ProductChangedEvent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ProductNameSuggesterTest {
+
+    @TempDir
+    Path dir;
+
+
+    @Test
+    void suggestsShortestCompletionsFirst() {
+        ProductNameSuggester suggester=built(repository(Collections.emptyList()));
+        changed(suggester,1,"iPad Air 2 Wi-Fi + Cellular",false);
+        changed(suggester,2,"iPhone 14",false);
+        changed(suggester,3,"Apple iPhone 13",false);
+        changed(suggester,4,"iPad",false);
+
+        //"IPAD" è la chiave più corta, poi "IPHONE 13" e "IPHONE 14" in ordine alfabetico
+        assertEquals(Arrays.asList("iPad","Apple iPhone 13","iPhone 14","iPad Air 2 Wi-Fi + Cellular"),suggester.suggest("ip",10));
+        assertEquals(Arrays.asList("iPad","Apple iPhone 13"),suggester.suggest("ip",2));
+        assertEquals(Arrays.asList("Apple iPhone 13","iPhone 14"),suggester.suggest("iph",10));
+    }
+
+    @Test
+    void removedNamesAreNotSuggestedAndSiblingsSurvivePruning() {
+        ProductNameSuggester suggester=built(repository(Collections.emptyList()));
+        changed(suggester,1,"iPhone 13",false);
+        changed(suggester,2,"iPhone 14",false);
+        changed(suggester,3,"iPad",false);
+
+        changed(suggester,1,"iPhone 13",true);
+        assertEquals(Collections.singletonList("iPhone 14"),suggester.suggest("iphone",10));
+        changed(suggester,2,"iPhone 14",true);
+        assertEquals(Collections.emptyList(),suggester.suggest("iph",10));
+        assertEquals(Collections.singletonList("iPad"),suggester.suggest("i",10));
+
+        changed(suggester,2,"iPhone 14",false);
+        assertEquals(Collections.singletonList("iPhone 14"),suggester.suggest("iph",10));
+    }
+
+    @Test
+    void snapshotIsInvalidatedByProductsBannedWhileStopped() {
+        ProductRepository repository=repository(Arrays.asList(product(1,"iPhone 13",false),product(2,"iPad",true),product(3,"iMac",false)));
+        ProductNameSuggester first=built(repository);
+        first.close();
+
+        //stesso numero di prodotti e stesso id massimo: 1 bannato e 2 sbannato a applicazione ferma
+        when(repository.watermarkOfNotBanned()).thenReturn(watermark(2,3));
+        when(repository.findAll()).thenReturn(Arrays.asList(product(1,"iPhone 13",true),product(2,"iPad",false),product(3,"iMac",false)));
+        ProductNameSuggester second=built(repository);
+        assertEquals(Arrays.asList("iMac","iPad"),second.suggest("i",10));
+        verify(repository,times(2)).findAll();
+
+        //snapshot aggiornato e ancora valido: nessuna lettura dal db
+        second.close();
+        ProductNameSuggester third=built(repository);
+        assertEquals(Arrays.asList("iMac","iPad"),third.suggest("i",10));
+        verify(repository,times(2)).findAll();
+    }
+
+    @Test
+    void failedBuildDisablesSuggestions() {
+        ProductRepository repository=mock(ProductRepository.class);
+        when(repository.findAll()).thenThrow(new IllegalStateException("database not available"));
+        ProductNameSuggester suggester=built(repository);
+        changed(suggester,1,"iPhone 13",false);
+
+        assertFalse(suggester.isReady());
+        assertEquals(Collections.emptyList(),suggester.suggest("iph",10));
+    }
+
+
+
+    private ProductNameSuggester built(ProductRepository repository) {
+        ProductNameSuggester suggester=new ProductNameSuggester(repository,dir.resolve("suggest.bin").toString());
+        suggester.build();
+        return suggester;
+    }
+
+    private static ProductRepository repository(List<Product> products) {
+        ProductRepository repository=mock(ProductRepository.class);
+        when(repository.findAll()).thenReturn(products);
+        List<Integer> ids=new ArrayList<>();
+        for(Product p:products) if(!p.isBanned()) ids.add(p.getId());
+        when(repository.watermarkOfNotBanned()).thenReturn(watermark(ids.toArray(new Integer[0])));
+        return repository;
+    }
+
+    private static List<Object[]> watermark(Integer... ids) {
+        long[] watermark=ProductNameSuggester.watermark(Arrays.asList(ids));
+        return Collections.singletonList(new Object[]{watermark[0],(int) watermark[1],watermark[2]});
+    }
+
+    private static void changed(ProductNameSuggester suggester, int id, String name, boolean banned) {
+        suggester.onProductChanged(new ProductChangedEvent(product(id,name,banned)));
+    }
+
+    private static Product product(int id, String name, boolean banned) {
+        Product p=new Product();
+        p.setId(id);
+        p.setName(name);
+        p.setBanned(banned);
+        return p;
+    }
+
+}
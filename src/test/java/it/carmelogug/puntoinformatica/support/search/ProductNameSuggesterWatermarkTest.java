@@ -0,0 +1,65 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.repositories.ProductRepository;
+import it.carmelogug.puntoinformatica.services.ProductService;
+import it.carmelogug.puntoinformatica.support.StatementCounter;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    watermarkOfNotBanned eseguita su PostgreSQL (profilo test) confrontata con il calcolo dello snapshot.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@Import(StatementCounter.class)
+class ProductNameSuggesterWatermarkTest {
+
+    @Autowired
+    private ProductService productService;
+
+    @Autowired
+    private ProductRepository productRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+
+    @Test
+    void watermarkMatchesDatabaseQuery() throws Exception {
+        product();
+        Product banned=productService.banProduct(product());
+
+        long[] expected=ProductNameSuggester.watermark(jdbcTemplate.queryForList(
+                "SELECT product_id FROM punto_informatica.products WHERE is_banned = false",Integer.class));
+        long[] actual=ProductNameSuggester.watermark(productRepository.watermarkOfNotBanned().get(0));
+        assertArrayEquals(expected,actual);
+        assertTrue(actual[0]>0);
+
+        productService.unBanProduct(banned);
+        actual=ProductNameSuggester.watermark(productRepository.watermarkOfNotBanned().get(0));
+        assertEquals(expected[0]+1,actual[0]);
+        assertEquals(expected[2]+banned.getId(),actual[2]);
+    }
+
+
+
+    private Product product() throws Exception {
+        Product product=new Product();
+        product.setName("Product "+UUID.randomUUID());
+        product.setType(Product.Type.HARDWARE);
+        product.setCategory(Product.Category.COMPUTER);
+        product.setBarCode(ThreadLocalRandom.current().nextLong(1,Long.MAX_VALUE));
+        return productService.addProduct(product);
+    }
+
+}
@@ -0,0 +1,50 @@
+package it.carmelogug.puntoinformatica.support.search;
+
+import it.carmelogug.puntoinformatica.entities.store.Product;
+import it.carmelogug.puntoinformatica.repositories.ProductRepository;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ProductSearchIndexTest {
+
+    @Test
+    void facetCountsCountTheSameProductsAsTheResults() {
+        Product.Type type=Product.Type.values()[0];
+        Product.Category category=Product.Category.values()[0];
+        ProductSearchIndex index=built(product(1,"MACBOOK AIR",type,category,false),
+                product(2,"MACBOOK PRO",type,category,true),
+                product(3,"IMAC",type,category,false));
+
+        for(String name:Arrays.asList("%MACBOOK%",null)){
+            ProductSearchResult result=index.searchWithFacets(name,type,category);
+            assertEquals(result.getProducts().size(),result.getTypeCounts().get(type).intValue());
+            assertEquals(result.getProducts().size(),result.getCategoryCounts().get(category).intValue());
+        }
+        assertEquals(2,index.searchWithFacets("%MACBOOK%",type,category).getProducts().size());
+    }
+
+
+
+    private static ProductSearchIndex built(Product... products) {
+        ProductRepository repository=mock(ProductRepository.class);
+        when(repository.findAll()).thenReturn(Arrays.asList(products));
+        ProductSearchIndex index=new ProductSearchIndex(repository,true);
+        index.build();
+        return index;
+    }
+
+    private static Product product(int id, String name, Product.Type type, Product.Category category, boolean banned) {
+        Product p=new Product();
+        p.setId(id);
+        p.setName(name);
+        p.setType(type);
+        p.setCategory(category);
+        p.setBanned(banned);
+        return p;
+    }
+
+}
@@ -0,0 +1,146 @@
+package it.carmelogug.puntoinformatica.support.stock;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class FlashSaleStockTest {
+
+    @TempDir
+    Path dir;
+
+    private final List<FlashSaleStock> created=new ArrayList<>();
+
+
+    @AfterEach
+    void close() {
+        for(FlashSaleStock stock:created) stock.close();
+    }
+
+
+    @Test
+    void recoveryWritesOnlyTheUnflushedSales() throws Exception {
+        write("E 1",
+                "S 1 3", "S 1 2", "F 1 3",  //2 pezzi del prodotto 1 non scritti
+                "E 2", "S 2 4", "F 2 4", "D 2",  //prodotto 2 disattivato, tutto scritto
+                "S 3 5", "S 3 -5",  //vendita annullata
+                "S 1");  //riga troncata
+        JdbcTemplate jdbcTemplate=jdbcTemplate(1,10);
+
+        FlashSaleStock stock=recovered(jdbcTemplate);
+
+        assertEquals(Collections.singletonList(Arrays.asList(2,1)),subtracted(jdbcTemplate));
+        assertTrue(stock.isActive(1));
+        assertFalse(stock.isActive(2));
+        assertEquals(10,stock.stats().get(1).get("available"));
+        //journal compattato: solo le flash sale attive, le vendite sono sul db
+        assertEquals(Collections.singletonList("E 1"),Files.readAllLines(journal(),StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void committedSaleSurvivesAStopBeforeTheFlush() throws Exception {
+        write("E 1");
+        FlashSaleStock first=recovered(jdbcTemplate(1,10));
+        begin();
+        assertTrue(first.take(1,2));
+        assertTrue(first.take(1,1));
+        commit();
+        //vendita annullata: pezzi restituiti al contatore
+        begin();
+        assertTrue(first.take(1,4));
+        rollback();
+        assertEquals(7,first.stats().get(1).get("available"));
+        assertEquals(3,first.stats().get(1).get("unflushed"));
+
+        //riavvio senza flush (flush-interval molto più lungo del test)
+        JdbcTemplate jdbcTemplate=jdbcTemplate(1,10);
+        FlashSaleStock second=recovered(jdbcTemplate);
+        assertEquals(Collections.singletonList(Arrays.asList(3,1)),subtracted(jdbcTemplate));
+        assertTrue(second.isActive(1));
+    }
+
+    @Test
+    void missingJournalRecoversNothing() throws Exception {
+        JdbcTemplate jdbcTemplate=jdbcTemplate(1,10);
+        FlashSaleStock stock=recovered(jdbcTemplate);
+
+        verify(jdbcTemplate,never()).batchUpdate(anyString(),anyList());
+        assertFalse(stock.isActive(1));
+        assertFalse(stock.take(1,1));
+    }
+
+
+
+    private FlashSaleStock recovered(JdbcTemplate jdbcTemplate) throws Exception {
+        FlashSaleStock stock=new FlashSaleStock(jdbcTemplate,mock(PlatformTransactionManager.class),
+                mock(ApplicationEventPublisher.class),journal().toString(),4,60_000);
+        created.add(stock);
+        stock.recover();
+        return stock;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JdbcTemplate jdbcTemplate(int storedProduct, int quantity) {
+        JdbcTemplate jdbcTemplate=mock(JdbcTemplate.class);
+        when(jdbcTemplate.queryForList(anyString(),eq(Integer.class),eq(storedProduct))).thenReturn(Collections.singletonList(quantity));
+        when(jdbcTemplate.query(anyString(),any(RowMapper.class))).thenReturn(Collections.emptyList());
+        return jdbcTemplate;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<List<Object>> subtracted(JdbcTemplate jdbcTemplate) {
+        ArgumentCaptor<List<Object[]>> args=ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate).batchUpdate(startsWith("UPDATE"),args.capture());
+        List<List<Object>> result=new ArrayList<>();
+        for(Object[] a:args.getValue()) result.add(Arrays.asList(a));
+        return result;
+    }
+
+    /*
+        Transazione dell'acquisto simulata: le vendite sono legate alla sincronizzazione della transazione corrente
+     */
+    private static void begin() {
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    private static void commit() {
+        List<TransactionSynchronization> synchronizations=TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        for(TransactionSynchronization s:synchronizations) s.beforeCommit(false);
+        for(TransactionSynchronization s:synchronizations) s.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+    }
+
+    private static void rollback() {
+        List<TransactionSynchronization> synchronizations=TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        for(TransactionSynchronization s:synchronizations) s.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+    }
+
+    private void write(String... records) throws Exception {
+        Files.write(journal(),Arrays.asList(records),StandardCharsets.UTF_8);
+    }
+
+    private Path journal() {
+        return dir.resolve("flash-sale-journal.log");
+    }
+
+}